@@ -0,0 +1,300 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.servlet.ServletContext;
+
+/**
+ * AddressCache - keeps the outcome of parsing and validating the address
+ *                strings used by the tags, so that an address used on every
+ *                request, such as the from address, is parsed once.
+ *
+ * <p>
+ * A string is split into addresses and each address is validated on its
+ * own, the cache keeps the valid addresses, the invalid ones and the error
+ * of a string that cannot be split at all.  The addresses handed out are
+ * copies, a caller changing one does not change the cached entry.  The least
+ * recently used string is dropped once the cache holds more strings than the
+ * <i>org.apache.taglibs.mailer.addressCacheSize</i> context parameter
+ * (default 1024).  Strings longer than 1000 characters, which are lists
+ * rather than addresses used again and again, are parsed but not kept.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class AddressCache {
+
+    /**
+     * The context parameter name
+     */
+    public final static String SIZE_PARAM =
+        "org.apache.taglibs.mailer.addressCacheSize";
+
+    /**
+     * name of the servlet context attribute the cache is stored under
+     */
+    private final static String ATTRIBUTE = AddressCache.class.getName();
+
+    /**
+     * guards the creation of the cache
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * length above which a string is not cached
+     */
+    private final static int MAX_LENGTH = 1000;
+
+    /**
+     * the parsed strings, in least recently used order
+     */
+    private final Map<String, Parsed> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * create an address cache
+     *
+     * @param size  maximum number of strings kept
+     */
+    public AddressCache(int size) {
+        entries = new Entries(size);
+    }
+
+    /**
+     * get the address cache for a web application, creating it if it does
+     * not exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the address cache for the web application
+     *
+     */
+    public static AddressCache getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            AddressCache cache = (AddressCache)sc.getAttribute(ATTRIBUTE);
+            if (cache == null) {
+                cache = new AddressCache(Math.max(1,
+                    MailDispatcher.getIntParameter(sc, SIZE_PARAM, 1024)));
+                sc.setAttribute(ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * split a string into addresses and validate each of them
+     *
+     * @param value  one or more addresses separated by commas
+     *
+     * @return - the outcome
+     *
+     */
+    public Parsed lookup(String value) {
+        if (value.length() > MAX_LENGTH) {
+            misses.incrementAndGet();
+            return new Parsed(value);
+        }
+        Parsed parsed;
+        synchronized (entries) {
+            parsed = entries.get(value);
+        }
+        if (parsed != null) {
+            hits.incrementAndGet();
+            return parsed;
+        }
+        misses.incrementAndGet();
+        // parse outside the lock, two threads may parse the same string
+        parsed = new Parsed(value);
+        synchronized (entries) {
+            entries.put(value, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * parse a string of addresses that must all be valid
+     *
+     * @param value  one or more addresses separated by commas
+     *
+     * @return - the addresses
+     *
+     * @throws AddressException  thrown when the string cannot be split or
+     *                           one of the addresses is not valid
+     *
+     */
+    public InternetAddress[] parse(String value) throws AddressException {
+        Parsed parsed = lookup(value);
+        if (parsed.error != null) {
+            throw new AddressException(parsed.error, value);
+        }
+        if (parsed.invalid.length > 0) {
+            throw new AddressException("Invalid address", parsed.invalid[0]);
+        }
+        return parsed.getAddresses();
+    }
+
+    /**
+     * parse a string holding exactly one valid address
+     *
+     * @param value  the address
+     *
+     * @return - the address
+     *
+     * @throws AddressException  thrown when the string is not one valid
+     *                           address
+     *
+     */
+    public InternetAddress getAddress(String value) throws AddressException {
+        InternetAddress[] parsed = parse(value);
+        if (parsed.length != 1) {
+            throw new AddressException("Illegal address", value);
+        }
+        return parsed[0];
+    }
+
+    /**
+     * get the number of lookups answered from the cache
+     *
+     * @return - number of hits
+     *
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of lookups that had to parse the string
+     *
+     * @return - number of misses
+     *
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * get the number of strings kept
+     *
+     * @return - number of entries
+     *
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Entries - the parsed strings in least recently used order, the eldest
+     *           is dropped once there are more than the maximum
+     */
+    private static class Entries extends LinkedHashMap<String, Parsed> {
+
+        private final static long serialVersionUID = 1L;
+
+        private final int max;
+
+        Entries(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Parsed> e) {
+            return size() > max;
+        }
+    }
+
+    /**
+     * Parsed - the outcome of parsing one string, it does not change once
+     *          created
+     */
+    public static class Parsed {
+
+        private final InternetAddress[] addresses;
+        private final String[] invalid;
+        private final String error;
+
+        Parsed(String value) {
+            List<InternetAddress> valid = new ArrayList<InternetAddress>();
+            List<String> bad = new ArrayList<String>();
+            String message = null;
+            try {
+                // split as strictly as the tags always have, a list such as
+                // "a@x.org b@y.org" is refused as a whole, then check each
+                // address so that only the bad ones are reported
+                InternetAddress[] split = InternetAddress.parse(value, true);
+                for (int i = 0; i < split.length; i++) {
+                    try {
+                        split[i].validate();
+                        valid.add(split[i]);
+                    } catch (AddressException ae) {
+                        bad.add(split[i].getAddress());
+                    }
+                }
+            } catch (AddressException ae) {
+                message = ae.getMessage();
+            }
+            addresses = valid.toArray(new InternetAddress[valid.size()]);
+            invalid = bad.toArray(new String[bad.size()]);
+            error = message;
+        }
+
+        /**
+         * get the valid addresses
+         *
+         * @return - copies of the addresses
+         *
+         */
+        public InternetAddress[] getAddresses() {
+            InternetAddress[] copy = new InternetAddress[addresses.length];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = (InternetAddress)addresses[i].clone();
+            }
+            return copy;
+        }
+
+        /**
+         * get the addresses that are not valid
+         *
+         * @return - the invalid addresses, empty if there are none
+         *
+         */
+        public String[] getInvalid() {
+            return invalid.clone();
+        }
+
+        /**
+         * get the reason the string could not be split into addresses
+         *
+         * @return - the error or null if the string was split
+         *
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -17,8 +17,11 @@
 package org.apache.taglibs.mailer;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.io.Writer;
 import java.net.URL;
+import java.util.concurrent.Future;
 import jakarta.activation.DataHandler;
 import jakarta.activation.DataSource;
 import jakarta.activation.FileDataSource;
@@ -68,6 +71,11 @@ public class AttachTag extends BodyTagSupport {
      */
     private MimeBodyPart mbp = null;
 
+    /**
+     * the attachment named by a url, fetched in the background
+     */
+    private Future<MimeBodyPart> fetch = null;
+
     /**
      * parent mail tag
      */
@@ -78,6 +86,11 @@ public class AttachTag extends BodyTagSupport {
      */
     private String body;
 
+    /**
+     * the body of the tag when it is streamed, null when it is held in body
+     */
+    private SpillBuffer bodybuffer = null;
+
     /**
      * implementation of method from the Tag interface that tells the JSP what
      * to do upon encountering the start tag for this tag set
@@ -96,7 +109,9 @@ public class AttachTag extends BodyTagSupport {
             throw new JspException("Attach tag not nested within mail tag.");
         }
         mbp = new MimeBodyPart();  // create the bodypart for this attachment
+        fetch = null;
         body = null;
+        bodybuffer = null;
         if (type != null || (file != null && file.length() == 0) ||
                 (url != null && url.length() == 0) ) {
             return EVAL_BODY_TAG;
@@ -117,6 +132,24 @@ public class AttachTag extends BodyTagSupport {
      */
     public int doAfterBody() throws JspException {
 
+        if (type != null) {
+            // stream an inline attachment into a buffer rather than copying
+            // it into a string, a large one goes to a temporary file
+            bodybuffer = SpillBuffer.newInstance(
+                pageContext.getServletContext(), SpillBuffer.getCharset(type));
+        }
+        if (bodybuffer != null) {
+            try {
+                Writer writer = bodybuffer.getWriter();
+                bodyContent.writeOut(writer);
+                writer.close();
+            } catch (IOException ie) {
+                throw new JspException("The attachment could not be " +
+                                       "buffered:  " + ie.getMessage());
+            }
+            bodyContent.clearBody();
+            return SKIP_BODY;
+        }
         body = bodyContent.getString();
         bodyContent.clearBody();
         if (body == null) {
@@ -142,7 +175,11 @@ public class AttachTag extends BodyTagSupport {
             // the body of the tag is expected to be added as the attachment
             // create a mimebodypart from the body of the tag
             try {
-                mbp.setDataHandler(new DataHandler(body, type));
+                if (bodybuffer != null)
+                    mbp.setDataHandler(new DataHandler(
+                        bodybuffer.getDataSource(type)));
+                else
+                    mbp.setDataHandler(new DataHandler(body, type));
             } catch (MessagingException me) {
                 throw new JspException(
                     "The attachment named with the mimetype " + type +
@@ -183,7 +220,10 @@ public class AttachTag extends BodyTagSupport {
         }
 
         // Add the attachment to list of attachments
-        myparent.setBodyParts(mbp);
+        if (fetch != null)
+            myparent.setBodyParts(fetch);
+        else
+            myparent.setBodyParts(mbp);
         return EVAL_PAGE;
     }
 
@@ -231,19 +271,13 @@ public class AttachTag extends BodyTagSupport {
 // Added by Jayson Falkner - 5/8/2001
 
         try {
-            URL url = new URL(value);
-            mbp.setDataHandler(new jakarta.activation.DataHandler(url));
-            if(url.getFile() != null)
-                mbp.setFileName(url.getFile());
-            else
-                mbp.setFileName(value);
-
+            // the resource is fetched through the shared cache in the
+            // background, the send tag waits for it
+            fetch = UrlCache.getInstance(
+                pageContext.getServletContext()).getPart(new URL(value));
         } catch(MalformedURLException e) {
             throw new JspException("The URL entered as an attachment was " +
                         "incorrectly formatted please check it and try again.");
-        } catch(MessagingException e) {
-            throw new JspException("The Resource named by " + url + " could not"
-                                   + " be attached.");
         }
 // End of added
     }
@@ -265,9 +299,10 @@ public class AttachTag extends BodyTagSupport {
         try {
             File file = new File(rpath);
             if (file.exists()) {
-                jakarta.activation.DataSource attachment = new jakarta.activation.FileDataSource(file);
-                mbp.setDataHandler(new jakarta.activation.DataHandler(attachment));
-                mbp.setFileName(file.getName());
+                // the encoded content of the file is cached, it is only read
+                // and encoded again when the file changes
+                mbp = AttachmentCache.getInstance(
+                    pageContext.getServletContext()).getPart(file);
             } else {
                 // if the file does not exist it is probably an error in the way
                 // the page author is adding the path throw an exception so this
@@ -278,6 +313,9 @@ public class AttachTag extends BodyTagSupport {
         } catch(MessagingException e) {
             throw new JspException("The file named by " + file + " could not be"
                                    + " attached.");
+        } catch(IOException e) {
+            throw new JspException("The file named by " + file + " could not be"
+                                   + " read:  " + e.getMessage());
         }
 
 // End of added
@@ -0,0 +1,200 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.servlet.ServletContext;
+
+/**
+ * AttachmentCache - keeps the transfer encoded content of the files attached
+ *                   with the <b>attach</b> tag, so that a file attached to
+ *                   every message, such as the terms of service or a logo, is
+ *                   read and encoded once.
+ *
+ * <p>
+ * Files are keyed by their path, size and modification time, a file that
+ * changes is read again.  The encoded content is kept in direct buffers,
+ * out of the heap.  The least recently used files are dropped once the
+ * encoded content of all files passes the
+ * <i>org.apache.taglibs.mailer.attachmentCacheSize</i> context parameter in
+ * bytes (default 16777216, 0 turns the cache off).  A file larger than the
+ * budget is read and encoded from disk each time a message is written, in
+ * blocks, without ever being held in memory whole.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class AttachmentCache {
+
+    /**
+     * The context parameter name
+     */
+    public final static String SIZE_PARAM =
+        "org.apache.taglibs.mailer.attachmentCacheSize";
+
+    /**
+     * name of the servlet context attribute the cache is stored under
+     */
+    private final static String ATTRIBUTE = AttachmentCache.class.getName();
+
+    /**
+     * guards the creation of the cache
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * the encoded files, in least recently used order
+     */
+    private final Map<String, EncodedBodyPart> parts =
+        new LinkedHashMap<String, EncodedBodyPart>(16, 0.75f, true);
+
+    /**
+     * bytes of encoded content the cache may hold
+     */
+    private final long budget;
+
+    /**
+     * bytes of encoded content held
+     */
+    private long used = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * create an attachment cache
+     *
+     * @param budget  bytes of encoded content kept, 0 to keep none
+     */
+    public AttachmentCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * get the attachment cache for a web application, creating it if it
+     * does not exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the attachment cache for the web application
+     *
+     */
+    public static AttachmentCache getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            AttachmentCache cache =
+                (AttachmentCache)sc.getAttribute(ATTRIBUTE);
+            if (cache == null) {
+                cache = new AttachmentCache(Math.max(0,
+                    MailDispatcher.getIntParameter(sc, SIZE_PARAM,
+                                                   16 * 1024 * 1024)));
+                sc.setAttribute(ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * get the body part attaching a file
+     *
+     * @param file  the file
+     *
+     * @return - a new part, sharing the encoded content of the file with
+     *           the other parts attaching it
+     *
+     * @throws MessagingException  thrown when the part cannot be created
+     * @throws IOException  thrown when the file cannot be read
+     *
+     */
+    public MimeBodyPart getPart(File file)
+        throws MessagingException, IOException {
+        MimeBodyPart part = new FileBodyPart(file);
+        if (budget <= 0 || file.length() > budget) {
+            return part;
+        }
+
+        String key = file.getPath() + "|" + file.length() + "|" +
+            file.lastModified();
+        EncodedBodyPart cached;
+        synchronized (parts) {
+            cached = parts.get(key);
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.copy();
+        }
+        misses.incrementAndGet();
+
+        // encode outside the lock, two threads may encode the same file
+        EncodedBodyPart encoded = EncodedBodyPart.encode(part, true);
+        if (encoded.getEncodedSize() > budget) {
+            return encoded;
+        }
+        synchronized (parts) {
+            EncodedBodyPart old = parts.put(key, encoded);
+            if (old != null) {
+                used -= old.getEncodedSize();
+            }
+            used += encoded.getEncodedSize();
+            for (Iterator<EncodedBodyPart> i = parts.values().iterator();
+                    used > budget && i.hasNext(); ) {
+                used -= i.next().getEncodedSize();
+                i.remove();
+            }
+        }
+        return encoded.copy();
+    }
+
+    /**
+     * get the number of attachments found in the cache
+     *
+     * @return - number of hits
+     *
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of attachments that had to be encoded
+     *
+     * @return - number of misses
+     *
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * get the number of bytes of encoded content held
+     *
+     * @return - bytes held
+     *
+     */
+    public long getUsed() {
+        synchronized (parts) {
+            return used;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * CircuitBreaker - stops sending to a SMTP relay whose connections or sends
+ *                  keep failing.
+ *
+ * <p>
+ * The breaker is <i>closed</i> while the relay works, every message is let
+ * through and the outcome of the last <i>window</i> messages is kept.  Once
+ * at least <i>minimumCalls</i> outcomes are known and the share of failures
+ * among them reaches the failure rate the breaker <i>opens</i>: messages to
+ * the relay fail at once, without a connection being tried, for the open
+ * time.  The breaker is then <i>half open</i> and lets <i>probes</i> messages
+ * through.  If they all succeed the breaker closes again, the first failure
+ * opens it for another open time.
+ * </p>
+ *
+ * <p>
+ * Each message let through by allow must be followed by exactly one call of
+ * succeeded, failed or release.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker
+     */
+    public final static int CLOSED = 0;
+    public final static int OPEN = 1;
+    public final static int HALF_OPEN = 2;
+
+    /**
+     * outcomes of the last messages, true for a failure
+     */
+    private final boolean[] outcomes;
+    private int next = 0;
+    private int calls = 0;
+    private int failures = 0;
+
+    private final int minimumCalls;
+    private final int failureRate;
+    private final long openTime;
+    private final int probes;
+
+    private int state = CLOSED;
+
+    /**
+     * time the open breaker becomes half open
+     */
+    private long openUntil = 0;
+
+    /**
+     * probes let through and probes succeeded while half open
+     */
+    private int probing = 0;
+    private int probed = 0;
+
+    /**
+     * create a closed circuit breaker
+     *
+     * @param window  number of outcomes the failure rate is computed over
+     * @param minimumCalls  number of outcomes needed before the breaker may
+     *                      open
+     * @param failureRate  percentage of failures that opens the breaker
+     * @param openTime  milliseconds the breaker stays open
+     * @param probes  number of messages let through while half open
+     */
+    public CircuitBreaker(int window, int minimumCalls, int failureRate,
+                          long openTime, int probes) {
+        outcomes = new boolean[Math.max(1, window)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls,
+                                                 outcomes.length));
+        this.failureRate = failureRate;
+        this.openTime = openTime;
+        this.probes = Math.max(1, probes);
+    }
+
+    /**
+     * ask to send a message through the relay
+     *
+     * @return - true if the message may be sent
+     *
+     */
+    public synchronized boolean allow() {
+        if (state == OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            state = HALF_OPEN;
+            probing = 0;
+            probed = 0;
+        }
+        if (state == HALF_OPEN) {
+            if (probing >= probes) {
+                return false;
+            }
+            probing++;
+        }
+        return true;
+    }
+
+    /**
+     * check, without taking a probe, whether a message would be let through
+     *
+     * @return - false while the breaker is open or all probes are out
+     *
+     */
+    public synchronized boolean isAvailable() {
+        if (state == OPEN) {
+            return System.currentTimeMillis() >= openUntil;
+        }
+        return state == CLOSED || probing < probes;
+    }
+
+    /**
+     * record a message the relay accepted
+     */
+    public synchronized void succeeded() {
+        if (state == HALF_OPEN) {
+            if (++probed >= probes) {
+                close();
+            }
+            return;
+        }
+        record(false);
+    }
+
+    /**
+     * record a failed connection or send
+     */
+    public synchronized void failed() {
+        if (state == HALF_OPEN) {
+            open();
+            return;
+        }
+        if (state == CLOSED) {
+            record(true);
+            if (calls >= minimumCalls &&
+                    failures * 100 >= failureRate * calls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * give back a message that was let through but not sent for a reason
+     * that says nothing about the relay
+     */
+    public synchronized void release() {
+        if (state == HALF_OPEN && probing > 0) {
+            probing--;
+        }
+    }
+
+    /**
+     * get the state of the breaker
+     *
+     * @return - CLOSED, OPEN or HALF_OPEN
+     *
+     */
+    public synchronized int getState() {
+        if (state == OPEN && System.currentTimeMillis() >= openUntil) {
+            return HALF_OPEN;
+        }
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (calls == outcomes.length) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open() {
+        state = OPEN;
+        openUntil = System.currentTimeMillis() + openTime;
+    }
+
+    private void close() {
+        state = CLOSED;
+        next = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    /**
+     * OpenException - thrown instead of connecting to a relay whose breaker
+     *                 is open
+     */
+    public static class OpenException extends MessagingException {
+
+        private final static long serialVersionUID = 1L;
+
+        OpenException(String relay) {
+            super("The circuit breaker of relay " + relay + " is open.");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * DeadLetterSink - receives the messages the dispatcher gives up on, either
+ *                  because the failure was permanent or because the maximum
+ *                  number of attempts was reached.
+ *
+ * <p>
+ * A sink is set with the <i>org.apache.taglibs.mailer.deadLetterSink</i>
+ * context parameter, which names a class with a public no argument
+ * constructor.  By default dead letters are written to the log of the
+ * servlet context.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public interface DeadLetterSink {
+
+    /**
+     * handle a message that will not be sent
+     *
+     * @param message  the message, it may be held in the queue memory of
+     *                 the dispatcher and is only valid during the call, a
+     *                 sink keeping it must copy it with writeTo
+     * @param recipients  the addresses the message was not delivered to
+     * @param reason  the exception of the last attempt
+     * @param attempts  number of attempts made
+     *
+     */
+    void deadLetter(MimeMessage message, Address[] recipients,
+                    MessagingException reason, int attempts);
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+/**
+ * DeliveryListener - told about the outcome of every message the dispatcher
+ *                    is done with, whether it was delivered or given up on.
+ *
+ * <p>
+ * Listeners are named, separated by commas, by the
+ * <i>org.apache.taglibs.mailer.deliveryListener</i> context parameter, each
+ * a class with a public no argument constructor, or are added with
+ * MailDispatcher.addDeliveryListener.  They are called on a sending thread
+ * and should return quickly.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public interface DeliveryListener {
+
+    /**
+     * handle the outcome of a message
+     *
+     * @param result  the outcome
+     *
+     */
+    void delivered(DeliveryResult result);
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+
+/**
+ * DeliveryResult - the outcome of sending a message, published by the
+ *                  <b>send</b> tag as a CompletableFuture and passed to the
+ *                  DeliveryListeners.
+ *
+ * <p>
+ * A message that could not be delivered to some or all of its recipients
+ * still completes the future normally, the rejected recipients and the
+ * exception of the last attempt tell what went wrong.  A message dropped
+ * because a message with the same idempotency key was sent recently is a
+ * duplicate, it has the message id of the earlier message if it is known
+ * and no accepted or rejected recipients.  A message sent in several
+ * envelopes, because it has more recipients than one SMTP transaction may
+ * take, has one result combining the results of its envelopes.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class DeliveryResult {
+
+    private final String messageId;
+    private final Address[] accepted;
+    private final Address[] rejected;
+    private final MessagingException exception;
+    private final int attempts;
+    private final long submitted;
+    private final long completed;
+    private final boolean duplicate;
+
+    DeliveryResult(String messageId, Address[] accepted, Address[] rejected,
+                   MessagingException exception, int attempts,
+                   long submitted, long completed) {
+        this(messageId, accepted, rejected, exception, attempts, submitted,
+             completed, false);
+    }
+
+    private DeliveryResult(String messageId, Address[] accepted,
+                           Address[] rejected, MessagingException exception,
+                           int attempts, long submitted, long completed,
+                           boolean duplicate) {
+        this.messageId = messageId;
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.exception = exception;
+        this.attempts = attempts;
+        this.submitted = submitted;
+        this.completed = completed;
+        this.duplicate = duplicate;
+    }
+
+    /**
+     * create the result of a message dropped as a duplicate
+     *
+     * @param messageId  the message id of the earlier message, may be null
+     *
+     * @return - the result
+     *
+     */
+    static DeliveryResult duplicate(String messageId) {
+        long now = System.currentTimeMillis();
+        return new DeliveryResult(messageId, new Address[0], new Address[0],
+                                  null, 0, now, now, true);
+    }
+
+    /**
+     * combine the results of the envelopes of one message
+     *
+     * @param parts  the result of each envelope
+     *
+     * @return - the result of the message, the exception is that of the
+     *           first envelope that failed and the attempts those of the
+     *           envelope that took the most
+     *
+     */
+    static DeliveryResult combine(List<DeliveryResult> parts) {
+        String messageId = null;
+        List<Address> accepted = new ArrayList<Address>();
+        List<Address> rejected = new ArrayList<Address>();
+        MessagingException exception = null;
+        int attempts = 0;
+        long submitted = Long.MAX_VALUE;
+        long completed = 0;
+        for (DeliveryResult part : parts) {
+            if (messageId == null) {
+                messageId = part.messageId;
+            }
+            accepted.addAll(Arrays.asList(part.accepted));
+            rejected.addAll(Arrays.asList(part.rejected));
+            if (exception == null) {
+                exception = part.exception;
+            }
+            attempts = Math.max(attempts, part.attempts);
+            submitted = Math.min(submitted, part.submitted);
+            completed = Math.max(completed, part.completed);
+        }
+        return new DeliveryResult(messageId,
+            accepted.toArray(new Address[accepted.size()]),
+            rejected.toArray(new Address[rejected.size()]), exception,
+            attempts, submitted, completed);
+    }
+
+    /**
+     * get the Message-ID header of the message
+     *
+     * @return - the message id
+     *
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * get the recipients the SMTP host accepted the message for
+     *
+     * @return - the accepted addresses, never null
+     *
+     */
+    public Address[] getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * get the recipients the message was not delivered to
+     *
+     * @return - the rejected addresses, never null
+     *
+     */
+    public Address[] getRejected() {
+        return rejected;
+    }
+
+    /**
+     * get the exception of the last failed attempt
+     *
+     * @return - the exception or null if the message was accepted for every
+     *           recipient
+     *
+     */
+    public MessagingException getException() {
+        return exception;
+    }
+
+    /**
+     * check whether the message was accepted for every recipient
+     *
+     * @return - true if no recipient was rejected
+     *
+     */
+    public boolean isSuccess() {
+        return rejected.length == 0 && exception == null;
+    }
+
+    /**
+     * check whether the message was dropped because a message with the same
+     * idempotency key was sent recently
+     *
+     * @return - true for a duplicate, which counts as a success
+     *
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * get the number of attempts made to send the message
+     *
+     * @return - number of attempts
+     *
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * get the time the message was handed to the dispatcher
+     *
+     * @return - the submit time
+     *
+     */
+    public Date getSubmitted() {
+        return new Date(submitted);
+    }
+
+    /**
+     * get the time the dispatcher was done with the message
+     *
+     * @return - the completion time
+     *
+     */
+    public Date getCompleted() {
+        return new Date(completed);
+    }
+
+    /**
+     * get the time from submit to completion
+     *
+     * @return - milliseconds
+     *
+     */
+    public long getDuration() {
+        return completed - submitted;
+    }
+
+    public String toString() {
+        return "DeliveryResult[" + messageId + ", accepted " +
+               accepted.length + ", rejected " + rejected.length +
+               ", attempts " + attempts + ", " + getDuration() + " ms" +
+               (duplicate ? ", duplicate]" : "]");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+/**
+ * EncodedBodyPart - a body part whose content has already been transfer
+ *                   encoded, it is written out as it is instead of being
+ *                   encoded again for every message.
+ *
+ * <p>
+ * The encoded content is kept in a ByteBuffer, which may be direct so that
+ * cached attachments stay out of the heap.  A part can only be in one
+ * message at a time, copy gives another part sharing the same content.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+class EncodedBodyPart extends MimeBodyPart {
+
+    /**
+     * the header lines of the part
+     */
+    private final String[] lines;
+
+    /**
+     * the encoded content, never changed
+     */
+    private final ByteBuffer content;
+
+    private EncodedBodyPart(String[] lines, ByteBuffer content)
+        throws MessagingException {
+        super(getHeaders(lines), null);
+        this.lines = lines;
+        this.content = content;
+    }
+
+    /**
+     * encode a part once
+     *
+     * @param part  the part, its headers are updated
+     * @param direct  true to keep the encoded content out of the heap
+     *
+     * @return - the encoded part
+     *
+     */
+    static EncodedBodyPart encode(MimeBodyPart part, boolean direct)
+        throws MessagingException, IOException {
+        if (part instanceof EncodedBodyPart) {
+            return ((EncodedBodyPart)part).copy();
+        }
+        // saving a message sets the content type and transfer encoding of
+        // its parts
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        MimeMessage scratch = new MimeMessage((Session)null);
+        scratch.setContent(multipart);
+        scratch.saveChanges();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        part.writeTo(bytes);
+        MimeBodyPart parsed =
+            new MimeBodyPart(new ByteArrayInputStream(bytes.toByteArray()));
+        List<String> lines = new ArrayList<String>();
+        for (Enumeration<String> e = parsed.getAllHeaderLines();
+                e.hasMoreElements(); ) {
+            lines.add(e.nextElement());
+        }
+
+        bytes.reset();
+        InputStream in = parsed.getRawInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer content;
+        if (direct) {
+            content = ByteBuffer.allocateDirect(bytes.size());
+            content.put(bytes.toByteArray());
+            content.flip();
+        } else {
+            content = ByteBuffer.wrap(bytes.toByteArray());
+        }
+        return new EncodedBodyPart(lines.toArray(new String[lines.size()]),
+                                   content.asReadOnlyBuffer());
+    }
+
+    /**
+     * create a part from a text body the TransferEncoder encoded
+     *
+     * @param type  the content type of the body, with its character set
+     * @param encoded  the encoded body
+     *
+     * @return - the part
+     *
+     */
+    static EncodedBodyPart create(String type,
+                                  TransferEncoder.Encoded encoded)
+        throws MessagingException {
+        return new EncodedBodyPart(new String[] {
+                "Content-Type: " + type,
+                "Content-Transfer-Encoding: " + encoded.getEncoding() },
+            encoded.getContent());
+    }
+
+    /**
+     * create another part sharing the content of this one
+     *
+     * @return - the copy
+     *
+     */
+    EncodedBodyPart copy() throws MessagingException {
+        return new EncodedBodyPart(lines, content);
+    }
+
+    /**
+     * get the number of bytes of the encoded content
+     *
+     * @return - size in bytes
+     *
+     */
+    int getEncodedSize() {
+        return content.remaining();
+    }
+
+    public int getSize() {
+        return content.remaining();
+    }
+
+    protected InputStream getContentStream() {
+        return new BufferInputStream(content.duplicate());
+    }
+
+    private static InternetHeaders getHeaders(String[] lines) {
+        InternetHeaders headers = new InternetHeaders();
+        for (int i = 0; i < lines.length; i++) {
+            headers.addHeaderLine(lines[i]);
+        }
+        return headers;
+    }
+
+    /**
+     * BufferInputStream - reads a ByteBuffer
+     */
+    static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
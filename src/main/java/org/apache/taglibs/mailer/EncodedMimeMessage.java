@@ -0,0 +1,84 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * EncodedMimeMessage - a message whose body may have been transfer encoded
+ *                      already, it is then written out as it is on every
+ *                      attempt instead of being encoded again.
+ *
+ * <p>
+ * Until setEncodedContent is called, or once the content is set in any other
+ * way, the message behaves as a plain MimeMessage.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+class EncodedMimeMessage extends MimeMessage {
+
+    /**
+     * the encoded body, null when the content is set the usual way
+     */
+    private ByteBuffer encoded = null;
+
+    EncodedMimeMessage(Session session) {
+        super(session);
+    }
+
+    /**
+     * set a text body the TransferEncoder encoded
+     *
+     * @param type  the content type of the body, with its character set
+     * @param body  the encoded body
+     *
+     */
+    void setEncodedContent(String type, TransferEncoder.Encoded body)
+        throws MessagingException {
+        // drops any content set before along with its content headers
+        super.setDataHandler(null);
+        setHeader("Content-Type", type);
+        setHeader("Content-Transfer-Encoding", body.getEncoding());
+        encoded = body.getContent();
+    }
+
+    public void setDataHandler(DataHandler dh) throws MessagingException {
+        encoded = null;
+        super.setDataHandler(dh);
+    }
+
+    public int getSize() throws MessagingException {
+        if (encoded != null) {
+            return encoded.remaining();
+        }
+        return super.getSize();
+    }
+
+    protected InputStream getContentStream() throws MessagingException {
+        if (encoded != null) {
+            return new EncodedBodyPart.BufferInputStream(encoded.duplicate());
+        }
+        return super.getContentStream();
+    }
+}
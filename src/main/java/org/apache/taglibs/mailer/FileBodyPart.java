@@ -0,0 +1,117 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+import jakarta.activation.DataHandler;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+
+/**
+ * FileBodyPart - a body part attaching a file, base64 encoded in large
+ *                blocks straight into the stream the message is written to.
+ *
+ * <p>
+ * The file is read through its FileChannel into one block buffer and each
+ * block is encoded into one output buffer, both reused until the whole file
+ * is written, so the heap used does not grow with the size of the file.
+ * The transfer encoding is set to base64 up front, which also spares the
+ * read of the whole file JavaMail would do to choose it.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+class FileBodyPart extends MimeBodyPart {
+
+    /**
+     * bytes encoded at a time, a multiple of the 57 bytes of one line
+     */
+    private final static int BLOCK = 57 * 1024;
+
+    private final static byte[] CRLF = { '\r', '\n' };
+
+    private final File file;
+
+    /**
+     * create a part attaching a file
+     *
+     * @param file  the file
+     *
+     */
+    FileBodyPart(File file) throws MessagingException {
+        this.file = file;
+        setDataHandler(new DataHandler(new FileDataSource(file)));
+        setFileName(file.getName());
+        setHeader("Content-Transfer-Encoding", "base64");
+    }
+
+    /**
+     * write the headers and the encoded file
+     *
+     * @param os  the stream the message is written to
+     *
+     */
+    public void writeTo(OutputStream os)
+        throws IOException, MessagingException {
+        for (Enumeration<String> e = getAllHeaderLines();
+                e.hasMoreElements(); ) {
+            os.write(e.nextElement().getBytes(StandardCharsets.UTF_8));
+            os.write(CRLF);
+        }
+        os.write(CRLF);
+
+        Base64.Encoder encoder = Base64.getMimeEncoder();
+        byte[] block = new byte[BLOCK];
+        byte[] encoded = new byte[BLOCK / 57 * 78];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while (true) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // fill the block
+                }
+                int n = buffer.position();
+                if (n == 0) {
+                    break;
+                }
+                // a block ends on a line, the line break between two blocks
+                // is written here
+                int length = encoder.encode(n == BLOCK ? block :
+                                            Arrays.copyOf(block, n), encoded);
+                os.write(encoded, 0, length);
+                os.write(CRLF);
+                if (n < BLOCK) {
+                    break;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.IllegalWriteException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimePartDataSource;
+import jakarta.mail.util.SharedByteArrayInputStream;
+
+/**
+ * FrozenMessage - a message rendered once into the bytes that are sent,
+ *                 its headers and message id never change again and every
+ *                 delivery attempt, envelope and spool write copies the same
+ *                 bytes instead of walking and encoding the message again.
+ *
+ * <p>
+ * The bytes are the message as the SMTP transport writes it, without the
+ * Bcc and Content-Length headers.  The Bcc header is kept aside so that the
+ * recipients of the message are still known and so that the message written
+ * to the spool still has it.  The message is read back from the bytes
+ * without copying its content and can no longer be changed.  When the
+ * dispatcher has a queue memory budget the message is written straight into
+ * the pages of its SlabStore instead of a byte array, the jobs sending the
+ * message share them and the last job done with the message gives them
+ * back.  Freezing runs on the thread of the request sending the message,
+ * which waits for pages as long as the timeout given when the budget is
+ * used up.
+ * </p>
+ *
+ * <p>
+ * A message attaching a file or written from a body spilled to a file is
+ * not frozen, copying it into memory would undo the streaming of its
+ * content.  Only its headers are updated, and its content is encoded from
+ * the file each time it is written.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+class FrozenMessage extends MimeMessage {
+
+    /**
+     * the headers left out of the bytes, as the SMTP transport leaves them
+     * out
+     */
+    private final static String[] HIDDEN = { "Bcc", "Content-Length" };
+
+    private final static byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * the message as it is sent, null when it is held in pages
+     */
+    private final byte[] image;
+
+    /**
+     * the pages holding the message, null when it is on the heap
+     */
+    private final SlabStore.Pages pages;
+
+    /**
+     * the Bcc header lines
+     */
+    private final String[] hidden;
+
+    /**
+     * true once the message is built, it cannot be changed after that
+     */
+    private boolean frozen = false;
+
+    private FrozenMessage(Session session, byte[] image, String[] hidden)
+        throws MessagingException {
+        super(session, new SharedByteArrayInputStream(image));
+        this.image = image;
+        this.pages = null;
+        this.hidden = hidden;
+        for (int i = 0; i < hidden.length; i++) {
+            super.addHeaderLine(hidden[i]);
+        }
+        frozen = true;
+    }
+
+    private FrozenMessage(Session session, SlabStore.Pages pages,
+                          String[] hidden) throws MessagingException {
+        super(session, pages.newStream(0, -1));
+        this.image = null;
+        this.pages = pages;
+        this.hidden = hidden;
+        for (int i = 0; i < hidden.length; i++) {
+            super.addHeaderLine(hidden[i]);
+        }
+        frozen = true;
+    }
+
+    /**
+     * update the headers of a message and render it
+     *
+     * @param message  the message, its headers are updated
+     *
+     * @return - the frozen message, the message itself if it already is one
+     *
+     * @throws MessagingException  thrown when the message cannot be written
+     *
+     */
+    static FrozenMessage freeze(MimeMessage message)
+        throws MessagingException {
+        return freeze(message, null, 0);
+    }
+
+    /**
+     * update the headers of a message and render it into the pages of a
+     * store, the calling thread waits for room in the store
+     *
+     * @param message  the message, its headers are updated
+     * @param store  the store, null to keep the message on the heap
+     * @param timeout  milliseconds to wait for room in the store
+     *
+     * @return - the frozen message, the message itself if it already is one,
+     *           or null if the store had no room for it before the timeout
+     *
+     * @throws MessagingException  thrown when the message cannot be written
+     *
+     */
+    static FrozenMessage freeze(MimeMessage message, SlabStore store,
+                                long timeout) throws MessagingException {
+        if (message instanceof FrozenMessage) {
+            return (FrozenMessage)message;
+        }
+        message.saveChanges();
+        return render(message, store, timeout);
+    }
+
+    /**
+     * find out whether a message is written from files, a FileBodyPart or a
+     * body spilled out of memory, and is better left unfrozen
+     *
+     * @param part  the message or one of its parts
+     *
+     * @return - true if some of the content is streamed from a file
+     *
+     */
+    static boolean isStreamed(Part part) {
+        try {
+            if (part instanceof FileBodyPart) {
+                return true;
+            }
+            SpillBuffer buffer = SpillBuffer.getBuffer(part);
+            if (buffer != null) {
+                return buffer.isSpilled();
+            }
+            DataHandler dh = part.getDataHandler();
+            DataSource source = dh.getDataSource();
+            // only a multipart built by the tags is looked into, the type of
+            // the handler is used as the headers are not set yet
+            if (source instanceof MimePartDataSource ||
+                !new ContentType(dh.getContentType()).match("multipart/*")) {
+                return false;
+            }
+            Object content = dh.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart)content;
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    if (isStreamed(multipart.getBodyPart(i))) {
+                        return true;
+                    }
+                }
+            }
+        } catch (MessagingException me) {
+            // frozen, the error shows when the message is written
+        } catch (IOException ie) {
+            // frozen, the error shows when the message is written
+        }
+        return false;
+    }
+
+    /**
+     * let go of a message returned by the dispatcher, if it is frozen
+     *
+     * @param message  the message
+     *
+     */
+    static void release(MimeMessage message) {
+        if (message instanceof FrozenMessage) {
+            ((FrozenMessage)message).release();
+        }
+    }
+
+    /**
+     * read back a message written to the spool
+     *
+     * @param session  the session the message is sent with
+     * @param bytes  the message, with its Bcc header
+     *
+     * @return - the frozen message
+     *
+     */
+    static FrozenMessage read(Session session, byte[] bytes)
+        throws MessagingException {
+        // the headers of a spooled message are final, a parsed message is
+        // written as it was read and keeps its message id
+        return render(new MimeMessage(session,
+                                      new ByteArrayInputStream(bytes)),
+                      null, 0);
+    }
+
+    /**
+     * write a message whose headers are final into a frozen message, in the
+     * pages of a store or on the heap
+     *
+     * @param message  the message
+     * @param store  the store, null to keep the message on the heap
+     * @param timeout  milliseconds to wait for room in the store
+     *
+     * @return - the frozen message or null if the store had no room for it
+     *           before the timeout
+     *
+     * @throws MessagingException  thrown when the message cannot be written
+     *
+     */
+    static FrozenMessage render(MimeMessage message, SlabStore store,
+                                long timeout) throws MessagingException {
+        List<String> lines = new ArrayList<String>();
+        for (Enumeration<String> e = message.getMatchingHeaderLines(
+                 new String[] { "Bcc" }); e.hasMoreElements(); ) {
+            lines.add(e.nextElement());
+        }
+        String[] hidden = lines.toArray(new String[lines.size()]);
+        if (store == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(message, bytes);
+            return new FrozenMessage(message.getSession(),
+                                     bytes.toByteArray(), hidden);
+        }
+
+        // the pages are taken as the message is written
+        SlabStore.PageOutputStream out = store.newOutputStream(timeout);
+        SlabStore.Pages pages;
+        try {
+            write(message, out);
+            if (out.isCounted()) {
+                // the store ran out of room part way, wait for room for the
+                // whole message without holding any and write it again
+                if (!out.rewind()) {
+                    return null;
+                }
+                write(message, out);
+                if (out.isCounted()) {
+                    // it did not come out the same size
+                    out.discard();
+                    return null;
+                }
+            }
+            pages = out.toPages();
+        } catch (MessagingException me) {
+            out.discard();
+            if (out.isFull()) {
+                return null;
+            }
+            throw me;
+        }
+        try {
+            return new FrozenMessage(message.getSession(), pages, hidden);
+        } catch (MessagingException me) {
+            pages.release();
+            throw me;
+        }
+    }
+
+    /**
+     * write a message as it is frozen, without the hidden headers
+     */
+    private static void write(MimeMessage message, OutputStream out)
+        throws MessagingException {
+        try {
+            message.writeTo(out, HIDDEN);
+        } catch (IOException ie) {
+            throw new MessagingException("The message could not be " +
+                                         "written:  " + ie.getMessage(), ie);
+        }
+    }
+
+    /**
+     * find out whether the message is held in the pages of a store
+     *
+     * @return - true if the message is not on the heap
+     *
+     */
+    boolean isHeld() {
+        return pages != null;
+    }
+
+    /**
+     * add a job sharing the message
+     */
+    void retain() {
+        if (pages != null) {
+            pages.retain();
+        }
+    }
+
+    /**
+     * let go of the message, its pages are given back to the store once
+     * every job sharing it has let go and it must not be read after that
+     */
+    void release() {
+        if (pages != null) {
+            pages.release();
+        }
+    }
+
+    /**
+     * write the message, the bytes rendered when it was frozen are copied as
+     * they are unless headers other than Bcc and Content-Length are to be
+     * left out
+     *
+     * @param os  the stream to write to
+     * @param ignoreList  the headers to leave out, may be null
+     *
+     */
+    public void writeTo(OutputStream os, String[] ignoreList)
+        throws IOException, MessagingException {
+        boolean bcc = true;
+        if (ignoreList != null) {
+            for (int i = 0; i < ignoreList.length; i++) {
+                if (ignoreList[i].equalsIgnoreCase("Bcc")) {
+                    bcc = false;
+                } else if (!ignoreList[i].equalsIgnoreCase("Content-Length")
+                           && getHeader(ignoreList[i]) != null) {
+                    super.writeTo(os, ignoreList);
+                    return;
+                }
+            }
+        }
+        if (bcc) {
+            for (int i = 0; i < hidden.length; i++) {
+                os.write(hidden[i].getBytes(StandardCharsets.UTF_8));
+                os.write(CRLF);
+            }
+        }
+        if (pages != null) {
+            pages.writeTo(os);
+        } else {
+            os.write(image);
+        }
+    }
+
+    /**
+     * the headers were updated when the message was frozen
+     */
+    public void saveChanges() {
+    }
+
+    public void setDataHandler(DataHandler dh) throws MessagingException {
+        checkFrozen();
+        super.setDataHandler(dh);
+    }
+
+    public void setHeader(String name, String value)
+        throws MessagingException {
+        checkFrozen();
+        super.setHeader(name, value);
+    }
+
+    public void addHeader(String name, String value)
+        throws MessagingException {
+        checkFrozen();
+        super.addHeader(name, value);
+    }
+
+    public void removeHeader(String name) throws MessagingException {
+        checkFrozen();
+        super.removeHeader(name);
+    }
+
+    public void addHeaderLine(String line) throws MessagingException {
+        checkFrozen();
+        super.addHeaderLine(line);
+    }
+
+    private void checkFrozen() throws MessagingException {
+        if (frozen) {
+            throw new IllegalWriteException("The message was already " +
+                                            "queued and cannot be changed.");
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * IdempotencyCache - remembers the idempotency keys of the messages sent
+ *                    recently so that a message sent again with the same
+ *                    key, by a form submitted twice for instance, is dropped.
+ *
+ * <p>
+ * A key is remembered for the length of the window and at most
+ * <i>size</i> keys are kept, the oldest are forgotten first.  When the cache
+ * has a file every new key is appended to it and the keys still within the
+ * window are read back when the cache is created, so that a restart does not
+ * let duplicates through.  The file is rewritten with only the live keys
+ * when it has grown to twice the size of the cache.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class IdempotencyCache {
+
+    /**
+     * the keys in the order they were added, mapped to their entry
+     */
+    private final Map<String, Entry> keys;
+
+    /**
+     * milliseconds a key is remembered
+     */
+    private final long window;
+
+    /**
+     * maximum number of keys remembered
+     */
+    private final int size;
+
+    /**
+     * the file the keys are kept in, null if they are only kept in memory
+     */
+    private final File file;
+    private DataOutputStream out = null;
+    private int records = 0;
+
+    /**
+     * create a cache
+     *
+     * @param size  maximum number of keys remembered
+     * @param window  milliseconds a key is remembered
+     * @param file  file the keys are kept in, null to keep them in memory
+     *
+     * @throws IOException  thrown when the file cannot be read or written
+     *
+     */
+    public IdempotencyCache(int size, long window, File file)
+        throws IOException {
+        this.size = size;
+        this.window = window;
+        this.file = file;
+        keys = new Keys(size);
+        if (file != null) {
+            load();
+            rewrite();
+        }
+    }
+
+    /**
+     * remember a key unless it is remembered already
+     *
+     * @param key  the idempotency key
+     *
+     * @return - true if the key is new, false if a message with the same key
+     *           was sent within the window
+     *
+     */
+    public synchronized boolean add(String key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (keys.containsKey(key)) {
+            return false;
+        }
+        keys.put(key, new Entry(now));
+        if (out != null) {
+            try {
+                write(out, key, now);
+                out.flush();
+                if (++records > 2 * size) {
+                    rewrite();
+                }
+            } catch (IOException ie) {
+                // keep going in memory, a restart may let a duplicate through
+                close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * forget a key, used when the message could not be queued so that it
+     * can be sent again
+     *
+     * @param key  the idempotency key
+     *
+     */
+    public synchronized void remove(String key) {
+        keys.remove(key);
+        // the key stays in the file until the next rewrite, which is no
+        // worse than a resubmit being dropped after a restart
+    }
+
+    /**
+     * remember the message id of the message sent with a key
+     *
+     * @param key  the idempotency key
+     * @param messageId  the Message-ID header of the message
+     *
+     */
+    public synchronized void setMessageId(String key, String messageId) {
+        Entry entry = keys.get(key);
+        if (entry != null) {
+            entry.messageId = messageId;
+        }
+    }
+
+    /**
+     * get the message id of the message sent with a key
+     *
+     * @param key  the idempotency key
+     *
+     * @return - the message id or null if it is not known
+     *
+     */
+    public synchronized String getMessageId(String key) {
+        Entry entry = keys.get(key);
+        return entry == null ? null : entry.messageId;
+    }
+
+    /**
+     * get the number of keys remembered
+     *
+     * @return - number of keys
+     *
+     */
+    public synchronized int getSize() {
+        expire(System.currentTimeMillis());
+        return keys.size();
+    }
+
+    /**
+     * close the file of the cache
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ie) {
+                // nothing more to write
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * forget the keys older than the window, they are at the head
+     */
+    private void expire(long now) {
+        for (Iterator<Entry> i = keys.values().iterator(); i.hasNext(); ) {
+            if (now - i.next().added < window) {
+                break;
+            }
+            i.remove();
+        }
+    }
+
+    /**
+     * read the keys of the file, a torn last record is ignored
+     */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                long added = in.readLong();
+                String key = in.readUTF();
+                keys.remove(key);
+                keys.put(key, new Entry(added));
+            }
+        } catch (EOFException eofe) {
+            // end of the file
+        } finally {
+            in.close();
+        }
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * write the live keys to a new file and replace the old one with it
+     */
+    private void rewrite() throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpout = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<String, Entry> e : keys.entrySet()) {
+                write(tmpout, e.getKey(), e.getValue().added);
+            }
+        } finally {
+            tmpout.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file, true)));
+        records = keys.size();
+    }
+
+    private static void write(DataOutputStream out, String key, long added)
+        throws IOException {
+        out.writeLong(added);
+        out.writeUTF(key);
+    }
+
+    /**
+     * Keys - the keys in the order they were added, the oldest is dropped
+     *        once there are more than the maximum
+     */
+    private static class Keys extends LinkedHashMap<String, Entry> {
+
+        private final static long serialVersionUID = 1L;
+
+        private final int max;
+
+        Keys(int max) {
+            super(16, 0.75f, false);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+            return size() > max;
+        }
+    }
+
+    /**
+     * when a key was added and the message it was sent with
+     */
+    private static class Entry {
+        final long added;
+        volatile String messageId = null;
+
+        Entry(long added) {
+            this.added = added;
+        }
+    }
+}
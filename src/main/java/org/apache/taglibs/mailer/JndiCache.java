@@ -0,0 +1,168 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import jakarta.servlet.ServletContext;
+
+/**
+ * JndiCache - keeps the Session and MimePartDataSource objects looked up for
+ *             the <b>session</b> and <b>mimeMessage</b> attributes of the
+ *             <b>mail</b> tag so that the naming context is only searched
+ *             once for each name.
+ *
+ * <p>
+ * An object is looked up the first time its name is used.  If the
+ * <i>org.apache.taglibs.mailer.jndiCacheTimeout</i> context parameter is set
+ * to a number of milliseconds greater than 0, the object is looked up again
+ * once it has been cached for that long, otherwise it is kept for the life
+ * of the web application.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class JndiCache {
+
+    /**
+     * The context parameter name
+     */
+    public final static String TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.jndiCacheTimeout";
+
+    /**
+     * name of the servlet context attribute the cache is stored under
+     */
+    private final static String ATTRIBUTE = JndiCache.class.getName();
+
+    /**
+     * guards the creation of the cache
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * the cached objects by jndi name
+     */
+    private final ConcurrentMap<String, Entry> entries =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * milliseconds an object is cached, 0 or less caches it forever
+     */
+    private final long timeout;
+
+    /**
+     * create a jndi cache
+     *
+     * @param timeout  milliseconds an object is cached, 0 or less to cache
+     *                 objects forever
+     */
+    public JndiCache(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * get the jndi cache for a web application, creating it if it does not
+     * exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the jndi cache for the web application
+     *
+     */
+    public static JndiCache getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            JndiCache cache = (JndiCache)sc.getAttribute(ATTRIBUTE);
+            if (cache == null) {
+                cache = new JndiCache(
+                    MailDispatcher.getIntParameter(sc, TIMEOUT_PARAM, 0));
+                sc.setAttribute(ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * get the object bound to a jndi name, looking it up if it is not cached
+     * or has expired
+     *
+     * @param name  jndi name of the object
+     *
+     * @return - the object bound to the name
+     *
+     * @throws NamingException  thrown when the lookup fails
+     *
+     */
+    public Object lookup(String name) throws NamingException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(name, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+
+        Object value = entry.value;
+        if (value != null && !entry.isExpired()) {
+            return value;
+        }
+
+        // only one thread looks up a name, the others wait for its result
+        synchronized (entry) {
+            if (entry.value == null || entry.isExpired()) {
+                Context ctx = new InitialContext();
+                try {
+                    value = ctx.lookup(name);
+                } finally {
+                    ctx.close();
+                }
+                entry.expires = timeout > 0 ?
+                    System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+                entry.value = value;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * drop a cached object so that it is looked up again the next time it
+     * is used
+     *
+     * @param name  jndi name of the object
+     *
+     */
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * an object looked up from the naming context and the time it expires
+     */
+    private static class Entry {
+        volatile Object value;
+        volatile long expires;
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
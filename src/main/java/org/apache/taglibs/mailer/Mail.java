@@ -0,0 +1,659 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.servlet.ServletContext;
+import javax.naming.NamingException;
+
+ /**
+  *  Job to actually send the mail.  It could conceivably take some time
+  *  for the mail to be sent.  The job is run by one of the threads of the
+  *  MailDispatcher so that the user will not be bogged down waiting for the
+  *  mail to be sent before they can use their webbrowser again.  Notification
+  *  will also be sent to the from address of the message of mail that could
+  *  not be delivered, and which address it could not be delivered to.  If the
+  *  mail does not contain a from address mail will be sent to user.from
+  *  property.
+  *
+  *  When the dispatcher has a spool the message is written to it before it
+  *  is queued and is only marked as done once it has been delivered.  A job
+  *  created by the drainer of the spool reads the message back from disk.
+  *  A transient failure puts the job back on the dispatcher after the delay
+  *  given by the RetryPolicy, a permanent one hands the message to the
+  *  DeadLetterSink.  Once the job is done with the message, delivered or
+  *  not, the outcome is passed to the DeliveryListeners of the dispatcher and
+  *  completes the future published by the send tag, if any.  A message held
+  *  in the queue memory of the dispatcher is shared by the jobs sending it,
+  *  each job lets go of it once it is done.
+  */
+class Mail implements Runnable {
+
+    private MailDispatcher dispatcher = null;  // runs and retries this job
+    private MimeMessage message = null;  // the message to be sent
+    // used to get the servlet context for logging
+    private ServletContext sc = null;
+    String mailto;  // list of to address this message is being sent to
+    private String key = null;  // pool key of the server this mail goes to
+    private MailRoute route = null;  // how the session of the mail is found
+    private int lane = MailDispatcher.NORMAL_LANE;  // priority lane
+    private Address[] recipients = null;  // envelope, null for all recipients
+    private boolean saved = false;  // true once the message id is remembered
+    private MailSpool spool = null;  // spool holding the message, if any
+    private long spoolid = -1;  // id of the message in the spool
+    private int attempts = 0;  // number of times sending has been tried
+    private boolean waiting = false;  // true while waiting to be sent again
+    private String reserved = null;  // rate limit key a token is held in
+    private final long submitted = System.currentTimeMillis();
+    // recipients the message was accepted and rejected for so far
+    private final List<Address> accepted = new ArrayList<Address>();
+    private final List<Address> rejected = new ArrayList<Address>();
+    // completed with the outcome, null if nobody waits for it
+    private CompletableFuture<DeliveryResult> future = null;
+    private String idempotencyKey = null;  // key the message was sent with
+    private boolean freed = false;  // true once the message was let go of
+    // spilled bodies the message is written from, kept until it is sent
+    private List<SpillBuffer> buffers = null;
+
+    Mail (MailDispatcher maildispatcher, MimeMessage mail, String to,
+	  String poolkey, MailRoute mailroute, int priority) {
+	dispatcher = maildispatcher;
+	sc = dispatcher.getServletContext();
+	message = mail;
+	if (message instanceof FrozenMessage)
+	    ((FrozenMessage)message).retain();
+	else
+	    buffers = SpillBuffer.retainAll(message);
+	mailto = to;
+	key = poolkey;
+	route = mailroute;
+	lane = priority;
+    }
+
+    Mail (MailDispatcher maildispatcher, long id, int priority) {
+	dispatcher = maildispatcher;
+	sc = dispatcher.getServletContext();
+	spool = dispatcher.getSpool();
+	spoolid = id;
+	lane = priority;
+    }
+
+    /**
+     * get the priority lane the message is sent on
+     *
+     * @return - index of the lane
+     *
+     */
+    int getLane() {
+	return lane;
+    }
+
+    /**
+     * write the message to the spool so that it survives a restart, its
+     * headers were made final when the dispatcher froze it
+     *
+     * @param mailspool  the spool to write to
+     *
+     */
+    void spool(MailSpool mailspool) throws MessagingException, IOException {
+	if (!saved)
+	    rememberMessageId();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	message.writeTo(bytes);
+	spoolid = mailspool.append(route, lane, recipients,
+				   bytes.toByteArray());
+	spool = mailspool;
+    }
+
+    /**
+     * find out whether the message is held in the queue memory
+     *
+     * @return - true if the message is kept out of the heap
+     *
+     */
+    boolean isHeld() {
+	return message instanceof FrozenMessage &&
+	    ((FrozenMessage)message).isHeld();
+    }
+
+    /**
+     * let go of a spooled message until the job runs, it is read back from
+     * the spool then
+     */
+    void evict() {
+	free();
+	message = null;
+    }
+
+    /**
+     * let go of the message once the job is done with it or was dropped,
+     * its queue memory is given back when no other job shares it and the
+     * files of its spilled bodies are deleted
+     */
+    void free() {
+	if (!freed) {
+	    if (message instanceof FrozenMessage)
+		((FrozenMessage)message).release();
+	    if (buffers != null)
+		for (SpillBuffer buffer : buffers)
+		    buffer.release();
+	}
+	freed = true;
+    }
+
+    /**
+     * set the future completed with the outcome of the job
+     *
+     * @param result  the future
+     *
+     */
+    void setFuture(CompletableFuture<DeliveryResult> result) {
+	future = result;
+    }
+
+    /**
+     * send the message to part of its recipients only, the headers of the
+     * message must be final as it may be shared with the jobs sending it to
+     * the other recipients
+     *
+     * @param envelope  the recipients of this job
+     *
+     */
+    void setEnvelope(Address[] envelope) {
+	recipients = envelope;
+	saved = true;
+    }
+
+    /**
+     * set the idempotency key the message is sent with, the message id is
+     * remembered with the key once it is known
+     *
+     * @param idkey  the idempotency key
+     *
+     */
+    void setIdempotencyKey(String idkey) {
+	idempotencyKey = idkey;
+    }
+
+    /**
+     * complete the future of a job that will not run because the dispatcher
+     * was shut down
+     */
+    void abandoned() {
+	free();
+	if (spoolid < 0 && idempotencyKey != null)
+	    // nothing is left of the message, the page may send it again
+	    dispatcher.getIdempotencyCache().remove(idempotencyKey);
+	if (future != null && !future.isDone())
+	    future.completeExceptionally(new MessagingException("The mail" +
+		" dispatcher was shut down before the message was sent."));
+    }
+
+    /**
+     * get the route the message is sent by
+     *
+     * @return - the route, null if it is not known yet
+     *
+     */
+    MailRoute getRoute() {
+	return route;
+    }
+
+    /**
+     * get the id of the message in the spool
+     *
+     * @return - the spool id or -1 if the message is not spooled
+     *
+     */
+    long getSpoolId() {
+	return spoolid;
+    }
+
+    public void run() {
+
+	waiting = false;
+	boolean throttled = false;
+	try {
+	    if (message == null) {
+		// the message was queued by the drainer, read it from disk
+		if (!load())
+		    return;
+	    } else if (!saved) {
+		rememberMessageId();
+	    }
+
+	    if (recipients == null)
+		recipients = message.getAllRecipients();
+	    if (recipients == null || recipients.length == 0)
+		throw new SendFailedException("No recipient addresses");
+
+	    attempts++;
+	    String[] relays = route == null ? null : route.getRelays();
+	    if (relays == null || relays.length < 2) {
+		Session session = message.getSession();
+		RelayBalancer.Relay relay = dispatcher.getRelayBalancer()
+		    .getRelay(TransportPool.getServer(session));
+		throttle(relay.getName());
+		MessagingException down = sendThrough(relay, key, session);
+		if (down != null)
+		    throw down;
+	    } else
+		sendThroughRelays(relays);
+	    accepted.addAll(Arrays.asList(recipients));
+	    done(null);
+
+	} catch (RateLimiter.Throttled t) {
+	    // waiting for the rate limit is not an attempt, the token is
+	    // reserved and the message is sent once it is due
+	    attempts--;
+	    waiting = true;
+	    throttled = true;
+	    if (reserved != null)
+		dispatcher.getRateLimiter().release(reserved);
+	    reserved = t.getKey();
+	    dispatcher.retry(this, t.getDelay());
+	} catch (MessagingException me) {
+	    failed(me);
+	} catch (NamingException ne) {
+	    // retried like a connection failure
+	    failed(new MessagingException("Could not find the mail session" +
+		" of spooled e-mail " + spoolid + ":  " + ne.getExplanation(),
+		ne));
+	} catch (IOException ie) {
+	    // the record cannot be read however often it is tried
+	    sc.log("Could not read spooled e-mail " + spoolid + ":  " +
+		   ie.getMessage());
+	    done(new MessagingException("Could not read spooled e-mail " +
+					spoolid + ":  " + ie.getMessage(), ie));
+	} catch (RuntimeException re) {
+	    sc.log("Mailer taglib: could not send the e-mail sent to " +
+		   mailto, re);
+	    free();
+	    if (future != null)
+		future.completeExceptionally(re);
+	} finally {
+	    if (!throttled && reserved != null) {
+		// the message went through another relay or failed before it
+		// used the token reserved for it
+		dispatcher.getRateLimiter().release(reserved);
+		reserved = null;
+	    }
+	    // a message waiting to be sent again stays claimed
+	    if (spool != null && !waiting)
+		spool.release(spoolid);
+	}
+    }
+
+    /**
+     * take a token of the rate limiter for the relay
+     *
+     * @param relay  the relay as host:port
+     *
+     * @throws RateLimiter.Throttled  thrown when the message has to wait
+     *
+     */
+    private void throttle(String relay) throws MessagingException {
+	RateLimiter limiter = dispatcher.getRateLimiter();
+	if (!limiter.isEnabled())
+	    return;
+	Address[] from = message.getFrom();
+	String sender = from != null && from.length > 0 &&
+	    from[0] instanceof InternetAddress ?
+	    ((InternetAddress)from[0]).getAddress() : null;
+	String limitkey = limiter.getKey(relay, sender,
+					 route == null ? null : route.getUser());
+	if (limitkey.equals(reserved)) {
+	    // the token reserved when the message was throttled is due
+	    reserved = null;
+	    return;
+	}
+	long wait = limiter.tryAcquire(limitkey);
+	if (wait > 0)
+	    throw new RateLimiter.Throttled(limitkey, wait);
+    }
+
+    /**
+     * send the message through one relay, keeping its balancing and circuit
+     * breaker state
+     *
+     * @param relay  the relay
+     * @param poolkey  pool key of the relay
+     * @param session  session used to connect to the relay
+     *
+     * @return - null once the message has been sent, otherwise the exception
+     *           telling why the relay could not be used, so that the next
+     *           relay can be tried
+     *
+     * @throws MessagingException  thrown when the message was refused or
+     *                             could not be sent for a reason that would
+     *                             not be different with another relay
+     *
+     */
+    private MessagingException sendThrough(RelayBalancer.Relay relay,
+					   String poolkey, Session session)
+	throws MessagingException {
+	if (!relay.begin())
+	    // fail fast instead of waiting for the connection to time out
+	    return new CircuitBreaker.OpenException(relay.getName());
+	long start = System.currentTimeMillis();
+	TransportPool pool = dispatcher.getTransportPool(lane);
+	Transport transport;
+	try {
+	    transport = pool.borrow(poolkey, session);
+	} catch (TransportPool.WaitException we) {
+	    // a busy pool is not the fault of the relay
+	    relay.released();
+	    throw we;
+	} catch (AuthenticationFailedException afe) {
+	    // the login would be refused by the other relays too
+	    relay.released();
+	    throw afe;
+	} catch (MessagingException me) {
+	    // the relay refused the connection or did not greet
+	    relay.failed(true);
+	    sc.log("Mailer taglib: relay " + relay + " is not available" +
+		   " and is left out for a while:  " + me.getMessage());
+	    return me;
+	} catch (RuntimeException re) {
+	    relay.released();
+	    throw re;
+	}
+
+	boolean broken = true;
+	boolean responded = false;
+	try {
+	    transport.sendMessage(message, recipients);
+	    broken = false;
+	    responded = true;
+	} catch (SendFailedException sfe) {
+	    // the server refused some addresses, the connection is fine, but
+	    // a refused transaction or a 421 tells the relay is not working
+	    responded = isRecipientFailure(sfe);
+	    broken = RetryPolicy.getReturnCode(sfe) == 421;
+	    throw sfe;
+	} finally {
+	    pool.release(poolkey, transport, broken);
+	    if (responded)
+		relay.succeeded(System.currentTimeMillis() - start);
+	    else
+		relay.failed(false);
+	}
+	return null;
+    }
+
+    /**
+     * tell whether a failed send was only the refusal of some recipients by
+     * a relay that otherwise took the transaction
+     *
+     * @param sfe  the exception the send failed with
+     *
+     * @return - false if the relay refused the message as a whole, closed
+     *           the connection with a 421 or accepted none of the recipients
+     *
+     */
+    private static boolean isRecipientFailure(SendFailedException sfe) {
+	if (sfe instanceof SMTPSendFailedException)
+	    // the reply to MAIL FROM or to the message itself
+	    return false;
+	if (RetryPolicy.getReturnCode(sfe) == 421)
+	    return false;
+	return !isEmpty(sfe.getValidSentAddresses()) ||
+	    !isEmpty(sfe.getValidUnsentAddresses());
+    }
+
+    /**
+     * send the message through one of several relays, a relay that cannot
+     * be connected to is ejected and the next one is tried
+     *
+     * @param relays  the relays of the route as host:port
+     *
+     */
+    private void sendThroughRelays(String[] relays)
+	throws MessagingException, NamingException {
+	RelayBalancer balancer = dispatcher.getRelayBalancer();
+	Set<String> tried = new HashSet<String>();
+	MessagingException last = null;
+	RateLimiter.Throttled throttled = null;
+	RelayBalancer.Relay relay;
+	while ((relay = balancer.select(relays, route.getStrategy(), tried))
+		   != null) {
+	    tried.add(relay.getName());
+	    Session session = route.forRelay(relay.getName()).getSession(sc);
+	    if (session == null)
+		// no password known for this relay yet
+		continue;
+	    try {
+		throttle(relay.getName());
+	    } catch (RateLimiter.Throttled t) {
+		// try a relay that has a token left, only the token due first
+		// stays reserved
+		if (throttled == null || t.getDelay() < throttled.getDelay()) {
+		    if (throttled != null)
+			dispatcher.getRateLimiter().release(throttled.getKey());
+		    throttled = t;
+		} else
+		    dispatcher.getRateLimiter().release(t.getKey());
+		continue;
+	    }
+	    try {
+		last = sendThrough(relay,
+				   TransportPool.getKey(session, route.getUser()),
+				   session);
+	    } catch (MessagingException me) {
+		if (throttled != null)
+		    dispatcher.getRateLimiter().release(throttled.getKey());
+		throw me;
+	    }
+	    if (last == null) {
+		if (throttled != null)
+		    dispatcher.getRateLimiter().release(throttled.getKey());
+		return;
+	    }
+	}
+	if (throttled != null)
+	    throw throttled;
+	if (last != null)
+	    throw last;
+	throw new MessagingException("None of the relays " + route +
+				     " could be used.");
+    }
+
+    /**
+     * send the message again later if the failure is transient, otherwise
+     * hand it to the dead letter sink
+     *
+     * @param me  the exception sending failed with
+     *
+     */
+    private void failed(MessagingException me) {
+	RetryPolicy policy = dispatcher.getRetryPolicy();
+	Address[] retry = recipients;
+	// a spooled message that could not be loaded is retried as a whole
+	boolean whole = message == null;
+
+	if (me instanceof SendFailedException) {
+	    SendFailedException sfe = (SendFailedException)me;
+	    Address[] sent = sfe.getValidSentAddresses();
+	    Address[] invalid = sfe.getInvalidAddresses();
+	    if (!isEmpty(sent) || !isEmpty(invalid)) {
+		// only the valid addresses that were not sent to are retried,
+		// the refused ones will not be accepted the next time either
+		retry = sfe.getValidUnsentAddresses();
+		if (!isEmpty(sent))
+		    accepted.addAll(Arrays.asList(sent));
+		if (!isEmpty(invalid)) {
+		    rejected.addAll(Arrays.asList(invalid));
+		    dispatcher.deadLetter(message, invalid, me, attempts);
+		}
+	    }
+	}
+
+	if ((whole || !isEmpty(retry)) && attempts > 0 &&
+		policy.isTransient(me) &&
+		attempts < policy.getMaxAttempts()) {
+	    long delay = policy.getDelay(attempts);
+	    sc.log("Could not send the e-mail sent to " + mailto + ":  " +
+		   me.getMessage() + ", attempt " + attempts + " of " +
+		   policy.getMaxAttempts() + ", trying again in " +
+		   (delay / 1000) + " seconds.");
+	    if (spool != null) {
+		// the attempts survive a restart and an overflow to the spool
+		try {
+		    if (retry != recipients)
+			spoolid = spool.readdress(spoolid, retry);
+		    spool.retry(spoolid, attempts,
+				System.currentTimeMillis() + delay);
+		} catch (IOException ie) {
+		    sc.log("Mailer taglib: could not update spooled e-mail " +
+			   spoolid + ":  " + ie.getMessage());
+		}
+	    }
+	    recipients = retry;
+	    waiting = true;
+	    dispatcher.retry(this, delay);
+	    return;
+	}
+
+	// exception occurs when the e-mail cannot be sent to anyone of the
+	// to addresses in the message depending on the mail properties set
+	// this may or may not cause transmission of the message to end.
+	// This error will be logged and a message will be sent to the from
+	// address explaining that the message could not be sent.
+	// Since the JSP has already finished executing this exception will
+	// do nothing visible, however the errors should be dealt with by
+	// the SMTP host if it is configured correctly
+	sc.log("Could not send the e-mail sent to " + mailto + ":  " +
+	       me.getMessage());
+	if (!isEmpty(retry)) {
+	    rejected.addAll(Arrays.asList(retry));
+	    if (message != null)
+		dispatcher.deadLetter(message, retry, me, attempts);
+	}
+	done(me);
+    }
+
+    /**
+     * remember the message id with the idempotency key, the dispatcher
+     * updated the headers when it froze the message and updating them again
+     * would give a message that is not frozen a new id
+     */
+    private void rememberMessageId() throws MessagingException {
+	saved = true;
+	if (idempotencyKey != null)
+	    dispatcher.getIdempotencyCache().setMessageId(idempotencyKey,
+						message.getMessageID());
+    }
+
+    /**
+     * read the message back from the spool
+     *
+     * @return - false if the message cannot be sent yet
+     *
+     */
+    private boolean load() throws IOException, MessagingException,
+				  NamingException {
+	MailSpool.Entry entry = spool.read(spoolid);
+	if (entry == null)
+	    // delivered meanwhile
+	    return false;
+
+	attempts = Math.max(attempts, entry.getAttempts());
+	Session session;
+	try {
+	    session = entry.getRoute().getSession(sc);
+	} catch (NamingException ne) {
+	    // the lookup counts as an attempt so that it is not made for ever
+	    attempts++;
+	    throw ne;
+	}
+	if (session == null) {
+	    sc.log("Mailer taglib: spooled e-mail " + spoolid + " for " +
+		   entry.getRoute() + " waits until the password of user " +
+		   entry.getRoute().getUser() + " is used again.");
+	    // the message stays claimed so that the drainer does not read it
+	    // again, it is queued once a page logs the user in
+	    route = entry.getRoute();
+	    waiting = true;
+	    dispatcher.awaitPassword(this);
+	    return false;
+	}
+	// the spooled message already has its final headers and message id
+	message = FrozenMessage.read(session, entry.getMessage());
+	saved = true;
+	route = entry.getRoute();
+	recipients = entry.getRecipients();
+	key = TransportPool.getKey(session, route.getUser());
+	mailto = InternetAddress.toString(recipients != null ? recipients :
+			 message.getRecipients(Message.RecipientType.TO));
+	return true;
+    }
+
+    /**
+     * mark a spooled message as done and publish the outcome
+     *
+     * @param reason  the exception of the last attempt, null if the message
+     *                was accepted for every recipient
+     *
+     */
+    private void done(MessagingException reason) {
+	if (spool != null) {
+	    try {
+		spool.markDone(spoolid);
+	    } catch (IOException ie) {
+		sc.log("Mailer taglib: could not mark spooled e-mail " +
+		       spoolid + " as sent:  " + ie.getMessage());
+	    }
+	}
+
+	String id = null;
+	try {
+	    if (message != null)
+		id = message.getMessageID();
+	} catch (MessagingException me) {
+	    // publish the outcome without the message id
+	}
+	free();
+	DeliveryResult result = new DeliveryResult(id,
+	    accepted.toArray(new Address[accepted.size()]),
+	    rejected.toArray(new Address[rejected.size()]), reason, attempts,
+	    submitted, System.currentTimeMillis());
+	dispatcher.delivered(result);
+	if (future != null)
+	    future.complete(result);
+    }
+
+    private static boolean isEmpty(Address[] addresses) {
+	return addresses == null || addresses.length == 0;
+    }
+}
@@ -0,0 +1,1669 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.activation.DataSource;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.servlet.ServletContext;
+import javax.naming.NamingException;
+
+/**
+ * MailDispatcher - the shared pool of threads used by the <b>send</b> tag to
+ *                  deliver mail in the background.  One dispatcher exists per
+ *                  web application, it is created the first time a message
+ *                  is sent, or when the application starts if the
+ *                  MailerListener is registered, and is kept as an attribute
+ *                  of the servlet context.  The MailerListener also shuts
+ *                  the dispatcher down when the application stops, from
+ *                  then on it takes no more messages.
+ *
+ * <p>
+ * Messages are sent on one of three priority lanes, high, normal and low,
+ * chosen with the <b>priority</b> attribute of the mail tag.  Each lane has
+ * its own threads, queue and connections, so that a page sending a large
+ * batch on the low lane never holds up a password reset on the high lane.
+ * </p>
+ *
+ * <p>
+ * The dispatcher is configured with the following context parameters, all of
+ * which are optional.  The threads, queueSize and poolMaxPerKey parameters
+ * set the size of each lane, they can be set for one lane by adding the name
+ * of the lane, for example org.apache.taglibs.mailer.low.threads.
+ * <p><pre>
+ * org.apache.taglibs.mailer.threads       maximum number of sending threads
+ *                                         (default 4)
+ * org.apache.taglibs.mailer.queueSize     maximum number of messages waiting
+ *                                         for a thread (default 1000)
+ * org.apache.taglibs.mailer.queuePolicy   what to do when the queue is full,
+ *                                         "reject", "block" or "caller"
+ *                                         (default reject)
+ * org.apache.taglibs.mailer.queueTimeout  milliseconds to wait for room in the
+ *                                         queue with the block policy
+ *                                         (default 5000)
+ * org.apache.taglibs.mailer.queueMemory   bytes of queued messages held out of
+ *                                         the heap by all lanes together,
+ *                                         once they are used up a message
+ *                                         overflows to the spool, or waits
+ *                                         for room with the block policy
+ *                                         and is rejected after that
+ *                                         (default 0, queued messages are
+ *                                         kept on the heap)
+ * org.apache.taglibs.mailer.poolMaxPerKey maximum number of connections kept
+ *                                         open to one mail server and user
+ *                                         (default 4)
+ * org.apache.taglibs.mailer.poolIdleTimeout
+ *                                         milliseconds an unused connection
+ *                                         is kept open (default 60000)
+ * org.apache.taglibs.mailer.poolWaitTimeout
+ *                                         milliseconds to wait for a free
+ *                                         connection (default 30000)
+ * org.apache.taglibs.mailer.maxRecipients maximum number of recipients of
+ *                                         one SMTP transaction, a message
+ *                                         with more is sent in several
+ *                                         envelopes (default 100, 0 for no
+ *                                         limit)
+ * org.apache.taglibs.mailer.encodeThreads number of threads the attachments of
+ *                                         a message are transfer encoded on
+ *                                         side by side before it is queued,
+ *                                         only attachments of up to 1 MB
+ *                                         that are not streamed from files
+ *                                         are encoded ahead (default 0,
+ *                                         attachments are encoded as they
+ *                                         are written)
+ * org.apache.taglibs.mailer.relayCooldown milliseconds a relay that could not
+ *                                         be connected to is left out
+ *                                         (default 30000)
+ * org.apache.taglibs.mailer.circuitWindow number of messages the failure
+ *                                         rate of a relay is computed over
+ *                                         (default 20)
+ * org.apache.taglibs.mailer.circuitMinimumCalls
+ *                                         number of messages sent through a
+ *                                         relay before its circuit breaker
+ *                                         may open (default 10)
+ * org.apache.taglibs.mailer.circuitFailureRate
+ *                                         percentage of failed messages that
+ *                                         opens the circuit breaker of a
+ *                                         relay (default 50)
+ * org.apache.taglibs.mailer.circuitOpenTime
+ *                                         milliseconds a circuit breaker
+ *                                         stays open (default 30000)
+ * org.apache.taglibs.mailer.circuitProbes number of messages let through a
+ *                                         half open circuit breaker
+ *                                         (default 3)
+ * org.apache.taglibs.mailer.rateLimitPerSecond
+ *                                         messages sent per second through
+ *                                         a relay (default 0, no limit)
+ * org.apache.taglibs.mailer.rateLimitPerMinute
+ *                                         messages sent per minute through
+ *                                         a relay (default 0, no limit)
+ * org.apache.taglibs.mailer.rateLimitBurst
+ *                                         messages that may be sent at once
+ *                                         (default 1)
+ * org.apache.taglibs.mailer.rateLimitMinuteBurst
+ *                                         messages that may be sent at once
+ *                                         under the per minute limit
+ *                                         (default rateLimitBurst, at most
+ *                                         rateLimitPerMinute)
+ * org.apache.taglibs.mailer.rateLimitBy   relay, sender or user, whether
+ *                                         the limits apply to each relay or
+ *                                         to each sender address or login
+ *                                         user of a relay (default relay)
+ * org.apache.taglibs.mailer.spoolDir      directory of the spool, messages are
+ *                                         only spooled when this is set, a
+ *                                         relative path is relative to the
+ *                                         temporary directory of the web
+ *                                         application
+ * org.apache.taglibs.mailer.spoolSegmentSize
+ *                                         size in bytes of a spool segment
+ *                                         file (default 16777216)
+ * org.apache.taglibs.mailer.spoolDrainInterval
+ *                                         milliseconds between two passes of
+ *                                         the drainer over the spool
+ *                                         (default 5000)
+ * org.apache.taglibs.mailer.retryMaxAttempts
+ *                                         maximum number of attempts to send
+ *                                         a message (default 5)
+ * org.apache.taglibs.mailer.retryInitialDelay
+ *                                         milliseconds before the second
+ *                                         attempt (default 60000)
+ * org.apache.taglibs.mailer.retryMaxDelay milliseconds the delay between two
+ *                                         attempts grows to at most
+ *                                         (default 3600000)
+ * org.apache.taglibs.mailer.deadLetterSink
+ *                                         class name of the DeadLetterSink
+ *                                         (default logs to the servlet
+ *                                         context)
+ * org.apache.taglibs.mailer.idempotencyWindow
+ *                                         milliseconds the idempotency key
+ *                                         of a message is remembered
+ *                                         (default 3600000)
+ * org.apache.taglibs.mailer.idempotencySize
+ *                                         maximum number of idempotency keys
+ *                                         remembered (default 10000)
+ * org.apache.taglibs.mailer.idempotencyPersist
+ *                                         true to keep the idempotency keys
+ *                                         in the spool directory so that
+ *                                         they survive a restart
+ *                                         (default true)
+ * org.apache.taglibs.mailer.deliveryListener
+ *                                         class names of DeliveryListeners,
+ *                                         separated by commas
+ * org.apache.taglibs.mailer.shutdownTimeout
+ *                                         milliseconds the MailerListener
+ *                                         waits for queued messages when the
+ *                                         web application stops
+ *                                         (default 30000)
+ * </pre></p>
+ *
+ * @version 1.0
+ *
+ */
+public class MailDispatcher {
+
+    /**
+     * The context parameter names
+     */
+    public final static String THREADS_PARAM =
+        "org.apache.taglibs.mailer.threads";
+    public final static String QUEUE_SIZE_PARAM =
+        "org.apache.taglibs.mailer.queueSize";
+    public final static String QUEUE_POLICY_PARAM =
+        "org.apache.taglibs.mailer.queuePolicy";
+    public final static String QUEUE_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.queueTimeout";
+    public final static String QUEUE_MEMORY_PARAM =
+        "org.apache.taglibs.mailer.queueMemory";
+    public final static String POOL_MAX_PER_KEY_PARAM =
+        "org.apache.taglibs.mailer.poolMaxPerKey";
+    public final static String POOL_IDLE_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.poolIdleTimeout";
+    public final static String POOL_WAIT_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.poolWaitTimeout";
+    public final static String MAX_RECIPIENTS_PARAM =
+        "org.apache.taglibs.mailer.maxRecipients";
+    public final static String ENCODE_THREADS_PARAM =
+        "org.apache.taglibs.mailer.encodeThreads";
+    public final static String RELAY_COOLDOWN_PARAM =
+        "org.apache.taglibs.mailer.relayCooldown";
+    public final static String CIRCUIT_WINDOW_PARAM =
+        "org.apache.taglibs.mailer.circuitWindow";
+    public final static String CIRCUIT_MINIMUM_CALLS_PARAM =
+        "org.apache.taglibs.mailer.circuitMinimumCalls";
+    public final static String CIRCUIT_FAILURE_RATE_PARAM =
+        "org.apache.taglibs.mailer.circuitFailureRate";
+    public final static String CIRCUIT_OPEN_TIME_PARAM =
+        "org.apache.taglibs.mailer.circuitOpenTime";
+    public final static String CIRCUIT_PROBES_PARAM =
+        "org.apache.taglibs.mailer.circuitProbes";
+    public final static String RATE_LIMIT_PER_SECOND_PARAM =
+        "org.apache.taglibs.mailer.rateLimitPerSecond";
+    public final static String RATE_LIMIT_PER_MINUTE_PARAM =
+        "org.apache.taglibs.mailer.rateLimitPerMinute";
+    public final static String RATE_LIMIT_BURST_PARAM =
+        "org.apache.taglibs.mailer.rateLimitBurst";
+    public final static String RATE_LIMIT_MINUTE_BURST_PARAM =
+        "org.apache.taglibs.mailer.rateLimitMinuteBurst";
+    public final static String RATE_LIMIT_BY_PARAM =
+        "org.apache.taglibs.mailer.rateLimitBy";
+    public final static String SPOOL_DIR_PARAM =
+        "org.apache.taglibs.mailer.spoolDir";
+    public final static String SPOOL_SEGMENT_SIZE_PARAM =
+        "org.apache.taglibs.mailer.spoolSegmentSize";
+    public final static String SPOOL_DRAIN_INTERVAL_PARAM =
+        "org.apache.taglibs.mailer.spoolDrainInterval";
+    public final static String RETRY_MAX_ATTEMPTS_PARAM =
+        "org.apache.taglibs.mailer.retryMaxAttempts";
+    public final static String RETRY_INITIAL_DELAY_PARAM =
+        "org.apache.taglibs.mailer.retryInitialDelay";
+    public final static String RETRY_MAX_DELAY_PARAM =
+        "org.apache.taglibs.mailer.retryMaxDelay";
+    public final static String DEAD_LETTER_SINK_PARAM =
+        "org.apache.taglibs.mailer.deadLetterSink";
+    public final static String IDEMPOTENCY_WINDOW_PARAM =
+        "org.apache.taglibs.mailer.idempotencyWindow";
+    public final static String IDEMPOTENCY_SIZE_PARAM =
+        "org.apache.taglibs.mailer.idempotencySize";
+    public final static String IDEMPOTENCY_PERSIST_PARAM =
+        "org.apache.taglibs.mailer.idempotencyPersist";
+    public final static String DELIVERY_LISTENER_PARAM =
+        "org.apache.taglibs.mailer.deliveryListener";
+    public final static String SHUTDOWN_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.shutdownTimeout";
+
+    /**
+     * The queue policy names
+     */
+    public final static String REJECT_POLICY = "reject";
+    public final static String BLOCK_POLICY = "block";
+    public final static String CALLER_POLICY = "caller";
+
+    /**
+     * name of the servlet context attribute the dispatcher is stored under
+     */
+    private final static String ATTRIBUTE = MailDispatcher.class.getName();
+
+    /**
+     * guards the creation of the dispatcher
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * The priority lanes
+     */
+    public final static String HIGH_PRIORITY = "high";
+    public final static String NORMAL_PRIORITY = "normal";
+    public final static String LOW_PRIORITY = "low";
+
+    /**
+     * the lane names in the order of their index
+     */
+    private final static String[] PRIORITIES =
+        { HIGH_PRIORITY, NORMAL_PRIORITY, LOW_PRIORITY };
+
+    /**
+     * index of the lane used when no priority is given
+     */
+    final static int NORMAL_LANE = 1;
+
+    /**
+     * largest attachment encoded ahead, in bytes, a bigger one would be held
+     * encoded in memory until the message is sent
+     */
+    private final static long MAX_ENCODE_AHEAD = 1024 * 1024;
+
+    /**
+     * the priority lanes, each with the thread pool the mail is sent on and
+     * the connections it uses
+     */
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+
+    /**
+     * single thread used for housekeeping such as closing idle connections
+     * and for ticking the wheel
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * messages waiting to be sent again
+     */
+    private final TimerWheel wheel = new TimerWheel(100, 512);
+
+    /**
+     * jobs of spooled messages that went back to the spool, by spool id, so
+     * that the drainer queues them again with the future they complete
+     */
+    private final Map<Long, Mail> parked = new ConcurrentHashMap<Long, Mail>();
+
+    /**
+     * jobs of recovered messages waiting for the password of their route,
+     * by spool id, they stay claimed until a page logs the user in again
+     */
+    private final Map<Long, Mail> awaiting =
+        new ConcurrentHashMap<Long, Mail>();
+
+    /**
+     * true once the dispatcher is shut down, it takes no more messages
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * decides which failed messages are sent again and when
+     */
+    private RetryPolicy retryPolicy;
+
+    /**
+     * receives the messages that will not be sent
+     */
+    private DeadLetterSink deadLetterSink;
+
+    /**
+     * told about the outcome of every message
+     */
+    private final List<DeliveryListener> listeners =
+        new CopyOnWriteArrayList<DeliveryListener>();
+
+    /**
+     * picks the relay of messages sent to a list of relays
+     */
+    private final RelayBalancer balancer;
+
+    /**
+     * maximum number of recipients of one envelope, 0 for no limit
+     */
+    private final int maxRecipients;
+
+    /**
+     * threads the attachments of a message are encoded on, null when they
+     * are encoded as the message is written
+     */
+    private final ThreadPoolExecutor encoder;
+
+    /**
+     * holds the queued messages out of the heap, null when they are kept on
+     * the heap
+     */
+    private final SlabStore store;
+
+    /**
+     * milliseconds to wait for room in the store when there is no spool to
+     * overflow to
+     */
+    private final long storeTimeout;
+
+    /**
+     * limits the rate messages are sent at
+     */
+    private final RateLimiter limiter;
+
+    /**
+     * the files the bodies of the messages of the web application spilled
+     * to
+     */
+    private final SpillBuffer.Registry spills = new SpillBuffer.Registry();
+
+    /**
+     * the spool messages are written to before they are queued, null when
+     * messages are only kept in memory
+     */
+    private MailSpool spool = null;
+
+    /**
+     * the idempotency keys of the messages sent recently
+     */
+    private IdempotencyCache idempotency;
+
+    /**
+     * servlet context used for logging
+     */
+    private final ServletContext sc;
+
+    /**
+     * create a dispatcher configured by the context parameters of a web
+     * application
+     *
+     * @param sc  servlet context of the web application
+     */
+    public MailDispatcher(ServletContext sc) {
+        this.sc = sc;
+
+        String policy = getParameter(sc, QUEUE_POLICY_PARAM, REJECT_POLICY);
+        int timeout = getIntParameter(sc, QUEUE_TIMEOUT_PARAM, 5000);
+        int idleTimeout =
+            getIntParameter(sc, POOL_IDLE_TIMEOUT_PARAM, 60000);
+        int waitTimeout = getIntParameter(sc, POOL_WAIT_TIMEOUT_PARAM, 30000);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(PRIORITIES[i],
+                Math.max(1, getLaneParameter(sc, i, THREADS_PARAM, 4)),
+                Math.max(1, getLaneParameter(sc, i, QUEUE_SIZE_PARAM, 1000)),
+                policy, timeout,
+                Math.max(1, getLaneParameter(sc, i, POOL_MAX_PER_KEY_PARAM, 4)),
+                idleTimeout, waitTimeout);
+        }
+        int memory = getIntParameter(sc, QUEUE_MEMORY_PARAM, 0);
+        store = memory > 0 ? new SlabStore(memory) : null;
+        storeTimeout = BLOCK_POLICY.equalsIgnoreCase(policy) ? timeout : 0;
+        maxRecipients =
+            Math.max(0, getIntParameter(sc, MAX_RECIPIENTS_PARAM, 100));
+        int encodeThreads = getIntParameter(sc, ENCODE_THREADS_PARAM, 0);
+        if (encodeThreads > 0) {
+            encoder = new ThreadPoolExecutor(encodeThreads, encodeThreads,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new MailerThreadFactory("mailer-encode-"));
+            encoder.allowCoreThreadTimeOut(true);
+        } else {
+            encoder = null;
+        }
+        balancer = new RelayBalancer(
+                getIntParameter(sc, RELAY_COOLDOWN_PARAM, 30000),
+                getIntParameter(sc, CIRCUIT_WINDOW_PARAM, 20),
+                getIntParameter(sc, CIRCUIT_MINIMUM_CALLS_PARAM, 10),
+                getIntParameter(sc, CIRCUIT_FAILURE_RATE_PARAM, 50),
+                getIntParameter(sc, CIRCUIT_OPEN_TIME_PARAM, 30000),
+                getIntParameter(sc, CIRCUIT_PROBES_PARAM, 3));
+        limiter = new RateLimiter(
+                getIntParameter(sc, RATE_LIMIT_PER_SECOND_PARAM, 0),
+                getIntParameter(sc, RATE_LIMIT_PER_MINUTE_PARAM, 0),
+                getIntParameter(sc, RATE_LIMIT_BURST_PARAM, 1),
+                getIntParameter(sc, RATE_LIMIT_MINUTE_BURST_PARAM, 0),
+                getParameter(sc, RATE_LIMIT_BY_PARAM, RateLimiter.BY_RELAY));
+
+        retryPolicy = new RetryPolicy(
+                Math.max(1, getIntParameter(sc, RETRY_MAX_ATTEMPTS_PARAM, 5)),
+                getIntParameter(sc, RETRY_INITIAL_DELAY_PARAM, 60000),
+                getIntParameter(sc, RETRY_MAX_DELAY_PARAM, 3600000));
+        deadLetterSink = createDeadLetterSink(
+                getParameter(sc, DEAD_LETTER_SINK_PARAM, null));
+        String names = getParameter(sc, DELIVERY_LISTENER_PARAM, null);
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (name.trim().length() > 0) {
+                    DeliveryListener listener = newInstance(name.trim(),
+                        DeliveryListener.class, "delivery listener");
+                    if (listener != null) {
+                        listeners.add(listener);
+                    }
+                }
+            }
+        }
+
+        timer = new ScheduledThreadPoolExecutor(1,
+                new MailerThreadFactory("mailer-timer-"));
+        long sweep = Math.max(1000L, idleTimeout / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < lanes.length; i++) {
+                            lanes[i].pool.evictIdle();
+                        }
+                        limiter.evictIdle();
+                    } catch (RuntimeException re) {
+                        MailDispatcher.this.sc.log("Mailer taglib: could not"
+                            + " close idle connections.", re);
+                    }
+                }
+            }, sweep, sweep, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    wheel.tick();
+                }
+            }, wheel.getTickDuration(), wheel.getTickDuration(),
+            TimeUnit.MILLISECONDS);
+
+        String dir = getParameter(sc, SPOOL_DIR_PARAM, null);
+        File spoolDir = dir == null ? null : getSpoolDir(sc, dir);
+        if (spoolDir != null) {
+            openSpool(spoolDir,
+                      getIntParameter(sc, SPOOL_SEGMENT_SIZE_PARAM,
+                                      16 * 1024 * 1024),
+                      getIntParameter(sc, SPOOL_DRAIN_INTERVAL_PARAM, 5000));
+        }
+        openIdempotencyCache(
+            getIntParameter(sc, IDEMPOTENCY_SIZE_PARAM, 10000),
+            getIntParameter(sc, IDEMPOTENCY_WINDOW_PARAM, 3600000),
+            spool != null && Boolean.valueOf(getParameter(sc,
+                IDEMPOTENCY_PERSIST_PARAM, "true")).booleanValue() ?
+                new File(spoolDir, "idempotency.keys") : null);
+    }
+
+    /**
+     * get the dispatcher for a web application, creating it from the context
+     * parameters if it does not exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the dispatcher for the web application
+     *
+     * @throws IllegalStateException  thrown when the dispatcher of the web
+     *                                application was shut down
+     *
+     */
+    public static MailDispatcher getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            MailDispatcher dispatcher =
+                (MailDispatcher)sc.getAttribute(ATTRIBUTE);
+            if (dispatcher != null && dispatcher.closed) {
+                // a page still running while the application stops must
+                // not start a dispatcher nobody shuts down
+                throw new IllegalStateException("The mail dispatcher of " +
+                    "the web application was shut down.");
+            }
+            if (dispatcher == null) {
+                dispatcher = new MailDispatcher(sc);
+                sc.setAttribute(ATTRIBUTE, dispatcher);
+            }
+            return dispatcher;
+        }
+    }
+
+    /**
+     * queue a message to be sent by one of the threads of the dispatcher
+     *
+     * @param mail  the message to be sent
+     *
+     * @return - false if the queue is full and the message was not accepted
+     *
+     */
+    public boolean dispatch(Runnable mail) {
+        if (closed) {
+            sc.log("Mailer taglib: the mail dispatcher was shut down, " +
+                   "message rejected.");
+            return false;
+        }
+        if (!execute(mail)) {
+            sc.log("Mailer taglib: the mail queue is full, message rejected.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * write a message to the spool, if there is one, and queue it to be sent
+     *
+     * @param mail  the message to be sent
+     *
+     * @return - false if the message was neither spooled nor queued
+     *
+     */
+    boolean submit(Mail mail) {
+        if (spool == null) {
+            if (!dispatch(mail)) {
+                mail.free();
+                return false;
+            }
+            return true;
+        }
+        if (closed) {
+            sc.log("Mailer taglib: the mail dispatcher was shut down, " +
+                   "message rejected.");
+            mail.free();
+            return false;
+        }
+        try {
+            mail.spool(spool);
+        } catch (IOException ie) {
+            sc.log("Mailer taglib: could not write the message to the spool:"
+                   + "  " + ie.getMessage());
+            mail.free();
+            return false;
+        } catch (MessagingException me) {
+            sc.log("Mailer taglib: could not write the message to the spool:"
+                   + "  " + me.getMessage());
+            mail.free();
+            return false;
+        }
+        if (store != null && !mail.isHeld()) {
+            // the queue memory is used up, the job reads the message back
+            // from the spool when it runs
+            mail.evict();
+        }
+        if (!execute(mail)) {
+            // the message is safe on disk, the drainer will queue it again
+            park(mail);
+            spool.release(mail.getSpoolId());
+        }
+        return true;
+    }
+
+    /**
+     * render a message into the bytes it is queued and sent as, held in the
+     * queue memory when there is a budget for it, a message streamed from
+     * files only has its headers updated and is written as it is sent.
+     * Without a spool the calling thread, that of the request, waits for
+     * room in the queue memory as long as the queue timeout of the block
+     * policy.
+     *
+     * @param message  the message, its headers are updated
+     *
+     * @return - the message to queue, holding one reference the caller lets
+     *           go of with FrozenMessage.release once it has queued its
+     *           jobs, or null if the queue memory is used up and there is
+     *           no spool to overflow to
+     *
+     * @throws MessagingException  thrown when the message cannot be written
+     *
+     */
+    MimeMessage freeze(MimeMessage message) throws MessagingException {
+        if (FrozenMessage.isStreamed(message)) {
+            // rendering it would copy the files into memory
+            message.saveChanges();
+            return message;
+        }
+        if (store == null) {
+            return FrozenMessage.freeze(message);
+        }
+        // with a spool a message that does not fit goes to disk only,
+        // without one the page waits for room as it would for the queue
+        FrozenMessage frozen = FrozenMessage.freeze(message, store,
+            spool != null ? 0 : storeTimeout);
+        if (frozen == null && spool != null) {
+            // the heap copy is let go of once the message is spooled
+            frozen = FrozenMessage.render(message, null, 0);
+        }
+        if (frozen == null) {
+            sc.log("Mailer taglib: the queue memory is used up, message" +
+                   " rejected.");
+            return null;
+        }
+        return frozen;
+    }
+
+    /**
+     * put a message that failed or has to wait for the rate limiter back on
+     * the queue after a delay, the wheel holds the message meanwhile so no
+     * thread waits for it
+     *
+     * @param mail  the message to be sent again
+     * @param delay  milliseconds to wait
+     *
+     */
+    void retry(Mail mail, long delay) {
+        wheel.schedule(new Retry(mail), delay);
+    }
+
+    /**
+     * keep the job of a spooled message that could not be queued, its
+     * message is let go of and read back from the spool once the drainer
+     * queues the job again, the caller releases the claim of the message
+     *
+     * @param mail  the job
+     *
+     */
+    void park(Mail mail) {
+        mail.evict();
+        parked.put(Long.valueOf(mail.getSpoolId()), mail);
+    }
+
+    /**
+     * keep the job of a recovered message whose route needs a password that
+     * is not known yet, the message stays claimed and is only read again
+     * once the session cache has a session for the user of the route
+     *
+     * @param mail  the job, its route is set
+     *
+     */
+    void awaitPassword(Mail mail) {
+        mail.evict();
+        awaiting.put(Long.valueOf(mail.getSpoolId()), mail);
+        // the password may have been used while the message was read
+        resume(mail.getRoute().getUser());
+    }
+
+    /**
+     * hand the jobs waiting for the password of a user to the drainer once
+     * their route has a session
+     *
+     * @param user  the login user name
+     *
+     */
+    private void resume(String user) {
+        for (Mail mail : awaiting.values()) {
+            MailRoute route = mail.getRoute();
+            if (user == null ? route.getUser() != null :
+                    !user.equals(route.getUser())) {
+                continue;
+            }
+            try {
+                if (route.getSession(sc) == null) {
+                    continue;
+                }
+            } catch (NamingException ne) {
+                continue;
+            }
+            Long id = Long.valueOf(mail.getSpoolId());
+            // only one caller takes the job out
+            if (awaiting.remove(id) != null) {
+                park(mail);
+                spool.release(id.longValue());
+            }
+        }
+    }
+
+    /**
+     * stop accepting messages, give the messages already queued until the
+     * timeout to be sent, then close the connections and the spool
+     *
+     * @param timeout  milliseconds to wait for the queued messages
+     *
+     * @return - number of messages left unsent, spooled messages among them
+     *           are sent after the next start
+     *
+     */
+    public int shutdown(long timeout) {
+        // refuse new messages and stop the drainer, the timer keeps ticking
+        // the wheel so that retries due before the timeout are still sent
+        closed = true;
+        if (encoder != null) {
+            encoder.shutdownNow();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (!isIdle(deadline) &&
+                   System.currentTimeMillis() < deadline) {
+                Thread.sleep(Math.min(wheel.getTickDuration(),
+                    Math.max(1, deadline - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        timer.shutdownNow();
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].executor.shutdown();
+        }
+        List<Runnable> left = new ArrayList<Runnable>();
+        for (int i = 0; i < lanes.length; i++) {
+            ThreadPoolExecutor executor = lanes[i].executor;
+            try {
+                // the lanes drain side by side, the deadline is shared
+                if (!executor.awaitTermination(Math.max(0,
+                        deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS)) {
+                    left.addAll(executor.shutdownNow());
+                    // give the interrupted sends a moment to give back their
+                    // connections
+                    executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ie) {
+                left.addAll(executor.shutdownNow());
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the messages still waiting to be sent again are unsent as well
+        for (Runnable task : wheel.clear()) {
+            left.add(task instanceof Retry ? ((Retry)task).mail : task);
+        }
+        // the messages are in the spool, their futures will not complete
+        left.addAll(parked.values());
+        parked.clear();
+        left.addAll(awaiting.values());
+        awaiting.clear();
+        for (Runnable task : left) {
+            if (task instanceof Mail) {
+                ((Mail)task).abandoned();
+            }
+        }
+        // no message is written any more, remove the bodies left behind
+        spills.deleteAll();
+
+        int spooled = 0;
+        for (Runnable task : left) {
+            if (task instanceof Mail && ((Mail)task).getSpoolId() >= 0) {
+                spooled++;
+            }
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].pool.close();
+        }
+        idempotency.close();
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException ie) {
+                sc.log("Mailer taglib: could not close the mail spool:  " +
+                       ie.getMessage());
+            }
+        }
+        sc.log("Mailer taglib: shut down, " + left.size() + " message(s) left"
+               + " unsent" + (spool != null ? ", " + spooled + " of them" +
+               " kept in the spool." : "."));
+        return left.size();
+    }
+
+    /**
+     * tell whether no message is queued, being sent or waiting to be sent
+     * again before a time
+     *
+     * @param deadline  the time, retries due later are not waited for
+     *
+     * @return - true if the lanes are empty and no retry is due
+     *
+     */
+    private boolean isIdle(long deadline) {
+        if (wheel.countDue(deadline) > 0) {
+            return false;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            ThreadPoolExecutor executor = lanes[i].executor;
+            if (!executor.getQueue().isEmpty() ||
+                executor.getActiveCount() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * shut down the dispatcher of a web application, if it was started,
+     * the dispatcher stays with the web application so that it is not
+     * started again
+     *
+     * @param sc  servlet context of the web application
+     * @param timeout  milliseconds to wait for the queued messages
+     *
+     * @return - number of messages left unsent
+     *
+     */
+    public static int shutdown(ServletContext sc, long timeout) {
+        MailDispatcher dispatcher;
+        synchronized (LOCK) {
+            dispatcher = (MailDispatcher)sc.getAttribute(ATTRIBUTE);
+            if (dispatcher == null || dispatcher.closed) {
+                return 0;
+            }
+            dispatcher.closed = true;
+        }
+        return dispatcher.shutdown(timeout);
+    }
+
+    /**
+     * hand a message that will not be sent to the dead letter sink
+     *
+     * @param message  the message
+     * @param recipients  the addresses it was not delivered to
+     * @param reason  the exception of the last attempt
+     * @param attempts  number of attempts made
+     *
+     */
+    void deadLetter(MimeMessage message, Address[] recipients,
+                    MessagingException reason, int attempts) {
+        try {
+            deadLetterSink.deadLetter(message, recipients, reason, attempts);
+        } catch (RuntimeException re) {
+            sc.log("Mailer taglib: the dead letter sink failed.", re);
+        }
+    }
+
+    /**
+     * pass the outcome of a message to the delivery listeners
+     *
+     * @param result  the outcome
+     *
+     */
+    void delivered(DeliveryResult result) {
+        for (DeliveryListener listener : listeners) {
+            try {
+                listener.delivered(result);
+            } catch (RuntimeException re) {
+                sc.log("Mailer taglib: a delivery listener failed.", re);
+            }
+        }
+    }
+
+    /**
+     * add a listener told about the outcome of every message
+     *
+     * @param listener  the listener
+     *
+     */
+    public void addDeliveryListener(DeliveryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * remove a delivery listener
+     *
+     * @param listener  the listener
+     *
+     */
+    public void removeDeliveryListener(DeliveryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * get the servlet context of the web application
+     *
+     * @return - the servlet context
+     *
+     */
+    public ServletContext getServletContext() {
+        return sc;
+    }
+
+    /**
+     * get the policy that decides which failed messages are sent again
+     *
+     * @return - the retry policy
+     *
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * set the policy that decides which failed messages are sent again
+     *
+     * @param policy  the retry policy
+     *
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    /**
+     * set the sink receiving the messages that will not be sent
+     *
+     * @param sink  the dead letter sink
+     *
+     */
+    public void setDeadLetterSink(DeadLetterSink sink) {
+        deadLetterSink = sink;
+    }
+
+    /**
+     * get the number of messages waiting to be sent again
+     *
+     * @return - number of waiting messages
+     *
+     */
+    public int getRetryCount() {
+        return wheel.size();
+    }
+
+    /**
+     * get the spool messages are written to
+     *
+     * @return - the spool or null if messages are not spooled
+     *
+     */
+    public MailSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * get the files the bodies of the messages spilled to
+     *
+     * @return - the spill registry of the web application
+     *
+     */
+    SpillBuffer.Registry getSpills() {
+        return spills;
+    }
+
+    /**
+     * get the store holding the queued messages out of the heap
+     *
+     * @return - the store or null if queued messages are kept on the heap
+     *
+     */
+    public SlabStore getSlabStore() {
+        return store;
+    }
+
+    /**
+     * get the number of bytes of queued messages held out of the heap
+     *
+     * @return - bytes in use, 0 if queued messages are kept on the heap
+     *
+     */
+    public long getQueueMemoryUsed() {
+        return store == null ? 0 : store.getUsed();
+    }
+
+    /**
+     * get the maximum number of recipients of one envelope
+     *
+     * @return - number of recipients, 0 for no limit
+     *
+     */
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * find out whether the attachments of a message are encoded before it is
+     * queued
+     *
+     * @return - true if the encodeThreads parameter is set
+     *
+     */
+    public boolean isEncodingAhead() {
+        return encoder != null;
+    }
+
+    /**
+     * transfer encode the small attachments of a message side by side on the
+     * encoding threads.  The parts already encoded, those streamed from
+     * files and those larger than MAX_ENCODE_AHEAD are left as they are and
+     * encoded as the message is written, rather than copied into memory.
+     *
+     * @param parts  the mimebodyparts, the headers of those encoded are
+     *               updated
+     *
+     * @return - the parts in the order of the list, the small ones replaced
+     *           by their encoded parts
+     *
+     * @throws MessagingException  thrown when a part cannot be encoded
+     * @throws IOException  thrown when the content of a part cannot be read
+     *
+     */
+    List<MimeBodyPart> encodeAhead(List<?> parts)
+        throws MessagingException, IOException {
+        List<MimeBodyPart> result = new ArrayList<MimeBodyPart>(parts.size());
+        List<MimeBodyPart> small = new ArrayList<MimeBodyPart>();
+        for (Object part : parts) {
+            MimeBodyPart mbp = (MimeBodyPart)part;
+            result.add(mbp);
+            if (!(mbp instanceof EncodedBodyPart) &&
+                    !FrozenMessage.isStreamed(mbp)) {
+                long size = getSize(mbp);
+                if (size >= 0 && size <= MAX_ENCODE_AHEAD) {
+                    small.add(mbp);
+                }
+            }
+        }
+        if (small.size() < 2) {
+            // nothing to encode side by side
+            return result;
+        }
+        EncodedBodyPart[] encoded = encode(small, false);
+        for (int i = 0, j = 0; i < result.size() && j < encoded.length; i++) {
+            if (result.get(i) == small.get(j)) {
+                result.set(i, encoded[j++]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * get the size of the content of an attachment before it is encoded
+     *
+     * @return - the number of bytes or -1 if it is not known
+     *
+     */
+    private static long getSize(MimeBodyPart part) throws MessagingException {
+        SpillBuffer buffer = SpillBuffer.getBuffer(part);
+        if (buffer != null) {
+            return buffer.size();
+        }
+        DataSource source = part.getDataHandler().getDataSource();
+        if (source instanceof FileDataSource) {
+            return ((FileDataSource)source).getFile().length();
+        }
+        return part.getSize();
+    }
+
+    /**
+     * transfer encode the attachments of a message, side by side on the
+     * encoding threads when there are any, one after the other otherwise
+     *
+     * @param parts  the mimebodyparts, their headers are updated
+     * @param direct  true to keep the encoded content out of the heap
+     *
+     * @return - the encoded parts, in the order of the list
+     *
+     * @throws MessagingException  thrown when a part cannot be encoded
+     * @throws IOException  thrown when the content of a part cannot be read
+     *
+     */
+    EncodedBodyPart[] encode(List<?> parts, final boolean direct)
+        throws MessagingException, IOException {
+        EncodedBodyPart[] encoded = new EncodedBodyPart[parts.size()];
+        if (encoder == null || encoded.length < 2) {
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = EncodedBodyPart.encode(
+                    (MimeBodyPart)parts.get(i), direct);
+            }
+            return encoded;
+        }
+
+        List<Future<EncodedBodyPart>> futures =
+            new ArrayList<Future<EncodedBodyPart>>(encoded.length);
+        for (Object part : parts) {
+            final MimeBodyPart mbp = (MimeBodyPart)part;
+            futures.add(encoder.submit(new Callable<EncodedBodyPart>() {
+                    public EncodedBodyPart call()
+                        throws MessagingException, IOException {
+                        return EncodedBodyPart.encode(mbp, direct);
+                    }
+                }));
+        }
+        try {
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = futures.get(i).get();
+            }
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof MessagingException) {
+                throw (MessagingException)cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new MessagingException("An attachment could not be" +
+                " encoded.", cause instanceof Exception ?
+                (Exception)cause : ee);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while encoding the" +
+                                         " attachments.", ie);
+        } finally {
+            for (Future<EncodedBodyPart> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * get the idempotency keys of the messages sent recently
+     *
+     * @return - the idempotency cache
+     *
+     */
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotency;
+    }
+
+    /**
+     * get the balancer that picks the relay of messages sent to a list of
+     * relays
+     *
+     * @return - the relay balancer
+     *
+     */
+    public RelayBalancer getRelayBalancer() {
+        return balancer;
+    }
+
+    /**
+     * get the limiter of the rate messages are sent at
+     *
+     * @return - the rate limiter
+     *
+     */
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    /**
+     * get the pool of connections used to send the mail of the normal lane
+     *
+     * @return - the transport pool
+     *
+     */
+    public TransportPool getTransportPool() {
+        return lanes[NORMAL_LANE].pool;
+    }
+
+    /**
+     * get the pool of connections used to send the mail of a lane
+     *
+     * @param lane  index of the lane
+     *
+     * @return - the transport pool
+     *
+     */
+    TransportPool getTransportPool(int lane) {
+        return lanes[lane].pool;
+    }
+
+    /**
+     * get the index of a priority lane
+     *
+     * @param priority  high, normal or low, null for normal
+     *
+     * @return - the index of the lane or -1 if there is no such lane
+     *
+     */
+    public static int getLane(String priority) {
+        if (priority == null) {
+            return NORMAL_LANE;
+        }
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (PRIORITIES[i].equalsIgnoreCase(priority)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * get the number of messages waiting for a thread
+     *
+     * @return - number of queued messages of all lanes
+     *
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            size += lanes[i].executor.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * get the number of messages of a lane waiting for a thread
+     *
+     * @param priority  high, normal or low
+     *
+     * @return - number of queued messages of the lane
+     *
+     */
+    public int getQueueSize(String priority) {
+        int lane = getLane(priority);
+        return lane < 0 ? 0 : lanes[lane].executor.getQueue().size();
+    }
+
+    /**
+     * get the number of threads currently sending mail
+     *
+     * @return - number of busy threads of all lanes
+     *
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            count += lanes[i].executor.getActiveCount();
+        }
+        return count;
+    }
+
+    /**
+     * create the idempotency cache, in memory if its file cannot be opened
+     *
+     * @param size  maximum number of keys remembered
+     * @param window  milliseconds a key is remembered
+     * @param file  file the keys are kept in, null to keep them in memory
+     *
+     */
+    private void openIdempotencyCache(int size, long window, File file) {
+        if (file != null) {
+            try {
+                idempotency = new IdempotencyCache(size, window, file);
+                return;
+            } catch (IOException ie) {
+                sc.log("Mailer taglib: could not open the idempotency keys in "
+                       + file + ", they will only be kept in memory:  " +
+                       ie.getMessage());
+            }
+        }
+        try {
+            idempotency = new IdempotencyCache(size, window, null);
+        } catch (IOException ie) {
+            // there is no file to read
+        }
+    }
+
+    /**
+     * open the spool, recovering the messages left in it, and start the
+     * drainer that queues the spooled messages which are not being sent
+     *
+     * @param dir  directory of the spool
+     * @param segmentSize  size in bytes of a segment file
+     * @param interval  milliseconds between two passes of the drainer
+     *
+     */
+    private void openSpool(File dir, long segmentSize, long interval) {
+        try {
+            spool = new MailSpool(dir, segmentSize);
+        } catch (IOException ie) {
+            sc.log("Mailer taglib: could not open the mail spool in " + dir +
+                   ", messages will not be spooled:  " + ie.getMessage());
+            return;
+        }
+        if (spool.wasTruncated()) {
+            sc.log("Mailer taglib: a damaged record was cut off the end of" +
+                   " the mail spool in " + dir + ".");
+        }
+        if (spool.getRecoveredCount() > 0) {
+            sc.log("Mailer taglib: " + spool.getRecoveredCount() + " unsent" +
+                   " messages recovered from the mail spool in " + dir + ".");
+        }
+        SessionCache.getInstance(sc).setListener(new SessionCache.Listener() {
+                public void sessionCreated(String host, String port,
+                                           String user) {
+                    if (!closed) {
+                        resume(user);
+                    }
+                }
+            });
+        timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, 0, Math.max(100L, interval), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * queue the spooled messages which are not being sent, as long as there
+     * is room in the queue
+     */
+    private void drain() {
+        if (closed) {
+            // the spooled messages wait for the next start
+            return;
+        }
+        try {
+            // force the done records written since the last pass
+            spool.sync();
+        } catch (IOException ie) {
+            sc.log("Mailer taglib: could not sync the mail spool:  " +
+                   ie.getMessage());
+        }
+        // each lane is refilled as far as its own queue has room
+        for (int lane = 0; lane < lanes.length; lane++) {
+            int room = lanes[lane].executor.getQueue().remainingCapacity();
+            if (room <= 0) {
+                continue;
+            }
+            List<Long> ids = spool.claim(room, lane);
+            for (int i = 0; i < ids.size(); i++) {
+                long id = ids.get(i).longValue();
+                // a job that was queued before keeps its future
+                Mail mail = parked.remove(Long.valueOf(id));
+                if (mail == null) {
+                    mail = new Mail(this, id, lane);
+                }
+                if (!offer(mail)) {
+                    // the queue filled up, leave the rest for the next pass
+                    parked.put(Long.valueOf(id), mail);
+                    for (int j = i; j < ids.size(); j++) {
+                        spool.release(ids.get(j).longValue());
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * hand a job to the thread pool of its lane, jobs other than Mail go to
+     * the normal lane
+     *
+     * @return - false if the queue is full
+     *
+     */
+    private boolean execute(Runnable job) {
+        ThreadPoolExecutor executor = lanes[job instanceof Mail ?
+                                            ((Mail)job).getLane() :
+                                            NORMAL_LANE].executor;
+        if (executor.isShutdown()) {
+            return false;
+        }
+        try {
+            executor.execute(job);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            return false;
+        }
+    }
+
+    /**
+     * hand a job to the thread pool of its lane from the timer thread, the
+     * job is put on the queue directly so that the queue policy neither
+     * blocks the timer nor sends the message on it
+     *
+     * @return - false if the queue is full
+     *
+     */
+    private boolean offer(Mail mail) {
+        ThreadPoolExecutor executor = lanes[mail.getLane()].executor;
+        if (executor.isShutdown() || !executor.getQueue().offer(mail)) {
+            return false;
+        }
+        // the threads of an idle lane have timed out, start one to take it
+        executor.prestartCoreThread();
+        return true;
+    }
+
+    /**
+     * create an instance of a class named by a context parameter
+     *
+     * @param name  class name
+     * @param type  type the class must have
+     * @param what  what the class is, for the log
+     *
+     * @return - the instance or null if it could not be created
+     *
+     */
+    private <T> T newInstance(String name, Class<T> type, String what) {
+        try {
+            ClassLoader loader =
+                Thread.currentThread().getContextClassLoader();
+            return type.cast(Class.forName(name, true, loader)
+                             .getDeclaredConstructor().newInstance());
+        } catch (InvocationTargetException ite) {
+            // the constructor itself failed, log what it threw
+            sc.log("Mailer taglib: could not create the " + what + " " +
+                   name + ".", ite.getCause());
+            return null;
+        } catch (Exception e) {
+            sc.log("Mailer taglib: could not create the " + what + " " +
+                   name + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * create the dead letter sink named by a context parameter
+     *
+     * @param name  class name of the sink, null for the default sink
+     *
+     * @return - the sink
+     *
+     */
+    private DeadLetterSink createDeadLetterSink(String name) {
+        if (name != null) {
+            DeadLetterSink sink =
+                newInstance(name, DeadLetterSink.class, "dead letter sink");
+            if (sink != null) {
+                return sink;
+            }
+        }
+        return new DeadLetterSink() {
+                public void deadLetter(MimeMessage message,
+                                       Address[] recipients,
+                                       MessagingException reason,
+                                       int attempts) {
+                    String id = null;
+                    try {
+                        id = message.getMessageID();
+                    } catch (MessagingException me) {
+                        // log without the message id
+                    }
+                    sc.log("Mailer taglib: gave up sending e-mail " + id +
+                           " to " + InternetAddress.toString(recipients) +
+                           " after " + attempts + " attempt(s):  " +
+                           reason.getMessage());
+                }
+            };
+    }
+
+    /**
+     * resolve the spool directory, a relative path is relative to the
+     * temporary directory of the web application
+     */
+    private static File getSpoolDir(ServletContext sc, String dir) {
+        File file = new File(dir);
+        Object tmp = sc.getAttribute("jakarta.servlet.context.tempdir");
+        if (!file.isAbsolute() && tmp instanceof File) {
+            file = new File((File)tmp, dir);
+        }
+        return file;
+    }
+
+    /**
+     * get the value of a context parameter
+     *
+     * @param sc  servlet context holding the parameter
+     * @param name  name of the parameter
+     * @param def  value to use when the parameter is not set
+     *
+     * @return - the trimmed value of the parameter or the default
+     *
+     */
+    static String getParameter(ServletContext sc, String name, String def) {
+        String value = sc.getInitParameter(name);
+        if (value == null || value.trim().length() == 0) {
+            return def;
+        }
+        return value.trim();
+    }
+
+    /**
+     * get the value of a numeric context parameter of a lane, the parameter
+     * named after the lane is used if it is set, otherwise the one for all
+     * lanes
+     *
+     * @param sc  servlet context holding the parameter
+     * @param lane  index of the lane
+     * @param name  name of the parameter for all lanes
+     * @param def  value to use when neither parameter is set
+     *
+     * @return - the value of the parameter or the default
+     *
+     */
+    private static int getLaneParameter(ServletContext sc, int lane,
+                                        String name, int def) {
+        String prefix = "org.apache.taglibs.mailer.";
+        return getIntParameter(sc, prefix + PRIORITIES[lane] + "." +
+            name.substring(prefix.length()),
+            getIntParameter(sc, name, def));
+    }
+
+    /**
+     * get the value of a numeric context parameter
+     *
+     * @param sc  servlet context holding the parameter
+     * @param name  name of the parameter
+     * @param def  value to use when the parameter is not set or is invalid
+     *
+     * @return - the value of the parameter or the default
+     *
+     */
+    static int getIntParameter(ServletContext sc, String name, int def) {
+        String value = getParameter(sc, name, null);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            sc.log("Mailer taglib: context parameter " + name + " is not a"
+                   + " number, using " + def + ".");
+            return def;
+        }
+    }
+
+    /**
+     * create the handler that is used when the queue is full
+     *
+     * @param policy  one of the queue policy names
+     * @param timeout  milliseconds to wait for room in the queue
+     *
+     * @return - the handler for the policy
+     *
+     */
+    private static RejectedExecutionHandler createPolicy(String policy,
+                                                         final long timeout) {
+        if (BLOCK_POLICY.equalsIgnoreCase(policy)) {
+            return new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r,
+                                              ThreadPoolExecutor e) {
+                    try {
+                        if (e.isShutdown() || !e.getQueue().offer(r, timeout,
+                                                  TimeUnit.MILLISECONDS)) {
+                            throw new RejectedExecutionException();
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(ie);
+                    }
+                }
+            };
+        } else if (CALLER_POLICY.equalsIgnoreCase(policy)) {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+        return new ThreadPoolExecutor.AbortPolicy();
+    }
+
+    /**
+     * a priority lane, the threads sending its mail and the connections they
+     * use
+     */
+    private static class Lane {
+
+        final ThreadPoolExecutor executor;
+        final TransportPool pool;
+
+        Lane(String name, int threads, int queueSize, String policy,
+             long timeout, int maxPerKey, long idleTimeout,
+             long waitTimeout) {
+            executor = new ThreadPoolExecutor(threads, threads, 60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new MailerThreadFactory("mailer-" + name + "-"),
+                    createPolicy(policy, timeout));
+            // let the threads die off when the lane is not sending mail
+            executor.allowCoreThreadTimeOut(true);
+            pool = new TransportPool(maxPerKey, idleTimeout, waitTimeout);
+        }
+    }
+
+    /**
+     * puts a message waiting on the wheel back on the queue
+     */
+    private class Retry implements Runnable {
+
+        private final Mail mail;
+
+        Retry(Mail mail) {
+            this.mail = mail;
+        }
+
+        public void run() {
+            if (offer(mail)) {
+                return;
+            }
+            if (mail.getSpoolId() >= 0) {
+                // the drainer queues it once there is room
+                park(mail);
+                spool.release(mail.getSpoolId());
+            } else if (!timer.isShutdown()) {
+                // try again on a later tick
+                wheel.schedule(this, 1000);
+            } else {
+                mail.abandoned();
+            }
+        }
+    }
+
+    /**
+     * names the threads created by the dispatcher and makes them daemons so
+     * they never hold up the shutdown of the container
+     */
+    static class MailerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        MailerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
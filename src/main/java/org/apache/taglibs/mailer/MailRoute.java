@@ -0,0 +1,290 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimePartDataSource;
+import jakarta.servlet.ServletContext;
+import javax.naming.NamingException;
+
+/**
+ * MailRoute - describes how the mail session of a message is obtained, either
+ *             from a SMTP host, port and user or from a JNDI named Session or
+ *             MimePartDataSource.  A route can be written to the spool with
+ *             the message so that the session can be found again when the
+ *             message is delivered after a restart.
+ *
+ * <p>
+ * The host of a route to a SMTP server may be a list of relays separated by
+ * commas or white space, each given as host or host:port.  A relay without a
+ * port uses the port of the route.  The session of such a route is the
+ * session of the first relay, the relay a message is actually sent through
+ * is picked by the RelayBalancer of the dispatcher using the strategy of the
+ * route.
+ * </p>
+ *
+ * <p>
+ * The password is never written to the spool.  A message that needs
+ * authentication and was recovered from the spool is delivered once a page
+ * of the web application has used the same host, port and user again.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class MailRoute {
+
+    /**
+     * The kinds of route
+     */
+    public final static int SERVER = 1;
+    public final static int SESSION = 2;
+    public final static int MIME_MESSAGE = 3;
+
+    private final int kind;
+    private final String host;
+    private final String port;
+    private final boolean authenticate;
+    private final String user;
+    private final String password;
+    private final String name;
+    private final String strategy;
+
+    /**
+     * the relays of the route as host:port, null if it is not a route to a
+     * SMTP server
+     */
+    private final String[] relays;
+
+    /**
+     * true if the route was read back from the spool without its password
+     */
+    private final boolean recovered;
+
+    /**
+     * create a route to a SMTP host
+     *
+     * @param host  SMTP host
+     * @param port  SMTP port
+     * @param authenticate  true if the host requires authentication
+     * @param user  login user name
+     * @param password  login password, null if it is not known
+     */
+    public MailRoute(String host, String port, boolean authenticate,
+                     String user, String password) {
+        this(host, port, authenticate, user, password, null);
+    }
+
+    /**
+     * create a route to one or more SMTP relays
+     *
+     * @param host  SMTP host or list of relays
+     * @param port  SMTP port of the relays that do not give one
+     * @param authenticate  true if the host requires authentication
+     * @param user  login user name
+     * @param password  login password, null if it is not known
+     * @param strategy  name of the RelayBalancer strategy, null for round
+     *                  robin
+     */
+    public MailRoute(String host, String port, boolean authenticate,
+                     String user, String password, String strategy) {
+        this(SERVER, host, port, authenticate, user, password, null, strategy,
+             false);
+    }
+
+    /**
+     * create a route through a JNDI named object
+     *
+     * @param kind  SESSION or MIME_MESSAGE
+     * @param name  JNDI name of the Session or MimePartDataSource
+     */
+    public MailRoute(int kind, String name) {
+        this(kind, null, null, false, null, null, name, null, false);
+    }
+
+    private MailRoute(int kind, String host, String port, boolean authenticate,
+                      String user, String password, String name,
+                      String strategy, boolean recovered) {
+        this.kind = kind;
+        this.host = host;
+        this.port = port;
+        this.authenticate = authenticate;
+        this.user = user;
+        this.password = password;
+        this.name = name;
+        this.strategy = strategy;
+        this.recovered = recovered;
+        relays = kind == SERVER ? parseRelays(host, port) : null;
+    }
+
+    /**
+     * get the mail session for this route
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the session or null if the route needs a password which is
+     *           not known yet
+     *
+     * @throws NamingException  thrown when the JNDI lookup fails
+     *
+     */
+    public Session getSession(ServletContext sc) throws NamingException {
+        switch (kind) {
+            case SESSION:
+                return (Session)JndiCache.getInstance(sc).lookup(name);
+            case MIME_MESSAGE:
+                return ((MimePartDataSource)JndiCache.getInstance(sc)
+                        .lookup(name)).getMessageContext().getSession();
+            default:
+                if (!relays[0].equals(host + ":" + port)) {
+                    // a list of relays or a relay with a port of its own
+                    return forRelay(relays[0]).getSession(sc);
+                }
+                SessionCache cache = SessionCache.getInstance(sc);
+                if (authenticate && recovered) {
+                    return cache.findSession(host, port, user);
+                }
+                return cache.getSession(host, port, authenticate, user,
+                                        password);
+        }
+    }
+
+    /**
+     * get the relays of a route to SMTP servers
+     *
+     * @return - the relays as host:port, null for a JNDI route
+     *
+     */
+    public String[] getRelays() {
+        return relays;
+    }
+
+    /**
+     * get the strategy used to pick a relay
+     *
+     * @return - name of the strategy, null for round robin
+     *
+     */
+    public String getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * get the route to one of the relays of this route
+     *
+     * @param relay  the relay as host:port
+     *
+     * @return - a route with the same login to that relay only
+     *
+     */
+    public MailRoute forRelay(String relay) {
+        int colon = relay.lastIndexOf(':');
+        return new MailRoute(SERVER, relay.substring(0, colon),
+                             relay.substring(colon + 1), authenticate, user,
+                             password, null, null, recovered);
+    }
+
+    /**
+     * get the login user name for the route
+     *
+     * @return - login name or null
+     *
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * write the route, without the password
+     *
+     * @param out  output to write to
+     *
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        writeString(out, host);
+        writeString(out, port);
+        out.writeBoolean(authenticate);
+        writeString(out, user);
+        writeString(out, name);
+        writeString(out, strategy);
+    }
+
+    /**
+     * read a route written by writeTo
+     *
+     * @param in  input to read from
+     *
+     * @return - the route, without a password
+     *
+     */
+    public static MailRoute readFrom(DataInput in) throws IOException {
+        int kind = in.readByte();
+        String host = readString(in);
+        String port = readString(in);
+        boolean authenticate = in.readBoolean();
+        String user = readString(in);
+        String name = readString(in);
+        String strategy = readString(in);
+        return new MailRoute(kind, host, port, authenticate, user, null, name,
+                             strategy, true);
+    }
+
+    public String toString() {
+        if (kind == SERVER) {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < relays.length; i++) {
+                buf.append(i > 0 ? "," : "").append(relays[i]);
+            }
+            return buf.toString();
+        }
+        return name;
+    }
+
+    private static String[] parseRelays(String host, String port) {
+        List<String> relays = new ArrayList<String>();
+        if (host != null) {
+            StringTokenizer tokens = new StringTokenizer(host, ", \t\r\n");
+            while (tokens.hasMoreTokens()) {
+                String relay = tokens.nextToken();
+                relays.add(relay.indexOf(':') < 0 ? relay + ":" + port : relay);
+            }
+        }
+        if (relays.isEmpty()) {
+            relays.add(host + ":" + port);
+        }
+        return relays.toArray(new String[relays.size()]);
+    }
+
+    private static void writeString(DataOutput out, String value)
+        throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
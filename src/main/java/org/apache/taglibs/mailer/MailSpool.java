@@ -0,0 +1,690 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import jakarta.mail.Address;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * MailSpool - an append only journal on disk holding the messages that have
+ *             been handed to the dispatcher but not delivered yet, so that
+ *             they survive a redeploy or a crash of the container.
+ *
+ * <p>
+ * The journal is a sequence of segment files named spool-<i>n</i>.log.  Each
+ * record is written with a FileChannel and carries a CRC so that a record
+ * torn by a crash is recognised and cut off when the spool is opened again.
+ * A message record holds the priority lane, the route, the envelope
+ * recipients if they differ from the recipients of the message and the bytes
+ * of the message, a retry record the number of attempts made and the time
+ * before which the message is not sent again, and a done
+ * record marks a message as delivered.  Writers that append at the same time
+ * share one fsync.  Done records are only forced to disk by sync, a crash
+ * before that delivers the message again rather than losing it, retry
+ * records are forced the same way, a crash may lose the last attempt.  A segment
+ * is deleted once it and every older segment hold no undelivered message.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class MailSpool {
+
+    /**
+     * The record types
+     */
+    private final static int MESSAGE = 0x4d41494c;  // "MAIL"
+    private final static int DONE = 0x444f4e45;     // "DONE"
+    private final static int RETRY = 0x52545259;    // "RTRY"
+
+    /**
+     * record layout, type, id and length followed by the payload and a crc
+     */
+    private final static int HEADER_SIZE = 4 + 8 + 4;
+    private final static int TRAILER_SIZE = 8;
+
+    private final static String PREFIX = "spool-";
+    private final static String SUFFIX = ".log";
+
+    /**
+     * directory holding the segment files
+     */
+    private final File dir;
+
+    /**
+     * size at which a new segment is started
+     */
+    private final long segmentSize;
+
+    /**
+     * the segments from oldest to newest, the last one is written to
+     */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    /**
+     * the undelivered messages in the order they were spooled
+     */
+    private final Map<Long, Location> pending =
+        new LinkedHashMap<Long, Location>();
+
+    /**
+     * the undelivered messages currently handed to a sending thread
+     */
+    private final Set<Long> inFlight = new HashSet<Long>();
+
+    /**
+     * guards forcing the segments to disk
+     */
+    private final Object syncLock = new Object();
+
+    private long nextId = 1;
+    private int recovered = 0;
+    private boolean truncated = false;
+    private boolean closed = false;
+
+    /**
+     * open a spool, recovering the undelivered messages of the segments
+     * already in the directory
+     *
+     * @param dir  directory holding the segment files
+     * @param segmentSize  size in bytes at which a new segment is started
+     *
+     * @throws IOException  thrown when the spool cannot be read or created
+     *
+     */
+    public MailSpool(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + dir);
+        }
+
+        long last = 0;
+        for (long number : listSegments(dir)) {
+            Segment segment = new Segment(number);
+            segments.add(segment);
+            recover(segment);
+            last = number;
+        }
+        recovered = pending.size();
+        segments.add(new Segment(last + 1));
+        compact();
+    }
+
+    /**
+     * append a message to the spool and wait until it is on disk, the
+     * message is marked as being handed to a sending thread
+     *
+     * @param route  route used to find the session of the message
+     * @param lane  index of the priority lane of the message
+     * @param recipients  envelope recipients, null to send to all the
+     *                    recipients of the message
+     * @param message  the message as written by MimeMessage.writeTo
+     *
+     * @return - the id of the message in the spool
+     *
+     * @throws IOException  thrown when the message could not be written
+     *
+     */
+    public long append(MailRoute route, int lane, Address[] recipients,
+                       byte[] message) throws IOException {
+
+        ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(message.length + 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // the lane comes first so that recovery finds it without parsing
+        out.writeByte(lane);
+        route.writeTo(out);
+        if (recipients == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(recipients.length);
+            for (int i = 0; i < recipients.length; i++) {
+                out.writeUTF(recipients[i] instanceof InternetAddress ?
+                    ((InternetAddress)recipients[i]).getAddress() :
+                    recipients[i].toString());
+            }
+        }
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+
+        long id;
+        Segment segment;
+        long end;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The mail spool is closed.");
+            }
+            id = nextId++;
+            segment = write(MESSAGE, id, payload);
+            end = segment.written;
+            pending.put(Long.valueOf(id), new Location(segment,
+                end - TRAILER_SIZE - payload.length - HEADER_SIZE,
+                payload.length, lane));
+            segment.live++;
+            inFlight.add(Long.valueOf(id));
+        }
+
+        try {
+            force(segment, end);
+        } catch (IOException ioe) {
+            synchronized (this) {
+                inFlight.remove(Long.valueOf(id));
+                if (pending.remove(Long.valueOf(id)) != null) {
+                    segment.live--;
+                }
+            }
+            throw ioe;
+        }
+        return id;
+    }
+
+    /**
+     * read an undelivered message back from the spool
+     *
+     * @param id  id of the message
+     *
+     * @return - the message or null if it has been delivered
+     *
+     * @throws IOException  thrown when the message could not be read
+     *
+     */
+    public Entry read(long id) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = pending.get(Long.valueOf(id));
+        }
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(location.segment.channel, buffer,
+                  location.offset + HEADER_SIZE);
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(buffer.array()));
+        int lane = in.readByte();
+        MailRoute route = MailRoute.readFrom(in);
+        Address[] recipients = null;
+        int count = in.readInt();
+        if (count >= 0) {
+            recipients = new Address[count];
+            for (int i = 0; i < count; i++) {
+                try {
+                    recipients[i] = new InternetAddress(in.readUTF(), false);
+                } catch (AddressException ae) {
+                    throw new IOException("Bad recipient in spooled message "
+                                          + id + ": " + ae.getMessage());
+                }
+            }
+        }
+        byte[] message = new byte[in.readInt()];
+        in.readFully(message);
+        synchronized (this) {
+            return new Entry(id, lane, route, recipients, message,
+                             location.attempts, location.notBefore);
+        }
+    }
+
+    /**
+     * record a failed attempt to send a message, the message is not claimed
+     * again before the time of the next attempt
+     *
+     * @param id  id of the message
+     * @param attempts  number of attempts made so far
+     * @param notBefore  time of the next attempt in milliseconds since the
+     *                   epoch
+     *
+     * @throws IOException  thrown when the retry record could not be written
+     *
+     */
+    public synchronized void retry(long id, int attempts, long notBefore)
+        throws IOException {
+        Location location = pending.get(Long.valueOf(id));
+        if (location == null || closed) {
+            return;
+        }
+        location.attempts = attempts;
+        location.notBefore = notBefore;
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8);
+        payload.putInt(attempts).putLong(notBefore);
+        write(RETRY, id, payload.array());
+    }
+
+    /**
+     * replace a spooled message by a copy sent to fewer recipients, used when
+     * only some recipients have to be sent to again
+     *
+     * @param id  id of the message
+     * @param recipients  envelope recipients of the copy
+     *
+     * @return - the id of the copy, which keeps the attempts of the message
+     *           and is marked as being handed to a sending thread
+     *
+     * @throws IOException  thrown when the copy could not be written
+     *
+     */
+    public long readdress(long id, Address[] recipients) throws IOException {
+        Entry entry = read(id);
+        if (entry == null) {
+            throw new IOException("Message " + id + " is not in the spool.");
+        }
+        long copy = append(entry.getRoute(), entry.getLane(), recipients,
+                           entry.getMessage());
+        if (entry.getAttempts() > 0) {
+            retry(copy, entry.getAttempts(), entry.getNotBefore());
+        }
+        markDone(id);
+        return copy;
+    }
+
+    /**
+     * mark a message as delivered, or as never to be delivered
+     *
+     * @param id  id of the message
+     *
+     * @throws IOException  thrown when the done record could not be written
+     *
+     */
+    public synchronized void markDone(long id) throws IOException {
+        inFlight.remove(Long.valueOf(id));
+        Location location = pending.remove(Long.valueOf(id));
+        if (location == null || closed) {
+            return;
+        }
+        location.segment.live--;
+        write(DONE, id, new byte[0]);
+        compact();
+    }
+
+    /**
+     * hand undelivered messages of a priority lane which are not being sent
+     * and whose next attempt is due to the caller, the messages are marked
+     * as being handed to a sending thread until they are released or marked
+     * as done
+     *
+     * @param max  maximum number of messages to claim
+     * @param lane  index of the priority lane
+     *
+     * @return - the ids of the claimed messages, oldest first
+     *
+     */
+    public synchronized List<Long> claim(int max, int lane) {
+        List<Long> ids = new ArrayList<Long>();
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long, Location>> i =
+                 pending.entrySet().iterator();
+                 i.hasNext() && ids.size() < max; ) {
+            Map.Entry<Long, Location> e = i.next();
+            if (e.getValue().lane == lane && e.getValue().notBefore <= now &&
+                    !inFlight.contains(e.getKey())) {
+                inFlight.add(e.getKey());
+                ids.add(e.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * release a claimed message that has not been delivered so that it can be
+     * claimed again
+     *
+     * @param id  id of the message
+     *
+     */
+    public synchronized void release(long id) {
+        inFlight.remove(Long.valueOf(id));
+    }
+
+    /**
+     * force the records written so far, including done records, to disk
+     *
+     * @throws IOException  thrown when the segment could not be forced
+     *
+     */
+    public void sync() throws IOException {
+        Segment segment;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            segment = segments.getLast();
+        }
+        force(segment, segment.written);
+    }
+
+    /**
+     * get the number of undelivered messages
+     *
+     * @return - number of messages in the spool
+     *
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * get the number of undelivered messages found when the spool was opened
+     *
+     * @return - number of recovered messages
+     *
+     */
+    public int getRecoveredCount() {
+        return recovered;
+    }
+
+    /**
+     * get whether a torn record was cut off when the spool was opened
+     *
+     * @return - true if the end of a segment was damaged
+     *
+     */
+    public boolean wasTruncated() {
+        return truncated;
+    }
+
+    /**
+     * force the spool to disk and close the segment files, undelivered
+     * messages are recovered the next time the spool is opened
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        synchronized (syncLock) {
+            for (Segment segment : segments) {
+                segment.channel.force(false);
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * write a record to the newest segment, starting a new segment when it is
+     * full, must be called holding the lock of the spool
+     */
+    private Segment write(int type, long id, byte[] payload)
+        throws IOException {
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length +
+                                                TRAILER_SIZE);
+        record.putInt(type).putLong(id).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, HEADER_SIZE + payload.length);
+        record.putLong(crc.getValue());
+        record.flip();
+
+        Segment segment = segments.getLast();
+        if (segment.written > 0 &&
+                segment.written + record.remaining() > segmentSize) {
+            // the old segment is complete, make sure it is all on disk
+            force(segment, segment.written);
+            segment = new Segment(segment.number + 1);
+            segments.add(segment);
+        }
+        long position = segment.written;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.written = position;
+        return segment;
+    }
+
+    /**
+     * force a segment to disk up to a position, writers waiting at the same
+     * time are covered by a single fsync
+     */
+    private void force(Segment segment, long position) throws IOException {
+        synchronized (syncLock) {
+            if (segment.synced >= position) {
+                // forced by another writer while this one was waiting
+                return;
+            }
+            long written = segment.written;
+            segment.channel.force(false);
+            segment.synced = written;
+        }
+    }
+
+    /**
+     * delete the oldest segments once they hold no undelivered message, must
+     * be called holding the lock of the spool
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1 && segments.getFirst().live == 0) {
+            Segment segment = segments.removeFirst();
+            segment.channel.close();
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * read the records of a segment, cutting off a damaged tail
+     */
+    private void recover(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE + TRAILER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int type = header.getInt();
+            long id = header.getLong();
+            int length = header.getInt();
+            if ((type != MESSAGE && type != DONE && type != RETRY) ||
+                    length < 0 ||
+                    position + HEADER_SIZE + length + TRAILER_SIZE > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length + TRAILER_SIZE);
+            readFully(channel, body, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_SIZE);
+            crc.update(body.array(), 0, length);
+            if (body.getLong(length) != crc.getValue()) {
+                break;
+            }
+
+            if (type == MESSAGE) {
+                pending.put(Long.valueOf(id), new Location(segment, position,
+                    length, length > 0 ? body.get(0) : 0));
+                segment.live++;
+            } else if (type == RETRY) {
+                Location location = pending.get(Long.valueOf(id));
+                if (location != null && length >= 4 + 8) {
+                    location.attempts = body.getInt(0);
+                    location.notBefore = body.getLong(4);
+                }
+            } else {
+                Location location = pending.remove(Long.valueOf(id));
+                if (location != null) {
+                    location.segment.live--;
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            position += HEADER_SIZE + length + TRAILER_SIZE;
+        }
+        if (position < size) {
+            // the tail was torn by a crash while it was being written
+            channel.truncate(position);
+            truncated = true;
+        }
+        segment.written = position;
+        segment.synced = position;
+    }
+
+    /**
+     * fill a buffer from a channel starting at a position
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * list the numbers of the segment files in a directory, oldest first
+     */
+    private static long[] listSegments(File dir) {
+        String[] names = dir.list();
+        long[] numbers = new long[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            String name = names[i];
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    numbers[count++] = Long.parseLong(name.substring(
+                        PREFIX.length(), name.length() - SUFFIX.length()));
+                } catch (NumberFormatException nfe) {
+                    // not a segment
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * a message read back from the spool
+     */
+    public static class Entry {
+        private final long id;
+        private final int lane;
+        private final MailRoute route;
+        private final Address[] recipients;
+        private final byte[] message;
+        private final int attempts;
+        private final long notBefore;
+
+        Entry(long id, int lane, MailRoute route, Address[] recipients,
+              byte[] message, int attempts, long notBefore) {
+            this.id = id;
+            this.lane = lane;
+            this.route = route;
+            this.recipients = recipients;
+            this.message = message;
+            this.attempts = attempts;
+            this.notBefore = notBefore;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getLane() {
+            return lane;
+        }
+
+        public MailRoute getRoute() {
+            return route;
+        }
+
+        public Address[] getRecipients() {
+            return recipients;
+        }
+
+        public byte[] getMessage() {
+            return message;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getNotBefore() {
+            return notBefore;
+        }
+    }
+
+    /**
+     * one segment file of the journal
+     */
+    private class Segment {
+        final long number;
+        final File file;
+        final FileChannel channel;
+        // bytes written and bytes known to be on disk
+        volatile long written = 0;
+        long synced = 0;
+        // number of undelivered messages in the segment
+        int live = 0;
+
+        Segment(long number) throws IOException {
+            this.number = number;
+            String name = Long.toString(number);
+            while (name.length() < 10) {
+                name = "0" + name;
+            }
+            file = new File(dir, PREFIX + name + SUFFIX);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+    }
+
+    /**
+     * where a message record is in the journal
+     */
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int lane;
+        // attempts made and time of the next one, from the retry records
+        int attempts = 0;
+        long notBefore = 0;
+
+        Location(Segment segment, long offset, int length, int lane) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lane = lane;
+        }
+    }
+}
@@ -18,13 +18,14 @@ package org.apache.taglibs.mailer;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
-import jakarta.mail.internet.MimePartDataSource;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import jakarta.servlet.jsp.JspException;
 import jakarta.servlet.jsp.tagext.BodyTagSupport;
@@ -84,6 +85,21 @@ import jakarta.servlet.jsp.tagext.BodyTagSupport;
  *              <rtexprvalue>false</rtexprvalue>
  *      </attribute>
  *      <attribute>
+ *              <name>strategy</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *      </attribute>
+ *      <attribute>
+ *              <name>priority</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *      </attribute>
+ *      <attribute>
+ *              <name>idempotencyKey</name>
+ *              <required>false</required>
+ *              <rtexprvalue>true</rtexprvalue>
+ *      </attribute>
+ *      <attribute>
  *              <name>session</name>
  *              <required>false</required>
  *              <rtexprvalue>false</rtexprvalue>
@@ -126,7 +142,7 @@ public class MailTag extends BodyTagSupport {
      * the address to which the mail is to be sent
      */
     private String to = null;
-    private StringBuffer addTO = new StringBuffer();
+    private Recipients addTO = new Recipients(TO_ADDRESS_STRING);
 
     /**
      * the address to whom the recipient can reply to
@@ -138,13 +154,13 @@ public class MailTag extends BodyTagSupport {
      * the carbon copy list addresses that the message will be sent to
      */
     private String cc = null;
-    private StringBuffer addCC = new StringBuffer();
+    private Recipients addCC = new Recipients(CC_ADDRESS_STRING);
 
     /**
      * the blind carbon copy list of addresses to recieve the message
      */
     private String bcc = null;
-    private StringBuffer addBCC = new StringBuffer();
+    private Recipients addBCC = new Recipients(BCC_ADDRESS_STRING);
 
     /**
      * the subject of the message
@@ -158,7 +174,13 @@ public class MailTag extends BodyTagSupport {
     private String body = null;
 
     /**
-     * or provide the server here for a new session
+     * the body of the email message when it is streamed, null when it is
+     * held in body
+     */
+    private SpillBuffer bodybuffer = null;
+
+    /**
+     * or provide the server here for a new session, may be a list of relays
      */
     private String server = "localhost";
     private String reset_server = null;
@@ -169,6 +191,22 @@ public class MailTag extends BodyTagSupport {
     private String port = "25";
     private String reset_port = null;
 
+    /**
+     * how the relay is picked when server lists more than one
+     */
+    private String strategy = null;
+
+    /**
+     * priority lane the message is sent on, high, normal or low
+     */
+    private String priority = null;
+
+    /**
+     * key of the message, a message sent again with the same key within the
+     * idempotency window is dropped
+     */
+    private String idempotencyKey = null;
+
     /**
      * can be "text" or "html" (otherwise text is default)
      */
@@ -221,9 +259,10 @@ public class MailTag extends BodyTagSupport {
     private ArrayList value = new ArrayList(10);
 
     /**
-     * list of attachments stored as mimebodyparts
+     * list of attachments stored as mimebodyparts, or futures of those still
+     * being fetched
      */
-    private ArrayList bodyparts = new ArrayList(10);
+    private ArrayList<Object> bodyparts = new ArrayList<Object>(10);
 
     /**
      * flag that lets the send tag know if attachments are being sent
@@ -255,18 +294,9 @@ public class MailTag extends BodyTagSupport {
      */
     public int doStartTag() throws JspException {
         // Reset dynamic email addresses
-        addTO.setLength(0);
-        if (to != null) {
-            addTO.append(to);
-        }
-        addCC.setLength(0);
-        if (cc != null) {
-            addCC.append(cc);
-        }
-        addBCC.setLength(0);
-        if (bcc != null) {
-            addBCC.append(bcc);
-        }
+        addTO.reset(to);
+        addCC.reset(cc);
+        addBCC.reset(bcc);
         reset_from = null;
         reset_replyto = null;
         reset_subject = null;
@@ -297,6 +327,10 @@ public class MailTag extends BodyTagSupport {
      */
     public int doEndTag() throws JspException {
 
+	// the messages of this tag were queued, the jobs sending them hold
+	// the buffers they still need
+	releaseBuffers();
+
 	// check to see if bodycontent is just blank space
 	if (bodyContent.getString().trim().length() == 0)
 	    return EVAL_PAGE;
@@ -312,6 +346,24 @@ public class MailTag extends BodyTagSupport {
 	}
     }
 
+    /**
+     * let go of the buffers the body and the inline attachments were
+     * streamed into
+     */
+    private void releaseBuffers() {
+	if (bodybuffer != null) {
+	    bodybuffer.release();
+	    bodybuffer = null;
+	}
+	for (int i = 0; i < bodyparts.size(); i++)
+	    if (bodyparts.get(i) instanceof MimeBodyPart) {
+		SpillBuffer buffer =
+		    SpillBuffer.getBuffer((MimeBodyPart)bodyparts.get(i));
+		if (buffer != null)
+		    buffer.release();
+	    }
+    }
+
     /**
      * get the whole email message
      *
@@ -319,75 +371,45 @@ public class MailTag extends BodyTagSupport {
      *
      */
     public MimeMessage getMessage() throws JspException {
-        MimeMessage message;
+        if (strategy != null && !RelayBalancer.isStrategy(strategy)) {
+            throw new JspException("Unknown relay strategy " + strategy);
+        }
+        if (MailDispatcher.getLane(priority) < 0) {
+            throw new JspException("Unknown priority " + priority);
+        }
+        try {
+            // find the session through the jndi named MimePartDataSource or
+            // Session, or get the smtp session for the server, sessions are
+            // cached per server, port and authentication so that a server or
+            // port set by a nested tag gets a session of its own
+            sessionobj = getRoute().getSession(pageContext.getServletContext());
+        } catch (NamingException ne) {
+            throw new JspException("Naming Exception " + ne.getExplanation());
+        }
+        // the send tag may give the message a body it encoded itself
+        MimeMessage message = new EncodedMimeMessage(sessionobj);
+	return message;
+    }
+
+    /**
+     * get the route that describes how the mail session of this email is
+     * obtained
+     *
+     * @return - route through a jndi named object or to the smtp server
+     *
+     */
+    public MailRoute getRoute() {
         if (mimemessage != null) {
-            try {
-                // get initial context from which to lookup messagedatasource
-                Context ctx = new InitialContext();
-
-                // create mail message using preexisting jndi named message
-                MimePartDataSource mds =
-                                 (MimePartDataSource)ctx.lookup(mimemessage);
-                sessionobj = mds.getMessageContext().getSession();
-                message = new MimeMessage(sessionobj);
-            } catch (NamingException ne) {
-                throw new JspException("Naming Exception " +
-                                       ne.getExplanation());
-            }
+            return new MailRoute(MailRoute.MIME_MESSAGE, mimemessage);
         } else if (session != null) {
-            try {
-                // get initial context from which to lookup session
-                Context ctx = new InitialContext();
-
-                // create the mail message using the preconfigured jndi
-                // named session
-                sessionobj = (Session)ctx.lookup(session);
-                message = new MimeMessage(sessionobj);
-            } catch (NamingException ne) {
-                throw new JspException("Naming Exception " +
-                                           ne.getExplanation());
-            }
-        } else {
-            // if configuring one of the above objects the following list
-            // are a good set to use to take care of error handling if some
-            // addresses are not valid
-
-            // set up the smtp session that will send the message
-            Properties props = new Properties();
-            // set host to server
-            if (reset_server != null) {
-                props.put("mail.smtp.host", reset_server);
-            } else {
-                props.put("mail.smtp.host", server);
-            }
-            // set port to server
-            if (reset_port != null) {
-                props.put("mail.smtp.port", reset_port);
-            } else {
-                props.put("mail.smtp.port", port);
-            }
-            // set properties to deal will SendFailedExceptions
-            // send to all legal addresses
-            props.put("mail.smtp.sendpartial", "true");
-            // set notification
-            props.put("mail.smtp.dsn.notify", "FAILURE");
-            // set amount of message to get returned
-            props.put("mail.smtp.dsn.ret", "FULL");
-            // create new piece of mail for the smtp mail session check if
-            // authentication is required for the mail server
-
-            if (authentication) {
-                    // create the session with an authenticator object
-                    // better way to do authentication
-                    props.put("mail.smtp.auth", "true");
-                    sessionobj = Session.getDefaultInstance(props,
-                                         new MailAuthenticator(user, password));
-            } else
-                sessionobj = Session.getDefaultInstance(props, null);
-
-            message = new MimeMessage(sessionobj);
+            return new MailRoute(MailRoute.SESSION, session);
         }
-	return message;
+        // if configuring one of the above objects the following list
+        // are a good set to use to take care of error handling if some
+        // addresses are not valid
+        return new MailRoute(reset_server != null ? reset_server : server,
+                             reset_port != null ? reset_port : port,
+                             authentication, user, password, strategy);
     }
 
     /**
@@ -400,6 +422,36 @@ public class MailTag extends BodyTagSupport {
 	return bodyparts;
     }
 
+    /**
+     * wait for the attachments still being fetched in the background, once
+     * this returns the list of attachments only holds mimebodyparts
+     *
+     * @throws MessagingException  thrown when an attachment could not be
+     *                             fetched
+     *
+     */
+    public void fetchBodyParts() throws MessagingException {
+	for (int i = 0; i < bodyparts.size(); i++) {
+	    if (!(bodyparts.get(i) instanceof Future))
+		continue;
+	    try {
+		// the fetch itself is bounded by the connect and read timeouts
+		bodyparts.set(i, ((Future<?>)bodyparts.get(i)).get());
+	    } catch (ExecutionException ee) {
+		Throwable cause = ee.getCause();
+		if (cause instanceof MessagingException)
+		    throw (MessagingException)cause;
+		throw new MessagingException(String.valueOf(cause.getMessage()),
+					     cause instanceof Exception ?
+					     (Exception)cause : ee);
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		throw new MessagingException("Interrupted while fetching the " +
+					     "attachments.", ie);
+	    }
+	}
+    }
+
     /**
      * get the attachments flat
      *
@@ -417,10 +469,17 @@ public class MailTag extends BodyTagSupport {
      *
      */
     public String getTo() {
-        if (addTO.length() > 0 ) {
-           return addTO.toString();
-        }
-        return null;
+        return addTO.toString();
+    }
+
+    /**
+     * get the to addresses for this email, parsed as they were added
+     *
+     * @return - the addresses, empty if there are none
+     *
+     */
+    public InternetAddress[] getToAddresses() {
+        return addTO.getAddresses();
     }
 
     /**
@@ -457,10 +516,17 @@ public class MailTag extends BodyTagSupport {
      *
      */
     public String getCc() {
-        if (addCC.length() > 0 ) {
-           return addCC.toString();
-        }
-        return null;
+        return addCC.toString();
+    }
+
+    /**
+     * get the cc addresses for this email, parsed as they were added
+     *
+     * @return - the addresses, empty if there are none
+     *
+     */
+    public InternetAddress[] getCcAddresses() {
+        return addCC.getAddresses();
     }
 
     /**
@@ -471,10 +537,32 @@ public class MailTag extends BodyTagSupport {
      *
      */
     public String getBcc() {
-        if (addBCC.length() > 0 ) {
-	   return addBCC.toString();
-        }
-        return null;
+        return addBCC.toString();
+    }
+
+    /**
+     * get the bcc addresses for this email, parsed as they were added
+     *
+     * @return - the addresses, empty if there are none
+     *
+     */
+    public InternetAddress[] getBccAddresses() {
+        return addBCC.getAddresses();
+    }
+
+    /**
+     * get the errors of the to, cc and bcc addresses that could not be
+     * parsed, one for each address
+     *
+     * @return - list of error messages, empty if every address was parsed
+     *
+     */
+    public ArrayList<String> getAddressErrors() {
+        ArrayList<String> errors = new ArrayList<String>();
+        errors.addAll(addTO.errors);
+        errors.addAll(addCC.errors);
+        errors.addAll(addBCC.errors);
+        return errors;
     }
 
     /**
@@ -517,9 +605,31 @@ public class MailTag extends BodyTagSupport {
      *
      */
     public String getBody() {
+	if (bodybuffer != null)
+	    return bodybuffer.toString();
 	return body;
     }
 
+    /**
+     * get the buffer the body of this email was streamed into
+     *
+     * @return - the buffer, or null if the body is held as a string
+     *
+     */
+    public SpillBuffer getBodyBuffer() {
+	return bodybuffer;
+    }
+
+
+    /**
+     * get the login user name for basic smtp authentication
+     *
+     * @return - login name or null if the user was not set
+     *
+     */
+    public String getUser() {
+	return user;
+    }
 
     /**
      * get the jndi named session to be used to find the mail session
@@ -642,6 +752,18 @@ public class MailTag extends BodyTagSupport {
      */
     public void setMessage(String value) {
 	body = value;
+	bodybuffer = null;
+    }
+
+    /**
+     * set the message of this email as a buffer it was streamed into
+     *
+     * @param value  the buffer holding the body of this email
+     *
+     */
+    public void setMessage(SpillBuffer value) {
+	bodybuffer = value;
+	body = null;
     }
 
     /**
@@ -660,6 +782,18 @@ public class MailTag extends BodyTagSupport {
 	    attachments = true;
     }
 
+    /**
+     * add an attachment that is still being fetched, the send tag waits for
+     * it with fetchBodyParts
+     *
+     * @param part  future of the mimebodypart to be attached to the e-mail
+     *
+     */
+    public void setBodyParts(Future<MimeBodyPart> part) {
+	bodyparts.add(part);
+	attachments = true;
+    }
+
     /**
      * set the login user name for basic smtp authentication
      *
@@ -700,6 +834,57 @@ public class MailTag extends BodyTagSupport {
 	port = value;
     }
 
+    /**
+     * set the strategy used to pick one of the relays listed in server
+     *
+     * @param value  roundrobin, leastoutstanding or latency
+     *
+     */
+    public void setStrategy(String value) {
+	strategy = value;
+    }
+
+    /**
+     * set the priority lane the message is sent on
+     *
+     * @param value  high, normal or low
+     *
+     */
+    public void setPriority(String value) {
+	priority = value;
+    }
+
+    /**
+     * get the priority lane the message is sent on
+     *
+     * @return - high, normal, low or null for normal
+     *
+     */
+    public String getPriority() {
+	return priority;
+    }
+
+    /**
+     * set the idempotency key of the message
+     *
+     * @param value  a key unique to the message, such as the id of the
+     *               form that was submitted
+     *
+     */
+    public void setIdempotencyKey(String value) {
+	idempotencyKey = value;
+    }
+
+    /**
+     * get the idempotency key of the message
+     *
+     * @return - the key or null if the message has none
+     *
+     */
+    public String getIdempotencyKey() {
+	return idempotencyKey;
+    }
+
     /**
      * set the jndi named session to be used to find the mail session
      *
@@ -762,10 +947,7 @@ public class MailTag extends BodyTagSupport {
      *
      */
     protected void addTo(String value) {
-        if (addTO.length() > 0) {
-            addTO.append(",");
-        }
-	addTO.append(value);
+        addTO.add(value);
     }
 
     /**
@@ -776,10 +958,7 @@ public class MailTag extends BodyTagSupport {
      *
      */
     protected void addCc(String value) {
-        if (addCC.length() > 0) {
-            addCC.append(",");
-        }
-        addCC.append(value);
+        addCC.add(value);
     }
 
     /**
@@ -790,10 +969,7 @@ public class MailTag extends BodyTagSupport {
      *
      */
     protected void addBcc(String value) {
-        if (addBCC.length() > 0) {
-            addBCC.append(",");
-        }
-        addBCC.append(value);
+        addBCC.add(value);
     }
 
     /**
@@ -802,8 +978,7 @@ public class MailTag extends BodyTagSupport {
      * @param value  string that is an address to whom this mail is to be sent
      */
     protected void resetTo(String value) {
-        addTO.setLength(0);
-        addTO.append(value);
+        addTO.reset(value);
     }
 
     /**
@@ -812,8 +987,7 @@ public class MailTag extends BodyTagSupport {
      * @param value  string that is a cc address to be used for this email
      */
     protected void resetCc(String value) {
-        addCC.setLength(0);
-        addCC.append(value);
+        addCC.reset(value);
     }
 
     /**
@@ -822,8 +996,7 @@ public class MailTag extends BodyTagSupport {
      * @param value  string that is a bcc address to be used for this email
      */
     protected void resetBcc(String value) {
-        addBCC.setLength(0);
-        addBCC.append(value);
+        addBCC.reset(value);
     }
 
     /**
@@ -871,5 +1044,68 @@ public class MailTag extends BodyTagSupport {
         reset_port = value;
     }
 
-}
 
+    /**
+     * Recipients - the addresses of one type of recipient, each address is
+     *              parsed once when it is added
+     */
+    private class Recipients {
+
+        private final String type;
+        private final List<InternetAddress> addresses =
+            new ArrayList<InternetAddress>();
+        private final List<String> errors = new ArrayList<String>();
+
+        Recipients(String type) {
+            this.type = type;
+        }
+
+        /**
+         * add one or more comma separated addresses, an address that cannot
+         * be parsed is left out and reported in the errors
+         */
+        void add(String value) {
+            if (value == null || value.trim().length() == 0) {
+                return;
+            }
+            AddressCache.Parsed parsed = AddressCache.getInstance(
+                pageContext.getServletContext()).lookup(value);
+            if (parsed.getError() != null) {
+                errors.add("The " + type + " address " + value.trim() +
+                           " is not in the proper format.");
+                return;
+            }
+            InternetAddress[] valid = parsed.getAddresses();
+            for (int i = 0; i < valid.length; i++) {
+                addresses.add(valid[i]);
+            }
+            String[] invalid = parsed.getInvalid();
+            for (int i = 0; i < invalid.length; i++) {
+                errors.add("The " + type + " address " + invalid[i] +
+                           " is not in the proper format.");
+            }
+        }
+
+        /**
+         * replace the addresses, with none if value is null
+         */
+        void reset(String value) {
+            addresses.clear();
+            errors.clear();
+            add(value);
+        }
+
+        InternetAddress[] getAddresses() {
+            return addresses.toArray(new InternetAddress[addresses.size()]);
+        }
+
+        /**
+         * @return - the addresses separated by commas, null if there are
+         *           none
+         */
+        public String toString() {
+            return addresses.isEmpty() ? null :
+                InternetAddress.toString(getAddresses());
+        }
+    }
+}
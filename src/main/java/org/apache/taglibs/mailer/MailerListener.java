@@ -0,0 +1,68 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+
+/**
+ * MailerListener - starts the MailDispatcher of a web application when the
+ *                  application starts and shuts it down when it stops.
+ *
+ * <p>
+ * Starting the dispatcher with the application opens the spool right away,
+ * so that messages left by the last run are sent without waiting for a page
+ * to send mail.  When the application stops no more messages are accepted,
+ * the queued ones are given until the
+ * org.apache.taglibs.mailer.shutdownTimeout context parameter (default 30
+ * seconds) to be sent, the pooled connections and the spool are closed and
+ * the number of messages left unsent is logged.  Register it in web.xml:
+ * </p>
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;org.apache.taglibs.mailer.MailerListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * @version 1.0
+ *
+ */
+public class MailerListener implements ServletContextListener {
+
+    /**
+     * start the dispatcher of the web application
+     *
+     * @param event  event of the starting web application
+     *
+     */
+    public void contextInitialized(ServletContextEvent event) {
+        MailDispatcher.getInstance(event.getServletContext());
+    }
+
+    /**
+     * shut down the dispatcher of the web application
+     *
+     * @param event  event of the stopping web application
+     *
+     */
+    public void contextDestroyed(ServletContextEvent event) {
+        ServletContext sc = event.getServletContext();
+        MailDispatcher.shutdown(sc, MailDispatcher.getIntParameter(sc,
+            MailDispatcher.SHUTDOWN_TIMEOUT_PARAM, 30000));
+    }
+}
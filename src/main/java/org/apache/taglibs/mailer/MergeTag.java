@@ -0,0 +1,595 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.jsp.JspException;
+
+/**
+ * MergeTag - JSP tag <b>merge</b> is used instead of the send tag to send
+ *            the email once to each recipient of a list, with placeholders
+ *            of the subject and message filled in for each of them.
+ *
+ * <p>
+ * A placeholder is the name of a property between braces, such as
+ * <code>{firstName}</code>.  The items may be strings holding an address,
+ * maps, or beans, the address of a map or bean is its property named by the
+ * <b>address</b> attribute.  A placeholder whose property is missing is
+ * left as it is.
+ * </p>
+ *
+ * <p>
+ * Everything that is the same for every recipient is prepared once: the
+ * session, the from, reply-to, cc and bcc addresses, the extra headers, the
+ * compiled templates and the attachments, which are encoded once and shared
+ * by every message.  The messages are then handed to the MailDispatcher one
+ * at a time, at most <b>maxInFlight</b> of them are waiting to be delivered
+ * at once and the tag waits for one to finish before creating the next, so
+ * that a large list does not fill the memory or the queue.  When the mail
+ * tag has an idempotency key, the key of each message is that key followed
+ * by the address, so that a merge sent again skips the recipients that
+ * were sent to already.
+ * </p>
+ *
+ * <tag>
+ *        <name>merge</name>
+ *	  <tagclass>org.apache.taglibs.mailer.MergeTag</tagclass>
+ *	  <bodycontent>JSP</bodycontent>
+ *	  <info>Send the email to each recipient of a list</info>
+ *
+ *        <attribute>
+ *              <name>items</name>
+ *              <required>true</required>
+ *              <rtexprvalue>true</rtexprvalue>
+ *        </attribute>
+ *        <attribute>
+ *              <name>address</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
+ *        <attribute>
+ *              <name>maxInFlight</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
+ *        <attribute>
+ *              <name>var</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
+ *        <attribute>
+ *              <name>scope</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
+ * </tag>
+ *
+ * @version 1.0
+ *
+ */
+public class MergeTag extends SendTag {
+
+    private final static long serialVersionUID = 1L;
+
+    /**
+     * the recipients, an Iterator, Iterable, Map or array
+     */
+    private Object items = null;
+
+    /**
+     * property of a map or bean item holding the address
+     */
+    private String address = "email";
+
+    /**
+     * maximum number of messages waiting to be delivered
+     */
+    private int maxInFlight = 100;
+
+    /**
+     * the properties of each bean class met so far
+     */
+    private final Map<Class<?>, Map<String, Method>> getters =
+        new HashMap<Class<?>, Map<String, Method>>();
+
+    /**
+     * implementation of method from the Tag interface that tells the JSP what
+     * to do upon encountering the start tag for this tag set
+     *
+     * @return - SKIP_BODY once the messages are queued, EVAL_BODY_TAG to
+     *           write the error page of the body
+     *
+     * @throws JspException  thrown when error occurs in processing the body of
+     *                       this method
+     *
+     */
+    public int doStartTag() throws JspException {
+
+        error = null;
+
+        // parent tag must be a MailTag, gives access to methods in parent
+        MailTag myparent = (MailTag)findAncestorWithClass(this, MailTag.class);
+
+        if (myparent == null)
+            throw new JspException("merge tag not nested within mail tag");
+
+        // the completed future holds the number of messages delivered
+        Batch batch = new Batch(maxInFlight);
+        setVariable(batch.result);
+
+        // resolve the session once, every message uses it
+        myparent.getMessage();
+        Session session = myparent.getSessionObj();
+
+        InternetAddress[] from = null;
+        InternetAddress[] replyto = null;
+        InternetAddress[] cc = null;
+        InternetAddress[] bcc = null;
+        // the recipients are parsed without the address cache, a long list
+        // would push the addresses used on every request out of it
+        AddressCache addresses =
+            AddressCache.getInstance(pageContext.getServletContext());
+        try {
+            String value = myparent.getFrom();
+            if (value == null || value.length() < 2)
+                value = session.getProperty("mail.from");
+            if (value != null)
+                from = new InternetAddress[] { addresses.getAddress(value) };
+            if (myparent.getReplyTo() != null)
+                replyto = addresses.parse(myparent.getReplyTo());
+        } catch (AddressException ae) {
+            addError("The address " + ae.getRef() + " is not in the proper"
+                     + " format.");
+        }
+        // the cc and bcc addresses were parsed as they were added
+        if (myparent.getCcAddresses().length > 0)
+            cc = myparent.getCcAddresses();
+        if (myparent.getBccAddresses().length > 0)
+            bcc = myparent.getBccAddresses();
+        ArrayList<String> addrerrors = myparent.getAddressErrors();
+        for (int i = 0; i < addrerrors.size(); i++)
+            addError(addrerrors.get(i));
+
+        Template subject = new Template(myparent.getSubject());
+        Template body = new Template(myparent.getBody());
+        String type = getContentType(myparent);
+
+        EncodedBodyPart[] attachments = null;
+        if (myparent.getAttachments()) {
+            try {
+                myparent.fetchBodyParts();
+                attachments = MailDispatcher.getInstance(
+                    pageContext.getServletContext()).encode(
+                    myparent.getBodyParts(), false);
+            } catch (MessagingException me) {
+                addError("The attachments could not be encoded:  "
+                         + me.getMessage());
+            } catch (IOException ie) {
+                addError("The attachments could not be read:  "
+                         + ie.getMessage());
+            }
+        }
+
+        Iterator<?> iterator = null;
+        if (items instanceof Iterator) {
+            iterator = (Iterator<?>)items;
+        } else if (items instanceof Iterable) {
+            iterator = ((Iterable<?>)items).iterator();
+        } else if (items instanceof Map) {
+            iterator = ((Map<?, ?>)items).values().iterator();
+        } else if (items instanceof Object[]) {
+            iterator = Arrays.asList((Object[])items).iterator();
+        } else if (items != null) {
+            addError("The items of the merge tag must be a collection, an"
+                     + " iterator, a map or an array.");
+        }
+
+        if (error != null) {
+            batch.finish();
+            return EVAL_BODY_BUFFERED;
+        }
+
+        ServletContext sc = pageContext.getServletContext();
+        MailDispatcher dispatcher = MailDispatcher.getInstance(sc);
+        IdempotencyCache ids = dispatcher.getIdempotencyCache();
+        String idkey = myparent.getIdempotencyKey();
+        String poolkey = TransportPool.getKey(session, myparent.getUser());
+        MailRoute route = myparent.getRoute();
+        int lane = MailDispatcher.getLane(myparent.getPriority());
+        ArrayList<?> name = myparent.getHeaderName();
+        ArrayList<?> value = myparent.getHeaderValue();
+
+        int queued = 0;
+        int skipped = 0;
+        try {
+            while (iterator != null && iterator.hasNext()) {
+                Object item = iterator.next();
+                if (item == null)
+                    continue;
+
+                Object to = item instanceof String ||
+                    item instanceof InternetAddress ? item :
+                    getProperty(item, address);
+                InternetAddress recipient;
+                try {
+                    recipient = to instanceof InternetAddress ?
+                        (InternetAddress)to :
+                        new InternetAddress(String.valueOf(to), true);
+                } catch (AddressException ae) {
+                    sc.log("Mailer taglib: merge skipped the address " + to
+                           + ", it is not in the proper format.");
+                    skipped++;
+                    continue;
+                }
+
+                MimeMessage message = new MimeMessage(session);
+                try {
+                    if (from != null)
+                        message.addFrom(from);
+                    if (replyto != null)
+                        message.setReplyTo(replyto);
+                    message.setRecipient(Message.RecipientType.TO, recipient);
+                    if (cc != null)
+                        message.setRecipients(Message.RecipientType.CC, cc);
+                    if (bcc != null)
+                        message.setRecipients(Message.RecipientType.BCC, bcc);
+                    for (int i = 0; i < name.size(); i++)
+                        message.addHeader((String)name.get(i),
+                                          (String)value.get(i));
+                    message.setSubject(subject.render(item));
+                    message.setSentDate(new Date());
+                    if (attachments == null) {
+                        message.setContent(body.render(item), type);
+                    } else {
+                        MimeMultipart multipart = new MimeMultipart();
+                        MimeBodyPart text = new MimeBodyPart();
+                        text.setContent(body.render(item), type);
+                        multipart.addBodyPart(text);
+                        for (int i = 0; i < attachments.length; i++)
+                            multipart.addBodyPart(attachments[i].copy());
+                        message.setContent(multipart);
+                    }
+                } catch (MessagingException me) {
+                    sc.log("Mailer taglib: merge skipped the message to "
+                           + recipient + ":  " + me.getMessage());
+                    skipped++;
+                    continue;
+                }
+
+                // the key is only taken once the message is built, so that
+                // a property that cannot be read does not keep it
+                String key = null;
+                if (idkey != null) {
+                    key = idkey + " " + recipient.getAddress();
+                    if (!ids.add(key))
+                        continue;
+                }
+
+                MimeMessage frozen;
+                try {
+                    // render it once for every attempt
+                    frozen = dispatcher.freeze(message);
+                } catch (MessagingException me) {
+                    sc.log("Mailer taglib: merge skipped the message to "
+                           + recipient + ":  " + me.getMessage());
+                    if (key != null)
+                        ids.remove(key);
+                    skipped++;
+                    continue;
+                }
+
+                if (frozen == null) {
+                    // the queue memory is used up
+                    if (key != null)
+                        ids.remove(key);
+                    addError("The mail queue is full or the mail spool could"
+                             + " not be written, " + queued + " message(s)"
+                             + " were queued before the merge stopped.");
+                    break;
+                }
+
+                try {
+                    // wait until one of the messages in flight is done
+                    try {
+                        batch.permits.acquire();
+                    } catch (InterruptedException ie) {
+                        if (key != null)
+                            ids.remove(key);
+                        throw ie;
+                    }
+                    Mail mail = new Mail(dispatcher, frozen,
+                                         recipient.toString(), poolkey, route,
+                                         lane);
+                    mail.setFuture(batch.track());
+                    mail.setIdempotencyKey(key);
+                    if (!dispatcher.submit(mail)) {
+                        batch.untrack();
+                        if (key != null)
+                            ids.remove(key);
+                        addError("The mail queue is full or the mail spool"
+                                 + " could not be written, " + queued
+                                 + " message(s) were queued before the merge"
+                                 + " stopped.");
+                        break;
+                    }
+                } finally {
+                    // the queued job holds its own reference
+                    FrozenMessage.release(frozen);
+                }
+                queued++;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            addError("The merge was interrupted after " + queued
+                     + " message(s) were queued.");
+        } finally {
+            batch.finish();
+        }
+
+        if (skipped > 0)
+            sc.log("Mailer taglib: merge queued " + queued + " message(s), "
+                   + skipped + " recipient(s) were skipped.");
+
+        if (error != null) {
+            return EVAL_BODY_BUFFERED;
+        }
+        return SKIP_BODY;
+    }
+
+    /**
+     * set the recipients
+     *
+     * @param value  an Iterator, Iterable, Map or array of addresses, maps
+     *               or beans
+     *
+     */
+    public void setItems(Object value) {
+        items = value;
+    }
+
+    /**
+     * set the property of a map or bean item holding the address
+     *
+     * @param value  name of the property, email by default
+     *
+     */
+    public void setAddress(String value) {
+        address = value;
+    }
+
+    /**
+     * set the maximum number of messages waiting to be delivered
+     *
+     * @param value  number of messages, 100 by default
+     *
+     */
+    public void setMaxInFlight(String value) {
+        maxInFlight = Math.max(1, Integer.parseInt(value.trim()));
+    }
+
+    private void addError(String message) {
+        if (error == null)
+            error = new ArrayList<String>();
+        error.add(message);
+    }
+
+    /**
+     * get a property of an item
+     *
+     * @param item  a map or bean
+     * @param property  name of the property
+     *
+     * @return - the value of the property, null if the item has none
+     *
+     */
+    private Object getProperty(Object item, String property)
+        throws JspException {
+        if (item instanceof Map)
+            return ((Map<?, ?>)item).get(property);
+        Map<String, Method> methods = getters.get(item.getClass());
+        if (methods == null) {
+            methods = new HashMap<String, Method>();
+            try {
+                PropertyDescriptor[] properties = Introspector
+                    .getBeanInfo(item.getClass()).getPropertyDescriptors();
+                for (int i = 0; i < properties.length; i++) {
+                    if (properties[i].getReadMethod() != null)
+                        methods.put(properties[i].getName(),
+                                    properties[i].getReadMethod());
+                }
+            } catch (IntrospectionException ie) {
+                throw new JspException("The properties of "
+                    + item.getClass().getName() + " cannot be read:  "
+                    + ie.getMessage());
+            }
+            getters.put(item.getClass(), methods);
+        }
+        Method getter = methods.get(property);
+        if (getter == null)
+            return null;
+        try {
+            return getter.invoke(item);
+        } catch (Exception e) {
+            throw new JspException("The property " + property + " of "
+                + item.getClass().getName() + " cannot be read:  "
+                + e.getMessage());
+        }
+    }
+
+    /**
+     * Template - a subject or message split into text and placeholders
+     */
+    private class Template {
+
+        /**
+         * the text before each placeholder and after the last one
+         */
+        private final String[] text;
+
+        /**
+         * the property of each placeholder
+         */
+        private final String[] properties;
+
+        Template(String template) {
+            if (template == null) {
+                this.text = new String[] { null };
+                this.properties = new String[0];
+                return;
+            }
+            List<String> text = new ArrayList<String>();
+            List<String> properties = new ArrayList<String>();
+            int start = 0;
+            int open = template.indexOf('{');
+            while (open >= 0) {
+                int close = template.indexOf('}', open + 1);
+                if (close < 0)
+                    break;
+                String property = template.substring(open + 1, close);
+                if (isProperty(property)) {
+                    text.add(template.substring(start, open));
+                    properties.add(property);
+                    start = close + 1;
+                    open = template.indexOf('{', start);
+                } else {
+                    open = template.indexOf('{', open + 1);
+                }
+            }
+            text.add(template.substring(start));
+            this.text = text.toArray(new String[text.size()]);
+            this.properties = properties.toArray(new String[properties.size()]);
+        }
+
+        /**
+         * fill in the placeholders for one recipient
+         *
+         * @param item  the recipient
+         *
+         * @return - the text with the placeholders filled in
+         *
+         */
+        String render(Object item) throws JspException {
+            if (properties.length == 0)
+                return text[0];
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < properties.length; i++) {
+                out.append(text[i]);
+                Object value = item instanceof String ||
+                    item instanceof InternetAddress ?
+                    (address.equals(properties[i]) ? item : null) :
+                    getProperty(item, properties[i]);
+                if (value == null)
+                    out.append('{').append(properties[i]).append('}');
+                else
+                    out.append(value);
+            }
+            return out.append(text[properties.length]).toString();
+        }
+
+        private boolean isProperty(String name) {
+            if (name.length() == 0 ||
+                    !Character.isJavaIdentifierStart(name.charAt(0)))
+                return false;
+            for (int i = 1; i < name.length(); i++) {
+                if (!Character.isJavaIdentifierPart(name.charAt(i)))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Batch - bounds the number of messages in flight and counts the ones
+     *         delivered
+     */
+    private static class Batch {
+
+        final Semaphore permits;
+        final CompletableFuture<Integer> result =
+            new CompletableFuture<Integer>();
+        private final AtomicInteger delivered = new AtomicInteger();
+        // messages in flight, plus one until the merge has queued them all
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+
+        Batch(int maxInFlight) {
+            permits = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * get the future of a message about to be queued, a permit must have
+         * been acquired
+         */
+        CompletableFuture<DeliveryResult> track() {
+            outstanding.incrementAndGet();
+            CompletableFuture<DeliveryResult> future =
+                new CompletableFuture<DeliveryResult>();
+            future.whenComplete(new BiConsumer<DeliveryResult, Throwable>() {
+                    public void accept(DeliveryResult r, Throwable t) {
+                        if (r != null && r.isSuccess())
+                            delivered.incrementAndGet();
+                        permits.release();
+                        done();
+                    }
+                });
+            return future;
+        }
+
+        /**
+         * give back the permit of a message that could not be queued
+         */
+        void untrack() {
+            permits.release();
+            done();
+        }
+
+        /**
+         * called once the merge has queued its messages
+         */
+        void finish() {
+            done();
+        }
+
+        private void done() {
+            if (outstanding.decrementAndGet() == 0)
+                result.complete(Integer.valueOf(delivered.get()));
+        }
+    }
+}
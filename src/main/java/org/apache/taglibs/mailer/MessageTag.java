@@ -16,6 +16,8 @@
 
 package org.apache.taglibs.mailer;
 
+import java.io.IOException;
+import java.io.Writer;
 import jakarta.servlet.jsp.JspException;
 import jakarta.servlet.jsp.tagext.BodyContent;
 import jakarta.servlet.jsp.tagext.BodyTagSupport;
@@ -79,13 +81,31 @@ public class MessageTag extends BodyTagSupport {
         }
 
         BodyContent body = getBodyContent();
-        String message = body.getString();
-        // Clear the body since we only used it as input for the email address
-        body.clearBody();
-        if (message == null) {
-            throw new JspException("The message tag is empty");
+        SpillBuffer buffer = SpillBuffer.newInstance(
+            pageContext.getServletContext(), charset);
+        if (buffer != null) {
+            // stream the body into the buffer rather than copying it into a
+            // string, a large body goes to a temporary file
+            try {
+                Writer writer = buffer.getWriter();
+                body.writeOut(writer);
+                writer.close();
+            } catch (IOException ie) {
+                throw new JspException("The message could not be buffered:  "
+                                       + ie.getMessage());
+            }
+            body.clearBody();
+            myparent.setMessage(buffer); // set message in the parent tag
+        } else {
+            String message = body.getString();
+            // Clear the body since we only used it as input for the email
+            // address
+            body.clearBody();
+            if (message == null) {
+                throw new JspException("The message tag is empty");
+            }
+            myparent.setMessage(message); // set message in the parent tag
         }
-	myparent.setMessage(message); // set message in the parent tag
 	myparent.setType(type);  // set the mime type of the message
 	myparent.setCharset(charset);  // set the character set of the message
 	return SKIP_BODY;
@@ -0,0 +1,291 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jakarta.mail.MessagingException;
+
+/**
+ * RateLimiter - token buckets limiting the number of messages sent per
+ *               second and per minute.
+ *
+ * <p>
+ * There is one pair of buckets for each relay, or for each relay and sender
+ * or relay and login user depending on how the limiter is keyed.  A message
+ * takes one token from each bucket of its key.  The limiter never blocks:
+ * when a bucket is empty tryAcquire still takes the token, leaving the
+ * bucket in debt, and returns the number of milliseconds until that token
+ * is due.  The message is parked on the timer wheel of the dispatcher for
+ * that long instead of holding a thread and is sent when it wakes up, so
+ * throttled messages are spread over the slots after each other instead of
+ * all waking up for the same token.  A token that is not used after all is
+ * given back with release.  The burst size is the number of tokens a bucket
+ * holds, a burst of 1 spaces the messages evenly.  The per minute bucket
+ * has a burst of its own, by default the burst of the per second bucket
+ * but never more than the per minute limit.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class RateLimiter {
+
+    /**
+     * The ways the limiter can be keyed
+     */
+    public final static String BY_RELAY = "relay";
+    public final static String BY_SENDER = "sender";
+    public final static String BY_USER = "user";
+
+    /**
+     * milliseconds after which an unused full bucket is dropped
+     */
+    private final static long IDLE = 60000L;
+
+    /**
+     * the buckets of each key
+     */
+    private final ConcurrentMap<String, Buckets> buckets =
+        new ConcurrentHashMap<String, Buckets>();
+
+    /**
+     * messages per second and per minute, 0 for no limit
+     */
+    private final double perSecond;
+    private final double perMinute;
+
+    /**
+     * number of tokens the per second and the per minute bucket hold
+     */
+    private final int burst;
+    private final int minuteBurst;
+
+    /**
+     * how the buckets are keyed
+     */
+    private final String by;
+
+    /**
+     * create a rate limiter
+     *
+     * @param perSecond  messages per second, 0 for no limit
+     * @param perMinute  messages per minute, 0 for no limit
+     * @param burst  number of messages that may be sent at once
+     * @param minuteBurst  number of messages that may be sent at once under
+     *                     the per minute limit, 0 for the burst but at most
+     *                     the per minute limit
+     * @param by  relay, sender or user
+     */
+    public RateLimiter(double perSecond, double perMinute, int burst,
+                       int minuteBurst, String by) {
+        this.perSecond = perSecond;
+        this.perMinute = perMinute;
+        this.burst = Math.max(1, burst);
+        this.minuteBurst = minuteBurst > 0 ? minuteBurst :
+            (int)Math.max(1, perMinute > 0 ?
+                          Math.min(this.burst, perMinute) : this.burst);
+        this.by = by;
+    }
+
+    /**
+     * check whether the limiter limits anything
+     *
+     * @return - true if a rate is set
+     *
+     */
+    public boolean isEnabled() {
+        return perSecond > 0 || perMinute > 0;
+    }
+
+    /**
+     * get the key of the buckets a message takes its tokens from
+     *
+     * @param relay  the relay as host:port
+     * @param sender  the sender address, may be null
+     * @param user  the login user, may be null
+     *
+     * @return - the key
+     *
+     */
+    public String getKey(String relay, String sender, String user) {
+        if (BY_SENDER.equals(by)) {
+            return relay + "|" + (sender == null ? "" : sender.toLowerCase());
+        } else if (BY_USER.equals(by)) {
+            return relay + "|" + (user == null ? "" : user);
+        }
+        return relay;
+    }
+
+    /**
+     * take a token for a message, if there is none left the next one is
+     * reserved for the message
+     *
+     * @param key  the key returned by getKey
+     *
+     * @return - 0 if the message may be sent now, otherwise the number of
+     *           milliseconds until the token reserved for it is due, the
+     *           message is then sent without taking another token
+     *
+     */
+    public long tryAcquire(String key) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        Buckets b = buckets.get(key);
+        if (b == null) {
+            b = new Buckets();
+            Buckets other = buckets.putIfAbsent(key, b);
+            if (other != null) {
+                b = other;
+            }
+        }
+        return b.tryAcquire(System.currentTimeMillis());
+    }
+
+    /**
+     * give back a token that was taken or reserved but is not used, such as
+     * that of a message sent through another relay
+     *
+     * @param key  the key returned by getKey
+     *
+     */
+    public void release(String key) {
+        Buckets b = buckets.get(key);
+        if (b != null) {
+            b.release(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * drop the buckets of keys that have not been used for a while, a full
+     * bucket is the same as a new one
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Buckets> i = buckets.values().iterator(); i.hasNext();) {
+            if (i.next().isIdle(now)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * get the number of keys with buckets
+     *
+     * @return - number of keys
+     *
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Buckets - the per second and per minute bucket of one key
+     */
+    private class Buckets {
+
+        private double second = burst;
+        private double minute = minuteBurst;
+        private long last = System.currentTimeMillis();
+        private long used = last;
+
+        synchronized long tryAcquire(long now) {
+            refill(now);
+            used = now;
+            // the token is taken even if the bucket runs into debt, the
+            // debt tells when it is due
+            long wait = 0;
+            if (perSecond > 0 && --second < 0) {
+                wait = Math.max(wait,
+                    (long)Math.ceil(-second * 1000 / perSecond));
+            }
+            if (perMinute > 0 && --minute < 0) {
+                wait = Math.max(wait,
+                    (long)Math.ceil(-minute * 60000 / perMinute));
+            }
+            return wait;
+        }
+
+        synchronized void release(long now) {
+            refill(now);
+            if (perSecond > 0) {
+                second = Math.min(burst, second + 1);
+            }
+            if (perMinute > 0) {
+                minute = Math.min(minuteBurst, minute + 1);
+            }
+        }
+
+        synchronized boolean isIdle(long now) {
+            refill(now);
+            return now - used >= IDLE && second >= burst &&
+                minute >= minuteBurst;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - last;
+            if (elapsed <= 0) {
+                return;
+            }
+            second = Math.min(burst, second + elapsed * perSecond / 1000);
+            minute = Math.min(minuteBurst,
+                              minute + elapsed * perMinute / 60000);
+            last = now;
+        }
+    }
+
+    /**
+     * Throttled - thrown when a message has to wait for a token, it is not
+     *             a failure and does not count as an attempt
+     */
+    public static class Throttled extends MessagingException {
+
+        private final static long serialVersionUID = 1L;
+
+        private final String key;
+        private final long delay;
+
+        Throttled(String key, long delay) {
+            super("The rate limit of " + key + " has been reached.");
+            this.key = key;
+            this.delay = delay;
+        }
+
+        /**
+         * get the key of the buckets the token is reserved in
+         *
+         * @return - the key
+         *
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * get the time to wait
+         *
+         * @return - milliseconds until the token reserved for the message
+         *           is due
+         *
+         */
+        public long getDelay() {
+            return delay;
+        }
+    }
+}
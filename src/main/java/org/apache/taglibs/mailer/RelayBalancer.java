@@ -0,0 +1,380 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RelayBalancer - picks the SMTP relay a message is sent through when the
+ *                 <b>server</b> attribute of the mail tag lists more than
+ *                 one relay.
+ *
+ * <p>
+ * Three strategies are supported:
+ * <pre>
+ * roundrobin        the relays are used in turn (the default)
+ * leastoutstanding  the relay with the fewest messages being sent
+ * latency           a relay picked at random, weighted by the inverse of
+ *                   the average time it takes to send a message through it
+ * </pre>
+ * A relay that refuses the connection or does not greet is ejected for the
+ * cool-down period and is not picked while any other relay is available.
+ * A relay whose CircuitBreaker is open is not picked at all.  The state of a
+ * relay is shared by every list it appears in and by messages sent to the
+ * relay alone.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class RelayBalancer {
+
+    /**
+     * The names of the selection strategies
+     */
+    public final static String ROUND_ROBIN = "roundrobin";
+    public final static String LEAST_OUTSTANDING = "leastoutstanding";
+    public final static String LATENCY = "latency";
+
+    /**
+     * weight of the newest sample in the moving average of the latency
+     */
+    private final static double ALPHA = 0.2;
+
+    /**
+     * the state of every relay, keyed by host:port
+     */
+    private final ConcurrentMap<String, Relay> relays =
+        new ConcurrentHashMap<String, Relay>();
+
+    /**
+     * the next index of each list used round robin
+     */
+    private final ConcurrentMap<String, AtomicInteger> counters =
+        new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * milliseconds a failed relay is left out
+     */
+    private final long cooldown;
+
+    /**
+     * settings of the circuit breaker of each relay
+     */
+    private final int window;
+    private final int minimumCalls;
+    private final int failureRate;
+    private final long openTime;
+    private final int probes;
+
+    /**
+     * create a balancer
+     *
+     * @param cooldown  milliseconds a failed relay is left out
+     * @param window  number of outcomes the failure rate of a relay is
+     *                computed over
+     * @param minimumCalls  number of outcomes needed before a circuit breaker
+     *                      may open
+     * @param failureRate  percentage of failures that opens a circuit breaker
+     * @param openTime  milliseconds a circuit breaker stays open
+     * @param probes  number of messages let through a half open breaker
+     */
+    public RelayBalancer(long cooldown, int window, int minimumCalls,
+                         int failureRate, long openTime, int probes) {
+        this.cooldown = cooldown;
+        this.window = window;
+        this.minimumCalls = minimumCalls;
+        this.failureRate = failureRate;
+        this.openTime = openTime;
+        this.probes = probes;
+    }
+
+    /**
+     * check the name of a strategy
+     *
+     * @param strategy  name of a strategy
+     *
+     * @return - true if the strategy is known
+     *
+     */
+    public static boolean isStrategy(String strategy) {
+        return ROUND_ROBIN.equals(strategy) ||
+               LEAST_OUTSTANDING.equals(strategy) || LATENCY.equals(strategy);
+    }
+
+    /**
+     * pick the relay to try next
+     *
+     * @param names  the relays as host:port
+     * @param strategy  name of the strategy, null for round robin
+     * @param tried  relays already tried for this message, they are not
+     *               picked again
+     *
+     * @return - the relay or null if every relay has been tried
+     *
+     */
+    public Relay select(String[] names, String strategy, Set<String> tried) {
+        long now = System.currentTimeMillis();
+        Relay[] candidates = new Relay[names.length];
+        int count = 0;
+        Relay soonest = null;
+        for (int i = 0; i < names.length; i++) {
+            if (tried.contains(names[i])) {
+                continue;
+            }
+            Relay relay = getRelay(names[i]);
+            if (!relay.breaker.isAvailable()) {
+                continue;
+            }
+            if (relay.ejectedUntil > now) {
+                if (soonest == null ||
+                        relay.ejectedUntil < soonest.ejectedUntil) {
+                    soonest = relay;
+                }
+                continue;
+            }
+            candidates[count++] = relay;
+        }
+        if (count == 0) {
+            // every relay left is cooling down, rather than fail without
+            // trying use the one that comes back first, but only once
+            return tried.isEmpty() ? soonest : null;
+        }
+
+        if (LEAST_OUTSTANDING.equals(strategy)) {
+            Relay best = candidates[0];
+            for (int i = 1; i < count; i++) {
+                if (candidates[i].outstanding.get() <
+                        best.outstanding.get()) {
+                    best = candidates[i];
+                }
+            }
+            return best;
+        }
+
+        if (LATENCY.equals(strategy)) {
+            // a relay without samples yet gets the weight of the fastest
+            // one so that it is tried
+            double fastest = 0;
+            for (int i = 0; i < count; i++) {
+                double latency = candidates[i].latency;
+                if (latency > 0 && (fastest == 0 || latency < fastest)) {
+                    fastest = latency;
+                }
+            }
+            double[] weights = new double[count];
+            double total = 0;
+            for (int i = 0; i < count; i++) {
+                double latency = candidates[i].latency;
+                weights[i] = 1.0 / (1.0 + (latency > 0 ? latency : fastest));
+                total += weights[i];
+            }
+            double pick = ThreadLocalRandom.current().nextDouble(total);
+            for (int i = 0; i < count; i++) {
+                pick -= weights[i];
+                if (pick < 0) {
+                    return candidates[i];
+                }
+            }
+            return candidates[count - 1];
+        }
+
+        AtomicInteger counter = counters.get(join(names));
+        if (counter == null) {
+            counter = new AtomicInteger();
+            AtomicInteger other = counters.putIfAbsent(join(names), counter);
+            if (other != null) {
+                counter = other;
+            }
+        }
+        return candidates[(counter.getAndIncrement() & 0x7fffffff) % count];
+    }
+
+    /**
+     * get the state of a relay
+     *
+     * @param name  the relay as host:port
+     *
+     * @return - the relay
+     *
+     */
+    public Relay getRelay(String name) {
+        Relay relay = relays.get(name);
+        if (relay == null) {
+            relay = new Relay(name);
+            Relay other = relays.putIfAbsent(name, relay);
+            if (other != null) {
+                relay = other;
+            }
+        }
+        return relay;
+    }
+
+    private static String join(String[] names) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            key.append(names[i]).append(',');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Relay - the state kept for one SMTP relay
+     */
+    public class Relay {
+
+        private final String name;
+
+        /**
+         * number of messages being sent through the relay
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /**
+         * moving average of the milliseconds a message takes, 0 if unknown
+         */
+        private volatile double latency = 0;
+
+        /**
+         * time until which the relay is left out
+         */
+        private volatile long ejectedUntil = 0;
+
+        /**
+         * stops sending to the relay while it keeps failing
+         */
+        private final CircuitBreaker breaker = new CircuitBreaker(window,
+            minimumCalls, failureRate, openTime, probes);
+
+        Relay(String name) {
+            this.name = name;
+        }
+
+        /**
+         * get the name of the relay
+         *
+         * @return - host:port
+         *
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * called before a message is sent through the relay
+         *
+         * @return - false if the circuit breaker of the relay is open and
+         *           the message must not be sent
+         *
+         */
+        public boolean begin() {
+            if (!breaker.allow()) {
+                return false;
+            }
+            outstanding.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * called once the relay has taken a message
+         *
+         * @param millis  milliseconds it took to connect and send
+         *
+         */
+        public void succeeded(long millis) {
+            outstanding.decrementAndGet();
+            breaker.succeeded();
+            ejectedUntil = 0;
+            // losing a sample to a concurrent update does no harm
+            double average = latency;
+            latency = average == 0 ? millis :
+                average + ALPHA * (millis - average);
+        }
+
+        /**
+         * called when the connection to the relay or the send failed
+         *
+         * @param eject  true if the relay refused the connection or did not
+         *               greet and is to be left out for the cool-down period
+         *
+         */
+        public void failed(boolean eject) {
+            outstanding.decrementAndGet();
+            breaker.failed();
+            if (eject) {
+                ejectedUntil = System.currentTimeMillis() + cooldown;
+            }
+        }
+
+        /**
+         * called when a message was not sent for a reason that says nothing
+         * about the relay, such as a refused login or a busy pool
+         */
+        public void released() {
+            outstanding.decrementAndGet();
+            breaker.release();
+        }
+
+        /**
+         * get the circuit breaker of the relay
+         *
+         * @return - the circuit breaker
+         *
+         */
+        public CircuitBreaker getBreaker() {
+            return breaker;
+        }
+
+        /**
+         * check whether the relay is left out
+         *
+         * @return - true while the relay is cooling down
+         *
+         */
+        public boolean isEjected() {
+            return ejectedUntil > System.currentTimeMillis();
+        }
+
+        /**
+         * get the number of messages being sent through the relay
+         *
+         * @return - number of outstanding messages
+         *
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * get the average time a message takes
+         *
+         * @return - milliseconds, 0 if no message has been sent yet
+         *
+         */
+        public long getLatency() {
+            return (long)latency;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
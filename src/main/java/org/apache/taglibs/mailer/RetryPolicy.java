@@ -0,0 +1,180 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.ParseException;
+
+/**
+ * RetryPolicy - decides whether a message that could not be sent is sent
+ *               again and how long to wait before the next attempt.
+ *
+ * <p>
+ * A failure is permanent when the SMTP host answered with a 5xx reply code,
+ * when every address was refused, when the login was refused or when the
+ * message itself is malformed.  Any other failure, such as a 4xx reply for
+ * greylisting or rate limiting, a refused connection or a timeout, is
+ * transient.  The delay before attempt <i>n</i> + 1 is the initial delay
+ * doubled <i>n</i> - 1 times, capped at the maximum delay, of which a random
+ * half is taken off so that messages that failed together do not all come
+ * back at the same time.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class RetryPolicy {
+
+    /**
+     * maximum number of attempts, including the first one
+     */
+    private final int maxAttempts;
+
+    /**
+     * milliseconds before the second attempt
+     */
+    private final long initialDelay;
+
+    /**
+     * upper bound of the delay in milliseconds
+     */
+    private final long maxDelay;
+
+    /**
+     * create a retry policy
+     *
+     * @param maxAttempts  maximum number of attempts, 1 to never retry
+     * @param initialDelay  milliseconds before the second attempt
+     * @param maxDelay  upper bound of the delay in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * get the maximum number of attempts
+     *
+     * @return - maximum number of attempts, including the first one
+     *
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * decide whether a failure may go away by itself
+     *
+     * @param me  the exception the attempt failed with
+     *
+     * @return - true if sending the message again may succeed
+     *
+     */
+    public boolean isTransient(MessagingException me) {
+        if (me instanceof AuthenticationFailedException ||
+                me instanceof AddressException ||
+                me instanceof ParseException) {
+            return false;
+        }
+        if (me instanceof SMTPSendFailedException) {
+            // the reply to the message itself, such as a 554 after DATA
+            int code = ((SMTPSendFailedException)me).getReturnCode();
+            if (code >= 400) {
+                return code < 500;
+            }
+        }
+        if (me instanceof SendFailedException) {
+            // the addresses refused with a 5xx are chained to an exception
+            // that also tells which valid addresses were not sent to yet,
+            // only those are sent again
+            SendFailedException sfe = (SendFailedException)me;
+            Address[] sent = sfe.getValidSentAddresses();
+            Address[] unsent = sfe.getValidUnsentAddresses();
+            Address[] invalid = sfe.getInvalidAddresses();
+            if (!isEmpty(sent) || !isEmpty(invalid)) {
+                return !isEmpty(unsent);
+            }
+        }
+        int code = getReturnCode(me);
+        if (code >= 400 && code < 500) {
+            return true;
+        }
+        if (code >= 500) {
+            return false;
+        }
+        // connection failures, timeouts and anything unknown
+        return true;
+    }
+
+    /**
+     * get the delay before the next attempt
+     *
+     * @param attempts  number of attempts made so far
+     *
+     * @return - milliseconds to wait
+     *
+     */
+    public long getDelay(int attempts) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempts && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        // equal jitter, keep half of the delay and randomise the other half
+        long half = delay / 2;
+        return half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1)
+                                : 0);
+    }
+
+    private static boolean isEmpty(Address[] addresses) {
+        return addresses == null || addresses.length == 0;
+    }
+
+    /**
+     * get the SMTP reply code carried by an exception or the exceptions
+     * chained to it
+     *
+     * @return - the reply code or -1 if there is none
+     *
+     */
+    static int getReturnCode(Exception e) {
+        while (e != null) {
+            if (e instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException)e).getReturnCode();
+            } else if (e instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException)e).getReturnCode();
+            } else if (e instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException)e).getReturnCode();
+            } else if (e instanceof IOException) {
+                return -1;
+            }
+            e = e instanceof MessagingException ?
+                ((MessagingException)e).getNextException() : null;
+        }
+        return -1;
+    }
+}
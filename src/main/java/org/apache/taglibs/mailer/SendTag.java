@@ -16,18 +16,27 @@
 
 package org.apache.taglibs.mailer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import jakarta.activation.DataHandler;
+import jakarta.mail.Address;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
-import jakarta.mail.Transport;
 import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.ContentType;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
 import jakarta.servlet.jsp.JspException;
+import jakarta.servlet.jsp.PageContext;
 import jakarta.servlet.jsp.tagext.BodyTagSupport;
 
 /**
@@ -38,6 +47,17 @@ import jakarta.servlet.jsp.tagext.BodyTagSupport;
  *	  <tagclass>org.apache.taglibs.mailer.SendTag</tagclass>
  *	  <bodycontent>JSP</bodycontent>
  *	  <info>Send the email</info>
+ *
+ *        <attribute>
+ *              <name>var</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
+ *        <attribute>
+ *              <name>scope</name>
+ *              <required>false</required>
+ *              <rtexprvalue>false</rtexprvalue>
+ *        </attribute>
  * </tag>
  *
  * @author Rich Catlett
@@ -48,7 +68,18 @@ import jakarta.servlet.jsp.tagext.BodyTagSupport;
 
 public class SendTag extends BodyTagSupport {
 
-    ArrayList error = null;  // error messages made accessable to user
+    ArrayList<String> error = null;  // error messages made accessable to user
+
+    /**
+     * name of the attribute the future of the delivery result is stored
+     * under, no future is published if it is null
+     */
+    private String var = null;
+
+    /**
+     * scope of the attribute, "page" or "request"
+     */
+    private String scope = "page";
 
     /**
      * implementation of method from the Tag interface that tells the JSP what
@@ -71,8 +102,6 @@ public class SendTag extends BodyTagSupport {
 // End of added.
 	ListIterator iterate;  // iterator for the list of attachments
 	String to = null;  // the to address for this e-mail message
-	String cc = null;  // the cc address for this e-mail message
-	String bcc = null;  // the bcc address for this e-mail message
 
 	// parent tag must be a MailTag, gives access to methods in parent
 	MailTag myparent = (MailTag)findAncestorWithClass(this, MailTag.class);
@@ -98,38 +127,24 @@ public class SendTag extends BodyTagSupport {
 			  + " was not able to be set");
 	}
 
+	// the addresses were parsed as they were added to the mail tag, any
+	// that could not be are reported one by one
+	ArrayList<String> addrerrors = myparent.getAddressErrors();
+	if (addrerrors.size() > 0)
+	    error = addrerrors;
+
 	// get the to address(es)
-	if ((to = myparent.getTo()) != null) {
+	InternetAddress[] toaddresses = myparent.getToAddresses();
+	to = myparent.getTo();
+	if (toaddresses.length > 0) {
 
 	    try {
 		// set the to address for this message
-		// catch any errors in the format of the addresses
-	        message.setRecipients(Message.RecipientType.TO,
-				      InternetAddress.parse(to));
-	    } catch (AddressException ae) {
-		// get the address that the error occured with
-		String ref = ae.getRef();
-
-		// check for more than one address
-		if (ref.indexOf(',') != -1) {
-		    // position of the start of the error inducing address
-		    int pos = ref.substring(0, ae.getPos()).indexOf(',') + 1;
-		    // extract the error inducing address
-		    ref = ref.substring(pos, ref.indexOf(','));
-		}
-
-		// check for existence of error if it does not exist create it
-		if (error == null)
-		    error = new ArrayList();
-
-	        String errorinput = "The to address " + ref + " is not in"
-			      + " the proper format.";
-
-		error.add(errorinput);
+	        message.setRecipients(Message.RecipientType.TO, toaddresses);
 	    } catch (MessagingException me) {
 		// check for existence of error if it does not exist create it
 		if (error == null)
-		    error = new ArrayList();
+		    error = new ArrayList<String>();
 
 		// exception occurs when any of the addresses cannot be
 		// properly set in the message
@@ -144,20 +159,25 @@ public class SendTag extends BodyTagSupport {
 
 	    // check for existence of error if it does not exist create it
 	    if (error == null)
-		error = new ArrayList();
+		error = new ArrayList<String>();
 
 	    error.add(errorinput);
 	}
 
+	// the from and reply-to addresses are usually the same on every
+	// request, the cache parses them once
+	AddressCache addresses =
+	    AddressCache.getInstance(pageContext.getServletContext());
+
 	// set the Reply-to address if it hax been supplied
 	if (myparent.getReplyTo() != null) {
 
 	    try {
-		message.setReplyTo(InternetAddress.parse(myparent.getReplyTo()));
+		message.setReplyTo(addresses.parse(myparent.getReplyTo()));
 	    } catch (AddressException ae) {
 		// check for existence of error if it does not exist create it
 		if (error == null)
-		    error = new ArrayList();
+		    error = new ArrayList<String>();
 
 		// exception occurs when the cc address cannot be parsed
 		String errorinput = "The Reply-To address was incorrectly set";
@@ -166,7 +186,7 @@ public class SendTag extends BodyTagSupport {
 	    } catch (MessagingException me) {
 		// check for existence of error if it does not exist create it
 		if (error == null)
-		    error = new ArrayList();
+		    error = new ArrayList<String>();
 
 		// exception occurs when any of the addresses cannot be
 		// properly set in the message
@@ -189,16 +209,16 @@ public class SendTag extends BodyTagSupport {
 		// check to see if from is set at the level of the Session
 		if (myparent.getSessionObj().getProperty("mail.from") != null)
 
-	            message.setFrom(new InternetAddress(
+	            message.setFrom(addresses.getAddress(
 	    		   myparent.getSessionObj().getProperty("mail.from")));
 	    }
 	    else
-		message.setFrom(new InternetAddress(from));
+		message.setFrom(addresses.getAddress(from));
 
 	} catch (MessagingException me) {
 	    // check for existence of error if it does not exist create it
 	    if (error == null)
-		error = new ArrayList();
+		error = new ArrayList<String>();
 
 	    // add exception to the list of errors in the e-mail
 	    String errorinput = "The from address was not set or is not in"
@@ -207,88 +227,26 @@ public class SendTag extends BodyTagSupport {
 	    error.add(errorinput);
 	}
 
-	// check for and set cc addresses
-	if ((cc = myparent.getCc()) != null) {
-
-	    try {
-                message.setRecipients(Message.RecipientType.CC,
-					   InternetAddress.parse(cc));
-	    } catch (AddressException ae) {
-		// get the address that the error occured with
-		String ref = ae.getRef();
-
-		// check for more than one address
-		if (ref.indexOf(',') != -1) {
-		    // position of the start of the error inducing address
-		    int pos = ref.substring(0, ae.getPos()).indexOf(',') + 1;
-		    // extract the error inducing address
-		    ref = ref.substring(pos, ref.indexOf(','));
-		}
-
-		// check for existence of error if it does not exist create it
-		if (error == null)
-		    error = new ArrayList();
-
-		// exception occurs when the to address cannot be parsed
-		String errorinput = "The cc address " + ref + " is not in"
-			      + " the proper format.";
-
-		error.add(errorinput);
-	    } catch (MessagingException me) {
-		// check for existence of error if it does not exist create it
-		if (error == null)
-		    error = new ArrayList();
-
-		// exception occurs when any of the addresses cannot be
-		// properly set in the message
-                String errorinput = "Messaging Exception: Some cc address/es"
-			                + " could not be set in the message."
-			                + me.getMessage();
-
-		error.add(errorinput);
-	    }
-	}
-
-	// check for and set bcc addresses
-	if ((bcc = myparent.getBcc()) != null) {
-
-	    try {
-                message.setRecipients(Message.RecipientType.BCC,
-					  InternetAddress.parse(bcc));
-	    } catch (AddressException ae) {
-		// get the address that the error occured with
-		String ref = ae.getRef();
-
-		// check for more than one address
-		if (ref.indexOf(',') != -1) {
-		    // position of the start of the error inducing address
-		    int pos = ref.substring(0, ae.getPos()).indexOf(',') + 1;
-		    // extract the error inducing address
-		    ref = ref.substring(pos, ref.indexOf(','));
-		}
-
-		// check for existence of error if it does not exist create it
-		if (error == null)
-		    error = new ArrayList();
-
-		// exception occurs when the to address cannot be parsed
-		String errorinput = "The bcc address " + ref + " is not in"
-			      + " the proper format.";
-
-		error.add(errorinput);
-	    } catch (MessagingException me) {
-		// check for existence of error if it does not exist create it
-		if (error == null)
-		    error = new ArrayList();
+	// set the cc and bcc addresses
+	try {
+	    InternetAddress[] ccaddresses = myparent.getCcAddresses();
+	    if (ccaddresses.length > 0)
+		message.setRecipients(Message.RecipientType.CC, ccaddresses);
+	    InternetAddress[] bccaddresses = myparent.getBccAddresses();
+	    if (bccaddresses.length > 0)
+		message.setRecipients(Message.RecipientType.BCC, bccaddresses);
+	} catch (MessagingException me) {
+	    // check for existence of error if it does not exist create it
+	    if (error == null)
+		error = new ArrayList<String>();
 
-		// exception occurs when any of the addresses cannot be
-		// properly set in the message
-                String errorinput = "Messaging Exception: Some bcc address/es"
-			                + " could not be set in the message."
-			                + me.getMessage();
+	    // exception occurs when any of the addresses cannot be
+	    // properly set in the message
+	    String errorinput = "Messaging Exception: Some cc or bcc address/es"
+				+ " could not be set in the message."
+				+ me.getMessage();
 
-		error.add(errorinput);
-	    }
+	    error.add(errorinput);
 	}
 
 	try {
@@ -308,18 +266,38 @@ public class SendTag extends BodyTagSupport {
 	    multipart = new MimeMultipart();
 
 	    try {
+		// wait for the attachments fetched from urls
+		myparent.fetchBodyParts();
+	    } catch (MessagingException me) {
+		throw new JspException("An attachment could not be fetched:  " +
+				       me.getMessage());
+	    }
 
-		// create a mimebodypart for the body of the e-mail message
-		MimeBodyPart mbp = new MimeBodyPart();
+	    // with encoding threads configured several attachments are encoded
+	    // side by side now, rather than one after the other while the
+	    // message is written to the server
+	    List<?> parts = myparent.getBodyParts();
+	    MailDispatcher dispatcher =
+		MailDispatcher.getInstance(pageContext.getServletContext());
+	    if (dispatcher.isEncodingAhead() && parts.size() > 1) {
+		try {
+		    parts = dispatcher.encodeAhead(parts);
+		} catch (MessagingException me) {
+		    throw new JspException("The attachments could not be " +
+					   "encoded:  " + me.getMessage());
+		} catch (IOException ie) {
+		    throw new JspException("The attachments could not be " +
+					   "read:  " + ie.getMessage());
+		}
+	    }
 
-		// set the content in the bodypart
-		mbp.setContent(myparent.getBody(), getContentType(myparent));
+	    try {
 
 		// add the message as the first bodypart in the multipart object
-		multipart.addBodyPart(mbp);
+		multipart.addBodyPart(getBodyPart(myparent));
 
 		// get the list of attachments
-		iterate = myparent.getBodyParts().listIterator();
+		iterate = parts.listIterator();
 
 		// loop through the list of attachments and add them to the
 		// multipart object
@@ -340,29 +318,209 @@ public class SendTag extends BodyTagSupport {
 	} else {
 	    try {
 		// set the message with a mimetype according to type set by user
-		message.setContent(myparent.getBody(), getContentType(myparent));
+		setBody(message, myparent);
 	    } catch (MessagingException me) {
 		// this error is not very likely to occur
 		throw new JspException("The message could not be set in " +
 				   "the e-mail, please back up and try again.");
 	    }
 	}
+	// the page can wait for or chain on the outcome of the delivery
+	CompletableFuture<DeliveryResult> future = null;
+	if (var != null) {
+	    future = new CompletableFuture<DeliveryResult>();
+	    setVariable(future);
+	}
+
 	// check if errors have occured in creating the message
-	if (error != null)
+	if (error != null) {
+	    if (future != null)
+		future.completeExceptionally(new MessagingException(
+		    error.get(0).toString()));
 	    // taglibs 1.1
 	    return EVAL_BODY_TAG;
 	    // taglibs 1.2
 	    //return EVAL_BODY_BUFFERED;
-	else {
-	    // create the thread to mail the messge
-	    Mail mail = new Mail(message, pageContext.getServletContext(), to);
+	} else {
+	    MailDispatcher dispatcher =
+		MailDispatcher.getInstance(pageContext.getServletContext());
+
+	    // a message with the same idempotency key was sent recently, the
+	    // page was most likely submitted twice
+	    String idkey = myparent.getIdempotencyKey();
+	    IdempotencyCache ids = dispatcher.getIdempotencyCache();
+	    if (idkey != null && !ids.add(idkey)) {
+		if (future != null)
+		    future.complete(DeliveryResult.duplicate(
+			ids.getMessageId(idkey)));
+		return SKIP_BODY;
+	    }
+
+	    // create the job to mail the messge, connections are pooled by
+	    // server, port and user
+	    String poolkey = TransportPool.getKey(myparent.getSessionObj(),
+						  myparent.getUser());
+	    int lane = MailDispatcher.getLane(myparent.getPriority());
 
-	    mail.start();  // send the mail
+	    // render the message once, every attempt, envelope and spool write
+	    // then sends the same bytes with the same message id, a message
+	    // streamed from files keeps its id and is encoded as it is sent
+	    MimeMessage frozen = null;
+	    try {
+		frozen = dispatcher.freeze(message);
+		if (idkey != null && frozen != null)
+		    ids.setMessageId(idkey, frozen.getMessageID());
+	    } catch (MessagingException me) {
+		error = new ArrayList<String>();
+		error.add("The message could not be encoded:  " +
+			  me.getMessage());
+	    }
+	    if (error != null) {
+		if (idkey != null)
+		    ids.remove(idkey);
+		if (future != null)
+		    future.completeExceptionally(new MessagingException(
+			error.get(0).toString()));
+		return EVAL_BODY_BUFFERED;
+	    }
+
+	    if (frozen == null) {
+		// no room for the message, let the page send it again
+		if (idkey != null)
+		    ids.remove(idkey);
+		error = new ArrayList<String>();
+		error.add("The mail queue memory is used up, the message could"
+			  + " not be sent at this time.");
+		if (future != null)
+		    future.completeExceptionally(new MessagingException(
+			error.get(0).toString()));
+		return EVAL_BODY_BUFFERED;
+	    }
 
-	    return SKIP_BODY;
+	    // a message with more recipients than a relay takes in one
+	    // transaction is sent in several envelopes, the queued jobs hold
+	    // their own references to the frozen message
+	    try {
+		Address[] all = null;
+		try {
+		    all = frozen.getAllRecipients();
+		} catch (MessagingException me) {
+		    // the job reports the bad addresses
+		}
+		int max = dispatcher.getMaxRecipients();
+		if (max > 0 && all != null && all.length > max) {
+		    int count = (all.length + max - 1) / max;
+		    int queued = sendEnvelopes(dispatcher, myparent, frozen,
+					       all, max, poolkey, lane, future);
+		    if (queued == count)
+			return SKIP_BODY;
+		    if (queued > 0) {
+			// the key stays, sending again would repeat the
+			// envelopes already queued
+			error = new ArrayList<String>();
+			error.add("The mail queue is full or the mail spool"
+				  + " could not be written, only " + queued
+				  + " of " + count + " envelopes of the message"
+				  + " were queued.");
+			if (future != null)
+			    future.completeExceptionally(
+				new MessagingException(error.get(0).toString()));
+			return EVAL_BODY_BUFFERED;
+		    }
+		} else {
+		    Mail mail = new Mail(dispatcher, frozen, to, poolkey,
+					 myparent.getRoute(), lane);
+		    mail.setFuture(future);
+		    mail.setIdempotencyKey(idkey);
+
+		    // hand the mail to the shared pool of sending threads
+		    if (dispatcher.submit(mail))
+			return SKIP_BODY;
+		}
+	    } finally {
+		FrozenMessage.release(frozen);
+	    }
+
+	    // let the page send the message again
+	    if (idkey != null)
+		ids.remove(idkey);
+	    error = new ArrayList<String>();
+	    error.add("The mail queue is full or the mail spool could not"
+		      + " be written, the message could not be sent at this"
+		      + " time.");
+	    if (future != null)
+		future.completeExceptionally(new MessagingException(
+		    error.get(0).toString()));
+	    return EVAL_BODY_BUFFERED;
 	}
     }
 
+    /**
+     * send a message in envelopes of at most max recipients, the frozen
+     * message is shared by the envelopes, which are sent at the same time
+     * over pooled connections
+     *
+     * @param dispatcher  the dispatcher the envelopes are queued on
+     * @param myparent  the mail tag of the message
+     * @param message  the frozen message
+     * @param all  every recipient of the message
+     * @param max  maximum number of recipients of an envelope
+     * @param poolkey  pool key of the server the message goes to
+     * @param lane  priority lane the message is sent on
+     * @param future  completed with the combined result of the envelopes,
+     *                may be null
+     *
+     * @return - the number of envelopes queued, the queueing stops at the
+     *           first envelope that cannot be queued
+     *
+     */
+    private int sendEnvelopes(MailDispatcher dispatcher, MailTag myparent,
+			      MimeMessage message, Address[] all, int max,
+			      String poolkey, int lane,
+			      final CompletableFuture<DeliveryResult> future) {
+	MailRoute route = myparent.getRoute();
+	final List<CompletableFuture<DeliveryResult>> parts =
+	    new ArrayList<CompletableFuture<DeliveryResult>>();
+	int queued = 0;
+	for (int i = 0; i < all.length; i += max) {
+	    Address[] envelope = Arrays.copyOfRange(all, i,
+				    Math.min(all.length, i + max));
+	    Mail mail = new Mail(dispatcher, message,
+				 InternetAddress.toString(envelope), poolkey,
+				 route, lane);
+	    mail.setEnvelope(envelope);
+	    CompletableFuture<DeliveryResult> part = null;
+	    if (future != null) {
+		part = new CompletableFuture<DeliveryResult>();
+		mail.setFuture(part);
+	    }
+	    if (!dispatcher.submit(mail))
+		return queued;
+	    if (part != null)
+		parts.add(part);
+	    queued++;
+	}
+
+	// the page sees one result, the listeners one for each envelope
+	if (future != null)
+	    CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+		.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void v, Throwable t) {
+			    if (t != null) {
+				future.completeExceptionally(t);
+				return;
+			    }
+			    List<DeliveryResult> results =
+				new ArrayList<DeliveryResult>();
+			    for (CompletableFuture<DeliveryResult> part
+				     : parts)
+				results.add(part.join());
+			    future.complete(DeliveryResult.combine(results));
+			}
+		    });
+	return queued;
+    }
+
     /**
      *  implementation of the method from the tag interface that tells the JSP
      *  page what to do after the body of this tag
@@ -390,6 +548,41 @@ public class SendTag extends BodyTagSupport {
 	return EVAL_PAGE;
     }
 
+    /**
+     * set the name of the attribute the future of the delivery result is
+     * stored under
+     *
+     * @param value  name of the attribute
+     *
+     */
+    public void setVar(String value) {
+	var = value;
+    }
+
+    /**
+     * set the scope of the attribute named by var
+     *
+     * @param value  "page" or "request"
+     *
+     */
+    public void setScope(String value) {
+	scope = value;
+    }
+
+    /**
+     * store a value under the attribute named by var
+     *
+     * @param value  the value of the attribute
+     *
+     */
+    void setVariable(Object value) {
+	if (var != null)
+	    pageContext.setAttribute(var, value,
+				     "request".equalsIgnoreCase(scope) ?
+				     PageContext.REQUEST_SCOPE :
+				     PageContext.PAGE_SCOPE);
+    }
+
     /**
      * get the error message from the final caught JspException
      *
@@ -400,6 +593,98 @@ public class SendTag extends BodyTagSupport {
         return error;
     }
 
+    /**
+     * set the body of the e-mail in the message, the body is transfer
+     * encoded once here and the encoded bytes are written on every attempt,
+     * a body streamed to a file is encoded from it as the message is written
+     *
+     * @param message  the message
+     * @param parent  the mail tag
+     *
+     */
+    private void setBody(MimeMessage message, MailTag parent)
+	throws MessagingException {
+	SpillBuffer buffer = parent.getBodyBuffer();
+	if (buffer != null && buffer.isSpilled())
+	    message.setDataHandler(new DataHandler(
+		buffer.getDataSource(parent.getType())));
+	else if (message instanceof EncodedMimeMessage)
+	    ((EncodedMimeMessage)message).setEncodedContent(
+		getTextType(parent), encodeBody(parent));
+	else
+	    message.setContent(parent.getBody(), getContentType(parent));
+    }
+
+    /**
+     * get the bodypart holding the body of an e-mail with attachments
+     *
+     * @param parent  the mail tag
+     *
+     * @return - the bodypart
+     *
+     */
+    private MimeBodyPart getBodyPart(MailTag parent)
+	throws MessagingException {
+	SpillBuffer buffer = parent.getBodyBuffer();
+	if (buffer != null && buffer.isSpilled()) {
+	    MimeBodyPart mbp = new MimeBodyPart();
+	    mbp.setDataHandler(new DataHandler(
+		buffer.getDataSource(parent.getType())));
+	    return mbp;
+	}
+	return EncodedBodyPart.create(getTextType(parent), encodeBody(parent));
+    }
+
+    /**
+     * choose the transfer encoding of the body and encode it in one pass
+     *
+     * @param parent  the mail tag
+     *
+     * @return - the encoded body
+     *
+     */
+    private TransferEncoder.Encoded encodeBody(MailTag parent)
+	throws MessagingException {
+	try {
+	    SpillBuffer buffer = parent.getBodyBuffer();
+	    byte[] bytes;
+	    if (buffer != null)
+		bytes = buffer.toByteArray();
+	    else if (parent.getBody() == null)
+		bytes = new byte[0];
+	    else
+		bytes = parent.getBody().getBytes(
+		    MimeUtility.javaCharset(getCharset(parent)));
+	    return TransferEncoder.encode(bytes);
+	} catch (IOException ie) {
+	    throw new MessagingException("The message could not be encoded:  "
+					 + ie.getMessage(), ie);
+	}
+    }
+
+    /**
+     * get the content type of the body with its character set, which is the
+     * default character set of JavaMail when none was given
+     *
+     * @param parent  the mail tag
+     *
+     * @return - the content type
+     *
+     */
+    private String getTextType(MailTag parent) throws MessagingException {
+	ContentType type = new ContentType(parent.getType());
+	type.setParameter("charset", getCharset(parent));
+	return type.toString();
+    }
+
+    private static String getCharset(MailTag parent) {
+	if (parent.getBodyBuffer() != null)
+	    return parent.getBodyBuffer().getCharset();
+	if (parent.getCharset() != null)
+	    return parent.getCharset();
+	return MimeUtility.mimeCharset(MimeUtility.getDefaultJavaCharset());
+    }
+
     /**
      * get the content type, possibly including character set
      *
@@ -416,47 +701,3 @@ public class SendTag extends BodyTagSupport {
         return type + ";charset=" + charset;
     }
 }
-
- /**
-  *  Thread to actually send the mail.  It could conceivably take some time
-  *  for the mail to be sent.  This thread allows for that so that the user will
-  *  not be bogged down waiting for the mail to be sent before they can use
-  *  their webbrowser again.  Notification will also be sent to the from address
-  *  of the message of mail that could not be delivered, and which address it
-  *  could not be delivered to.  If the mail does not contain a from address
-  *  mail will be sent to user.from property.
-  */
-class Mail extends Thread {
-
-    private MimeMessage message = null;  // the message to be sent
-    // used to get the servlet context for logging
-    private jakarta.servlet.ServletContext sc = null;
-    String mailto;  // list of to address this message is being sent to
-
-    Mail (MimeMessage mail, jakarta.servlet.ServletContext servletcontext,
-	  String to) {
-	message = mail;
-	sc = servletcontext;
-	mailto = to;
-    }
-
-    public void run() {
-
-	try {
-	    // send the message
-	    Transport.send(message);
-
-	} catch (MessagingException me) {
-	    // exception occurs when the e-mail cannot be sent to anyone of the
-	    // to addresses in the message depending on the mail properties set
-	    // this may or may not cause transmission of the message to end.
-	    // This error will be logged and a message will be sent to the from
-	    // address explaining that the message could not be sent.
-	    // Since the JSP has already finished executing this exception will
-	    // do nothing visible, however the errors should be dealt with by
-	    // the SMTP host if it is configured correctly
-	    sc.log("Could not send the e-mail sent to " + mailto + ":  " +
-		   me.getMessage());
-	}
-    }
-}
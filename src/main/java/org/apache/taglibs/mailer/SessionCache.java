@@ -0,0 +1,323 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import jakarta.mail.Session;
+import jakarta.servlet.ServletContext;
+
+/**
+ * SessionCache - keeps the mail sessions created by the <b>mail</b> tag so
+ *                that a session is set up once for each distinct mail server
+ *                configuration instead of once per message.
+ *
+ * <p>
+ * Sessions are keyed by the mail server host, port, authentication flag,
+ * user and password.  Unlike Session.getDefaultInstance, which always returns
+ * the first session ever created, a different server or port set with the
+ * <b>server</b> or <b>port</b> tags gets its own session.  The least recently
+ * used session is dropped once the cache holds more sessions than the
+ * <i>org.apache.taglibs.mailer.sessionCacheSize</i> context parameter
+ * (default 32).
+ * </p>
+ *
+ * <p>
+ * The sessions give up connecting to or waiting for a mail server after the
+ * number of milliseconds set by the
+ * <i>org.apache.taglibs.mailer.smtpTimeout</i> context parameter (default
+ * 30000, 0 waits as long as the operating system does) so that a dead
+ * server does not hold a sending thread for minutes.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class SessionCache {
+
+    /**
+     * The context parameter name
+     */
+    public final static String SIZE_PARAM =
+        "org.apache.taglibs.mailer.sessionCacheSize";
+    public final static String TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.smtpTimeout";
+
+    /**
+     * name of the servlet context attribute the cache is stored under
+     */
+    private final static String ATTRIBUTE = SessionCache.class.getName();
+
+    /**
+     * guards the creation of the cache
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * the cached sessions, in least recently used order
+     */
+    private final Map<Key, Session> sessions;
+
+    /**
+     * milliseconds to wait for a connection or a reply, 0 for no limit
+     */
+    private final int timeout;
+
+    /**
+     * told of every session created for a login, null if there is none
+     */
+    private volatile Listener listener;
+
+    /**
+     * create a session cache
+     *
+     * @param size  maximum number of sessions kept
+     */
+    public SessionCache(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * create a session cache
+     *
+     * @param size  maximum number of sessions kept
+     * @param timeout  milliseconds the sessions wait for a connection or a
+     *                 reply, 0 for no limit
+     */
+    public SessionCache(int size, int timeout) {
+        this.timeout = timeout;
+        sessions = new Sessions(size);
+    }
+
+    /**
+     * get the session cache for a web application, creating it if it does
+     * not exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the session cache for the web application
+     *
+     */
+    public static SessionCache getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            SessionCache cache = (SessionCache)sc.getAttribute(ATTRIBUTE);
+            if (cache == null) {
+                cache = new SessionCache(Math.max(1,
+                    MailDispatcher.getIntParameter(sc, SIZE_PARAM, 32)),
+                    MailDispatcher.getIntParameter(sc, TIMEOUT_PARAM, 30000));
+                sc.setAttribute(ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * get the session for a mail server, creating it if it is not cached
+     *
+     * @param host  mail server host
+     * @param port  mail server port
+     * @param authenticate  true if the session needs an authenticator
+     * @param user  login user name for the authenticator
+     * @param password  login password for the authenticator
+     *
+     * @return - the session for the mail server
+     *
+     */
+    public Session getSession(String host, String port, boolean authenticate,
+                              String user, String password) {
+        Key key = new Key(host, port, authenticate, user, password);
+        synchronized (sessions) {
+            Session session = sessions.get(key);
+            if (session != null) {
+                return session;
+            }
+        }
+
+        // set up the smtp session that will send the message
+        Properties props = new Properties();
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", port);
+        // set properties to deal will SendFailedExceptions
+        // send to all legal addresses
+        props.put("mail.smtp.sendpartial", "true");
+        // set notification
+        props.put("mail.smtp.dsn.notify", "FAILURE");
+        // set amount of message to get returned
+        props.put("mail.smtp.dsn.ret", "FULL");
+        if (timeout > 0) {
+            // do not wait for the operating system to give up on a dead
+            // server
+            props.put("mail.smtp.connectiontimeout", String.valueOf(timeout));
+            props.put("mail.smtp.timeout", String.valueOf(timeout));
+        }
+
+        Session session;
+        if (authenticate) {
+            // create the session with an authenticator object
+            props.put("mail.smtp.auth", "true");
+            session = Session.getInstance(props,
+                                          new MailAuthenticator(user, password));
+        } else {
+            session = Session.getInstance(props, null);
+        }
+
+        synchronized (sessions) {
+            // another thread may have created the same session meanwhile
+            Session cached = sessions.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            sessions.put(key, session);
+        }
+        Listener l = listener;
+        if (authenticate && l != null) {
+            l.sessionCreated(host, port, user);
+        }
+        return session;
+    }
+
+    /**
+     * set the listener told of every session created for a login, such as
+     * the dispatcher holding recovered messages until their password is
+     * known
+     *
+     * @param listener  the listener, null for none
+     *
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * find a cached session that authenticates a user on a mail server,
+     * whatever password it was created with
+     *
+     * @param host  mail server host
+     * @param port  mail server port
+     * @param user  login user name
+     *
+     * @return - the most recently used matching session or null if there is
+     *           none
+     *
+     */
+    public Session findSession(String host, String port, String user) {
+        Session found = null;
+        synchronized (sessions) {
+            for (Map.Entry<Key, Session> e : sessions.entrySet()) {
+                Key key = e.getKey();
+                if (key.authenticate && Key.equal(host, key.host) &&
+                        Key.equal(port, key.port) && Key.equal(user, key.user)) {
+                    // entries are in least recently used order
+                    found = e.getValue();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * get the number of cached sessions
+     *
+     * @return - number of cached sessions
+     *
+     */
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Listener - told when the cache learns the password of a user
+     */
+    public interface Listener {
+
+        /**
+         * called once a session that logs a user in to a mail server has
+         * been created, outside the lock of the cache
+         *
+         * @param host  mail server host
+         * @param port  mail server port
+         * @param user  login user name
+         *
+         */
+        void sessionCreated(String host, String port, String user);
+    }
+
+    /**
+     * Sessions - the sessions in least recently used order, the eldest is
+     *            dropped once there are more than the maximum
+     */
+    private static class Sessions extends LinkedHashMap<Key, Session> {
+
+        private final static long serialVersionUID = 1L;
+
+        private final int max;
+
+        Sessions(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Key, Session> e) {
+            return size() > max;
+        }
+    }
+
+    /**
+     * the configuration a session was created for
+     */
+    private static class Key {
+        private final String host;
+        private final String port;
+        private final boolean authenticate;
+        private final String user;
+        private final String password;
+
+        Key(String host, String port, boolean authenticate, String user,
+            String password) {
+            this.host = host;
+            this.port = port;
+            this.authenticate = authenticate;
+            // credentials only matter when there is an authenticator
+            this.user = authenticate ? user : null;
+            this.password = authenticate ? password : null;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return authenticate == k.authenticate && equal(host, k.host) &&
+                equal(port, k.port) && equal(user, k.user) &&
+                equal(password, k.password);
+        }
+
+        public int hashCode() {
+            int h = host == null ? 0 : host.hashCode();
+            h = 31 * h + (port == null ? 0 : port.hashCode());
+            h = 31 * h + (user == null ? 0 : user.hashCode());
+            return 31 * h + (authenticate ? 1 : 0);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.mail.internet.SharedInputStream;
+
+/**
+ * SlabStore - holds the bytes of queued messages out of the heap, in pages
+ *             carved out of direct buffer slabs, within a byte budget shared
+ *             by every lane of the dispatcher.
+ *
+ * <p>
+ * A slab of 1 MB is allocated with ByteBuffer.allocateDirect the first time
+ * its pages are needed and is kept for the life of the store, the pages of
+ * a message are put back on a free list once the message is done.  A message
+ * is held in as many pages as it needs, which need not be next to each
+ * other, so the store does not fragment however the sizes of the messages
+ * vary.  A message is written straight into its pages, which are taken one
+ * at a time as it grows, so it is never held on the heap whole, and only the
+ * few headers of a message parsed from its pages stay on the heap.  A queue
+ * backed up behind a slow relay then no longer fills the old generation
+ * with message content.
+ * </p>
+ *
+ * <p>
+ * A writer never waits while it holds pages, as two messages that each
+ * took half of the budget would wait for each other.  When the store runs
+ * out of room part way through a message the rest of it is only counted,
+ * the pages taken are given back, and the writer waits until the pages the
+ * whole message needs are free and takes them at once before it writes the
+ * message again.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class SlabStore {
+
+    /**
+     * size of a page, the unit messages are held in
+     */
+    public final static int PAGE_SIZE = 16 * 1024;
+
+    /**
+     * number of pages of a slab
+     */
+    private final static int SLAB_PAGES = 64;
+
+    /**
+     * maximum number of pages, the budget rounded down to whole pages
+     */
+    private final int maxPages;
+
+    /**
+     * number of pages of the slabs allocated so far
+     */
+    private int allocated = 0;
+
+    /**
+     * number of pages held by messages
+     */
+    private int used = 0;
+
+    /**
+     * pages of the allocated slabs that are not held by a message
+     */
+    private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * create a store
+     *
+     * @param budget  maximum number of bytes held, at least one page
+     *
+     */
+    public SlabStore(long budget) {
+        maxPages = (int)Math.max(1, Math.min(Integer.MAX_VALUE,
+                                             budget / PAGE_SIZE));
+    }
+
+    /**
+     * get a stream writing a message into pages, which are taken as the
+     * message grows.  If the budget is used up the rest of the message is
+     * counted, and once it has been written the stream can be rewound to
+     * wait for room for the whole message.
+     *
+     * @param timeout  milliseconds the message may wait for room, 0 not to
+     *                 wait
+     *
+     * @return - the stream
+     *
+     */
+    PageOutputStream newOutputStream(long timeout) {
+        return new PageOutputStream(System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * take a page off the free list without waiting
+     *
+     * @return - the page or null if the budget is used up
+     *
+     */
+    private synchronized ByteBuffer poll() {
+        if (used >= maxPages) {
+            return null;
+        }
+        if (free.isEmpty()) {
+            addSlab();
+        }
+        used++;
+        return free.pop();
+    }
+
+    /**
+     * wait until a number of pages are free and take them all at once, no
+     * page is held while waiting
+     *
+     * @param count  number of pages, at most the budget
+     * @param deadline  time to wait for room until
+     * @param into  receives the pages
+     *
+     * @return - false if there was no room before the deadline
+     *
+     */
+    private synchronized boolean reserve(int count, long deadline,
+                                         Deque<ByteBuffer> into) {
+        while (maxPages - used < count) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (free.isEmpty()) {
+                addSlab();
+            }
+            used++;
+            into.add(free.pop());
+        }
+        return true;
+    }
+
+    /**
+     * give the pages of a message back
+     */
+    private synchronized void free(ByteBuffer[] pages) {
+        for (int i = 0; i < pages.length; i++) {
+            free.push(pages[i]);
+        }
+        used -= pages.length;
+        notifyAll();
+    }
+
+    /**
+     * allocate a slab and put its pages on the free list, the last slab
+     * is cut short to stay within the budget
+     */
+    private void addSlab() {
+        int count = Math.min(SLAB_PAGES, maxPages - allocated);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * PAGE_SIZE);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * PAGE_SIZE).position(i * PAGE_SIZE);
+            free.push(slab.slice());
+        }
+        allocated += count;
+    }
+
+    /**
+     * get the number of bytes held by queued messages
+     *
+     * @return - bytes of the pages in use
+     *
+     */
+    public synchronized long getUsed() {
+        return (long)used * PAGE_SIZE;
+    }
+
+    /**
+     * get the number of bytes allocated out of the heap, used or not
+     *
+     * @return - bytes of the slabs
+     *
+     */
+    public synchronized long getAllocated() {
+        return (long)allocated * PAGE_SIZE;
+    }
+
+    /**
+     * get the maximum number of bytes held
+     *
+     * @return - the budget in bytes
+     *
+     */
+    public long getBudget() {
+        return (long)maxPages * PAGE_SIZE;
+    }
+
+    /**
+     * PageOutputStream - writes a message into pages taken one at a time,
+     *                    the pages are handed over with toPages or given
+     *                    back with discard
+     */
+    class PageOutputStream extends OutputStream {
+
+        private final long deadline;
+        private final List<ByteBuffer> taken = new ArrayList<ByteBuffer>();
+
+        /**
+         * pages taken for the message before it is written again
+         */
+        private final Deque<ByteBuffer> reserved = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer page = null;
+        private int size = 0;
+        private boolean full = false;
+
+        /**
+         * true once the store ran out of room and the rest of the message
+         * is only counted
+         */
+        private boolean counting = false;
+
+        PageOutputStream(long deadline) {
+            this.deadline = deadline;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && !counting) {
+                if (page == null || !page.hasRemaining()) {
+                    // a message larger than the whole budget never fits
+                    ByteBuffer next = taken.size() >= maxPages ? null :
+                        !reserved.isEmpty() ? reserved.pop() : poll();
+                    if (next == null) {
+                        if (taken.size() >= maxPages ||
+                                System.currentTimeMillis() >= deadline) {
+                            full = true;
+                            throw new IOException(
+                                "The queue memory is used up.");
+                        }
+                        // find out how much room to wait for
+                        counting = true;
+                        break;
+                    }
+                    taken.add(next);
+                    page = next.duplicate();
+                    page.clear();
+                }
+                int n = Math.min(len, page.remaining());
+                page.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+            if (counting) {
+                size += len;
+            }
+        }
+
+        /**
+         * find out whether the store ran out of room part way through the
+         * message, which then has to be written again after rewind
+         *
+         * @return - true if the rest of the message was only counted
+         *
+         */
+        boolean isCounted() {
+            return counting;
+        }
+
+        /**
+         * give the pages taken back and wait until the pages the whole
+         * message needs are free, then take them so the message can be
+         * written again
+         *
+         * @return - false if the message does not fit in the budget or
+         *           there was no room for it before the timeout
+         *
+         */
+        boolean rewind() {
+            int needed = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+            discard();
+            page = null;
+            size = 0;
+            counting = false;
+            if (needed > maxPages || !reserve(needed, deadline, reserved)) {
+                full = true;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * find out whether the store ran out of room for the message
+         *
+         * @return - true if the message could not be written whole
+         *
+         */
+        boolean isFull() {
+            return full;
+        }
+
+        /**
+         * hand the pages written over to the message
+         *
+         * @return - the pages, holding one reference
+         *
+         */
+        Pages toPages() {
+            Pages pages =
+                new Pages(taken.toArray(new ByteBuffer[taken.size()]), size);
+            taken.clear();
+            // no more than the pages written are kept
+            free(reserved.toArray(new ByteBuffer[reserved.size()]));
+            reserved.clear();
+            return pages;
+        }
+
+        /**
+         * give the pages taken so far back to the store
+         */
+        void discard() {
+            free(taken.toArray(new ByteBuffer[taken.size()]));
+            taken.clear();
+            free(reserved.toArray(new ByteBuffer[reserved.size()]));
+            reserved.clear();
+        }
+    }
+
+    /**
+     * Pages - the bytes of one message, shared by the jobs sending it and
+     *         given back to the store when the last of them lets go
+     */
+    class Pages {
+
+        private final ByteBuffer[] pages;
+        private final int size;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Pages(ByteBuffer[] pages, int size) {
+            this.pages = pages;
+            this.size = size;
+        }
+
+        /**
+         * get the number of bytes held
+         *
+         * @return - size in bytes
+         *
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * write the bytes to a stream
+         *
+         * @param os  the stream
+         *
+         */
+        void writeTo(OutputStream os) throws IOException {
+            byte[] chunk = new byte[Math.min(size, 8192)];
+            for (int off = 0; off < size; ) {
+                int n = read(off, chunk, 0, Math.min(chunk.length, size - off));
+                os.write(chunk, 0, n);
+                off += n;
+            }
+        }
+
+        /**
+         * read from the pages
+         *
+         * @param pos  position to read from
+         * @param b  the buffer to read into
+         * @param off  offset in the buffer
+         * @param len  number of bytes wanted, at most the rest of the page
+         *             is read
+         *
+         * @return - the number of bytes read
+         *
+         */
+        private int read(int pos, byte[] b, int off, int len) {
+            ByteBuffer page = pages[pos / PAGE_SIZE].duplicate();
+            page.clear().position(pos % PAGE_SIZE);
+            int n = Math.min(len, page.remaining());
+            page.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * get a stream over part of the bytes
+         *
+         * @param start  position of the first byte
+         * @param end  position after the last byte, -1 for the end
+         *
+         * @return - the stream
+         *
+         */
+        InputStream newStream(long start, long end) {
+            return new PagesInputStream((int)start,
+                                        end < 0 ? size : (int)end);
+        }
+
+        /**
+         * add a job sharing the pages
+         */
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        /**
+         * let go of the pages, they are given back to the store once every
+         * job sharing them has let go
+         */
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                free(pages);
+            }
+        }
+
+        /**
+         * PagesInputStream - reads part of the pages, streams over a part
+         *                    of it share the pages instead of copying them
+         */
+        private class PagesInputStream extends InputStream
+            implements SharedInputStream {
+
+            private final int start;
+            private final int end;
+            private int pos;
+            private int mark;
+
+            PagesInputStream(int start, int end) {
+                this.start = start;
+                this.end = end;
+                pos = start;
+                mark = start;
+            }
+
+            public int read() {
+                if (pos >= end) {
+                    return -1;
+                }
+                int b = pages[pos / PAGE_SIZE].get(pos % PAGE_SIZE) & 0xff;
+                pos++;
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (pos >= end) {
+                    return -1;
+                }
+                int total = 0;
+                len = Math.min(len, end - pos);
+                while (total < len) {
+                    int n = Pages.this.read(pos, b, off + total, len - total);
+                    pos += n;
+                    total += n;
+                }
+                return total;
+            }
+
+            public long skip(long n) {
+                int skipped = (int)Math.max(0, Math.min(n, end - pos));
+                pos += skipped;
+                return skipped;
+            }
+
+            public int available() {
+                return end - pos;
+            }
+
+            public boolean markSupported() {
+                return true;
+            }
+
+            public void mark(int readlimit) {
+                mark = pos;
+            }
+
+            public void reset() {
+                pos = mark;
+            }
+
+            public long getPosition() {
+                return pos - start;
+            }
+
+            public InputStream newStream(long from, long to) {
+                return new PagesInputStream(start + (int)from,
+                                            to < 0 ? end : start + (int)to);
+            }
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimePartDataSource;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import jakarta.servlet.ServletContext;
+
+/**
+ * SpillBuffer - holds the body of a message or of an inline attachment as
+ *               the bytes it is sent as, in memory while it is small and in
+ *               a temporary file once it grows past a threshold.
+ *
+ * <p>
+ * The <b>message</b> and <b>attach</b> tags write their body straight into
+ * the buffer instead of turning it into a String, and the send tag hands
+ * the buffer to JavaMail as a DataSource, which encodes it from the buffer
+ * into the stream the message is written to.  A body is then never held in
+ * memory whole, however large the page generating it.  Buffers are only
+ * used when the <i>org.apache.taglibs.mailer.bodySpillThreshold</i> context
+ * parameter is set, it is the number of bytes kept in memory before the
+ * body is moved to a file in the temporary directory of the web application
+ * (default 0, bodies are kept as Strings).  The mail tag holds one
+ * reference to its buffers and every job sending a message written from a
+ * buffer holds another, the file is deleted once the last of them lets go,
+ * that is once the message was sent or given up.  A buffer dropped without
+ * being let go of, by a page that failed, has its file deleted by the next
+ * buffer of the web application spilling after it has been garbage
+ * collected, the files left when its dispatcher shuts down are deleted then.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class SpillBuffer {
+
+    /**
+     * The context parameter name
+     */
+    public final static String THRESHOLD_PARAM =
+        "org.apache.taglibs.mailer.bodySpillThreshold";
+
+    /**
+     * bytes held in memory before spilling
+     */
+    private final int threshold;
+
+    /**
+     * directory of the file, null for the default temporary directory
+     */
+    private final File dir;
+
+    /**
+     * MIME name of the character set the body is written in
+     */
+    private final String charset;
+
+    /**
+     * the bytes while they are in memory, null once spilled
+     */
+    private Bytes bytes = new Bytes();
+
+    /**
+     * the file once spilled
+     */
+    private File file = null;
+
+    /**
+     * where the bytes are being written
+     */
+    private OutputStream out;
+
+    /**
+     * number of bytes written
+     */
+    private long size = 0;
+
+    /**
+     * deletes the file once the buffer is collected, null until spilled
+     */
+    private Spill spill = null;
+
+    /**
+     * number of holders of the buffer, the tag that wrote it is the first
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * the files of the web application the buffer belongs to
+     */
+    private final Registry registry;
+
+    /**
+     * create a buffer
+     *
+     * @param threshold  bytes kept in memory before spilling to a file
+     * @param dir  directory of the file, null for the default temporary
+     *             directory
+     * @param charset  MIME name of the character set of the body
+     * @param registry  keeps the file until it is deleted
+     */
+    SpillBuffer(int threshold, File dir, String charset, Registry registry) {
+        this.threshold = threshold;
+        this.dir = dir;
+        this.charset = charset;
+        this.registry = registry;
+        out = bytes;
+    }
+
+    /**
+     * create a buffer for a body if the web application streams bodies
+     *
+     * @param sc  servlet context of the web application
+     * @param charset  MIME name of the character set of the body, null for
+     *                 the default character set
+     *
+     * @return - the buffer, or null if bodies are kept as Strings
+     *
+     */
+    public static SpillBuffer newInstance(ServletContext sc, String charset) {
+        int threshold = MailDispatcher.getIntParameter(sc, THRESHOLD_PARAM, 0);
+        if (threshold <= 0) {
+            return null;
+        }
+        Object tmp = sc.getAttribute("jakarta.servlet.context.tempdir");
+        return new SpillBuffer(threshold,
+                               tmp instanceof File ? (File)tmp : null,
+                               charset != null ? charset :
+                               MimeUtility.mimeCharset(
+                                   MimeUtility.getDefaultJavaCharset()),
+                               MailDispatcher.getInstance(sc).getSpills());
+    }
+
+    /**
+     * get the character set of a content type
+     *
+     * @param type  the content type
+     *
+     * @return - the charset parameter of the type or null if it has none
+     *
+     */
+    public static String getCharset(String type) {
+        try {
+            return new ContentType(type).getParameter("charset");
+        } catch (ParseException pe) {
+            return null;
+        }
+    }
+
+    /**
+     * get a writer adding to the buffer, closing it finishes the buffer
+     *
+     * @return - the writer
+     *
+     * @throws IOException  thrown when the character set is not supported
+     *
+     */
+    public Writer getWriter() throws IOException {
+        return new OutputStreamWriter(new Sink(),
+                                      MimeUtility.javaCharset(charset));
+    }
+
+    /**
+     * get the number of bytes in the buffer
+     *
+     * @return - size in bytes
+     *
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * find out whether the buffer was moved to a file
+     *
+     * @return - true if the bytes are in a temporary file
+     *
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * copy the bytes of a buffer held in memory
+     *
+     * @return - the bytes
+     *
+     * @throws IOException  thrown when the buffer was moved to a file
+     *
+     */
+    public byte[] toByteArray() throws IOException {
+        if (file != null) {
+            throw new IOException("The body was moved to " + file);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * get the MIME name of the character set of the body
+     *
+     * @return - the character set
+     *
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * read the buffer from the start
+     *
+     * @return - a new stream over the bytes of the buffer
+     *
+     * @throws IOException  thrown when the file cannot be opened
+     *
+     */
+    public InputStream getInputStream() throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(bytes.getBuffer(), 0,
+                                            bytes.size());
+        }
+        return new BufferedInputStream(new FileInputStream(file), 8192);
+    }
+
+    /**
+     * get the buffer as the content of a body part
+     *
+     * @param type  content type of the body, the character set of the
+     *              buffer is added if it has none
+     *
+     * @return - the data source
+     *
+     */
+    public DataSource getDataSource(String type) {
+        String contentType = type;
+        try {
+            ContentType ct = new ContentType(type);
+            if (ct.getParameter("charset") == null) {
+                ct.setParameter("charset", charset);
+            }
+            contentType = ct.toString();
+        } catch (ParseException pe) {
+            // use the type as it is
+        }
+        return new Source(contentType);
+    }
+
+    /**
+     * add a holder of the buffer, its file is kept until the holder lets go
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * let go of the buffer, its file is deleted once every holder has let go
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            delete();
+        }
+    }
+
+    /**
+     * delete the file of the buffer
+     */
+    private synchronized void delete() {
+        if (spill != null) {
+            registry.remove(spill);
+            spill.clear();
+            spill = null;
+            file.delete();
+        }
+    }
+
+    /**
+     * get the buffer a body part is written from
+     *
+     * @param part  the body part
+     *
+     * @return - the buffer, or null if the part is not written from one
+     *
+     */
+    public static SpillBuffer getBuffer(Part part) {
+        try {
+            DataSource source = part.getDataHandler().getDataSource();
+            return source instanceof Source ? ((Source)source).getBuffer() :
+                null;
+        } catch (MessagingException me) {
+            return null;
+        }
+    }
+
+    /**
+     * hold the spilled buffers a message is written from, so that their
+     * files are kept until the message is sent
+     *
+     * @param part  the message or one of its parts, a message read back
+     *              from its bytes has no buffers
+     *
+     * @return - the buffers held, each of them is let go of once
+     *
+     */
+    static List<SpillBuffer> retainAll(Part part) {
+        List<SpillBuffer> buffers = new ArrayList<SpillBuffer>();
+        try {
+            find(part, buffers);
+        } catch (MessagingException me) {
+            // the parts that could not be read are not written either
+        } catch (IOException ie) {
+            // the parts that could not be read are not written either
+        }
+        for (SpillBuffer buffer : buffers) {
+            buffer.retain();
+        }
+        return buffers;
+    }
+
+    /**
+     * collect the spilled buffers of a part and of the parts it contains
+     */
+    private static void find(Part part, List<SpillBuffer> buffers)
+        throws MessagingException, IOException {
+        DataHandler dh = part.getDataHandler();
+        DataSource source = dh.getDataSource();
+        if (source instanceof Source) {
+            SpillBuffer buffer = ((Source)source).getBuffer();
+            if (buffer.isSpilled() && !buffers.contains(buffer)) {
+                buffers.add(buffer);
+            }
+        } else if (!(source instanceof MimePartDataSource) &&
+                   new ContentType(dh.getContentType())
+                   .match("multipart/*")) {
+            // only a multipart built by the tags is looked into, a parsed
+            // one is not written from a buffer, the type of the handler is
+            // used as the headers are not set before saveChanges
+            Object content = dh.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart)content;
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    find(multipart.getBodyPart(i), buffers);
+                }
+            }
+        }
+    }
+
+    /**
+     * read the whole body back, for the tags that need it as a String
+     *
+     * @return - the body
+     *
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder((int)Math.min(size, 1 << 20));
+        try {
+            Reader in = new InputStreamReader(getInputStream(),
+                                              MimeUtility.javaCharset(charset));
+            try {
+                char[] buffer = new char[8192];
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    sb.append(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ie) {
+            throw new IllegalStateException("The body of the message could" +
+                                            " not be read back:  " +
+                                            ie.getMessage());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * move the bytes held in memory to a file
+     */
+    private void spill() throws IOException {
+        registry.expunge();
+        file = File.createTempFile("mailer", ".body", dir);
+        spill = registry.add(this, file);
+        out = new BufferedOutputStream(new FileOutputStream(file), 8192);
+        bytes.writeTo(out);
+        bytes = null;
+    }
+
+    /**
+     * Sink - the stream the writer adds to, it spills the buffer once the
+     *        threshold is passed
+     */
+    private class Sink extends OutputStream {
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && size + len > threshold) {
+                spill();
+            }
+            out.write(b, off, len);
+            size += len;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Source - the buffer as the content of a body part
+     */
+    private class Source implements DataSource {
+
+        private final String type;
+
+        Source(String type) {
+            this.type = type;
+        }
+
+        SpillBuffer getBuffer() {
+            return SpillBuffer.this;
+        }
+
+        public String getContentType() {
+            return type;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return SpillBuffer.this.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("The body of the message cannot be " +
+                                  "changed.");
+        }
+
+        public String getName() {
+            return null;
+        }
+    }
+
+    /**
+     * Bytes - the bytes held in memory, read in place
+     */
+    private static class Bytes extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Spill - deletes the file of a buffer once the buffer is collected
+     */
+    private static class Spill extends PhantomReference<SpillBuffer> {
+
+        final File file;
+
+        Spill(SpillBuffer buffer, File file,
+              ReferenceQueue<SpillBuffer> collected) {
+            super(buffer, collected);
+            this.file = file;
+        }
+    }
+
+    /**
+     * Registry - the files of the buffers of one web application, each
+     *            dispatcher keeps its own so that shutting one down leaves
+     *            the files of the others alone
+     */
+    static class Registry {
+
+        /**
+         * the files of buffers no longer used are deleted when they are
+         * queued
+         */
+        private final ReferenceQueue<SpillBuffer> collected =
+            new ReferenceQueue<SpillBuffer>();
+
+        /**
+         * keeps the references to the files until they are deleted
+         */
+        private final Set<Spill> spills =
+            Collections.synchronizedSet(new HashSet<Spill>());
+
+        /**
+         * keep the file of a buffer until it is deleted
+         *
+         * @param buffer  the buffer that spilled
+         * @param file  the file it spilled to
+         *
+         * @return - the reference deleting the file once the buffer is
+         *           collected
+         *
+         */
+        Spill add(SpillBuffer buffer, File file) {
+            Spill spill = new Spill(buffer, file, collected);
+            spills.add(spill);
+            return spill;
+        }
+
+        /**
+         * forget the file of a buffer that deleted it
+         *
+         * @param spill  the reference to the file
+         *
+         */
+        void remove(Spill spill) {
+            spills.remove(spill);
+        }
+
+        /**
+         * delete the files of the buffers that were garbage collected
+         */
+        void expunge() {
+            for (Reference<? extends SpillBuffer> ref;
+                    (ref = collected.poll()) != null; ) {
+                Spill spill = (Spill)ref;
+                spills.remove(spill);
+                spill.file.delete();
+            }
+        }
+
+        /**
+         * delete the files of every buffer, used when the dispatcher shuts
+         * down and no message is sent any more
+         */
+        void deleteAll() {
+            Spill[] left;
+            synchronized (spills) {
+                left = spills.toArray(new Spill[spills.size()]);
+                spills.clear();
+            }
+            for (int i = 0; i < left.length; i++) {
+                left[i].clear();
+                left[i].file.delete();
+            }
+        }
+    }
+}
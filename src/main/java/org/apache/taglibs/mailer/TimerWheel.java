@@ -0,0 +1,237 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimerWheel - a hashed timer wheel holding tasks that have to run after a
+ *              delay, such as messages waiting to be sent again.
+ *
+ * <p>
+ * The wheel does not own a thread.  Its tick method is called at a fixed
+ * rate by the timer of the dispatcher and runs the tasks whose delay has
+ * passed, so thousands of waiting tasks cost one list entry each instead of
+ * a sleeping thread.  Tasks should be short, typically they only queue a
+ * job on the dispatcher.  A task runs at most one tick late.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class TimerWheel {
+
+    /**
+     * milliseconds per tick
+     */
+    private final long tickDuration;
+
+    /**
+     * the buckets of the wheel, a power of two in size
+     */
+    private final List<LinkedList<Timeout>> wheel;
+    private final int mask;
+
+    /**
+     * tasks scheduled since the last tick
+     */
+    private final ConcurrentLinkedQueue<Timeout> added =
+        new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * time the wheel was started and number of ticks processed
+     */
+    private final long start = System.currentTimeMillis();
+    private long tick = 0;
+
+    /**
+     * number of tasks waiting
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * create a timer wheel
+     *
+     * @param tickDuration  milliseconds per tick
+     * @param buckets  number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickDuration, int buckets) {
+        this.tickDuration = tickDuration;
+        int n = 1;
+        while (n < buckets) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        wheel = new ArrayList<LinkedList<Timeout>>(n);
+        for (int i = 0; i < n; i++) {
+            wheel.add(new LinkedList<Timeout>());
+        }
+    }
+
+    /**
+     * get the milliseconds per tick
+     *
+     * @return - the tick duration
+     *
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * schedule a task, may be called from any thread
+     *
+     * @param task  the task to run
+     * @param delay  milliseconds to wait before the task is run
+     *
+     */
+    public void schedule(Runnable task, long delay) {
+        size.incrementAndGet();
+        added.add(new Timeout(task,
+                              System.currentTimeMillis() + Math.max(0, delay)));
+    }
+
+    /**
+     * get the number of tasks waiting
+     *
+     * @return - number of waiting tasks
+     *
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * get the number of tasks that become due by a time
+     *
+     * @param time  the time in milliseconds
+     *
+     * @return - number of waiting tasks due at or before the time
+     *
+     */
+    public synchronized int countDue(long time) {
+        transferAdded();
+        int count = 0;
+        for (LinkedList<Timeout> bucket : wheel) {
+            for (Timeout timeout : bucket) {
+                if (timeout.deadline <= time) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * advance the wheel to the current time and run the tasks that are due,
+     * must only be called by one thread at a time
+     */
+    public void tick() {
+        long now = System.currentTimeMillis();
+        long target = (now - start) / tickDuration;
+        // catch up when the timer thread has been late
+        while (tick <= target) {
+            transferAdded();
+            expire(wheel.get((int)(tick & mask)), now);
+            tick++;
+        }
+    }
+
+    /**
+     * remove every waiting task without running it
+     *
+     * @return - the tasks that were waiting
+     *
+     */
+    public synchronized List<Runnable> clear() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        transferAdded();
+        for (LinkedList<Timeout> bucket : wheel) {
+            for (Timeout timeout : bucket) {
+                tasks.add(timeout.task);
+            }
+            bucket.clear();
+        }
+        size.addAndGet(-tasks.size());
+        return tasks;
+    }
+
+    /**
+     * place the tasks scheduled since the last tick in their buckets
+     */
+    private synchronized void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            long due = (timeout.deadline - start) / tickDuration;
+            // a task that is already due goes in the current bucket
+            long ticks = Math.max(due, tick);
+            timeout.rounds = (ticks - tick) / wheel.size();
+            wheel.get((int)(ticks & mask)).add(timeout);
+        }
+    }
+
+    /**
+     * run the due tasks of a bucket and count down the rounds of the others
+     */
+    private void expire(LinkedList<Timeout> bucket, long now) {
+        List<Runnable> due = null;
+        synchronized (this) {
+            for (Iterator<Timeout> i = bucket.iterator(); i.hasNext(); ) {
+                Timeout timeout = i.next();
+                if (timeout.rounds <= 0) {
+                    i.remove();
+                    if (due == null) {
+                        due = new ArrayList<Runnable>();
+                    }
+                    due.add(timeout.task);
+                } else {
+                    timeout.rounds--;
+                }
+            }
+        }
+        if (due == null) {
+            return;
+        }
+        size.addAndGet(-due.size());
+        for (Runnable task : due) {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                // one failing task must not stop the wheel
+            }
+        }
+    }
+
+    /**
+     * a waiting task
+     */
+    private static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
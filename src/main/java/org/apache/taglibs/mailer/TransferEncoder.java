@@ -0,0 +1,230 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * TransferEncoder - chooses the content transfer encoding of a text body
+ *                   and encodes it in the same pass over its bytes.
+ *
+ * <p>
+ * JavaMail reads a text body once to choose between 7bit, quoted-printable
+ * and base64 and a second time to encode it.  This encoder makes the same
+ * choice as JavaMail, 7bit when every byte is ascii and no line is longer
+ * than 998 bytes, quoted-printable when most bytes are ascii and base64
+ * otherwise, while it writes the quoted-printable form through a lookup
+ * table.  A 7bit body is sent as it is and a body that turns out to be
+ * mostly binary is encoded again with java.util.Base64.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+final class TransferEncoder {
+
+    /**
+     * how each byte is written in quoted-printable
+     */
+    private final static byte LITERAL = 0;
+    private final static byte SPACE = 1;
+    private final static byte CR = 2;
+    private final static byte LF = 3;
+    private final static byte ESCAPE = 4;
+
+    private final static byte[] CLASSES = new byte[256];
+
+    /**
+     * whether each byte counts as not ascii when choosing the encoding
+     */
+    private final static boolean[] BINARY = new boolean[256];
+
+    private final static byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * longest quoted-printable line, without the soft break
+     */
+    private final static int QP_LINE = 75;
+
+    /**
+     * longest line allowed in 7bit
+     */
+    private final static int MAX_LINE = 998;
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            CLASSES[b] = b > 32 && b < 127 && b != '=' ? LITERAL : ESCAPE;
+            BINARY[b] = b >= 127 || (b < 32 && b != '\r' && b != '\n' &&
+                                     b != '\t');
+        }
+        CLASSES[' '] = SPACE;
+        CLASSES['\t'] = SPACE;
+        CLASSES['\r'] = CR;
+        CLASSES['\n'] = LF;
+    }
+
+    private TransferEncoder() {
+    }
+
+    /**
+     * choose the transfer encoding of a text body and encode it
+     *
+     * @param data  the bytes of the body in its character set, not changed
+     *
+     * @return - the encoding and the encoded bytes
+     *
+     */
+    static Encoded encode(byte[] data) {
+        // mostly ascii text grows little, the buffer is doubled when needed
+        byte[] qp = new byte[data.length + data.length / 8 + 16];
+        int q = 0;          // bytes of quoted-printable written
+        int column = 0;     // length of the current quoted-printable line
+        int line = 0;       // length of the current line of the data
+        int binary = 0;     // bytes that are not ascii
+        boolean longLines = false;
+
+        for (int i = 0; i < data.length; i++) {
+            if (q + 6 > qp.length) {
+                // a soft line break and an escaped byte at most
+                qp = Arrays.copyOf(qp, qp.length * 2);
+            }
+            int b = data[i] & 0xff;
+            if (BINARY[b]) {
+                binary++;
+            }
+            switch (CLASSES[b]) {
+            case LITERAL:
+                if (column + 1 > QP_LINE) {
+                    q = softBreak(qp, q);
+                    column = 0;
+                }
+                qp[q++] = (byte)b;
+                column++;
+                line++;
+                break;
+            case SPACE:
+                // white space at the end of a line must be escaped
+                boolean last = i + 1 == data.length ||
+                    CLASSES[data[i + 1] & 0xff] == CR ||
+                    CLASSES[data[i + 1] & 0xff] == LF;
+                int width = last ? 3 : 1;
+                if (column + width > QP_LINE) {
+                    q = softBreak(qp, q);
+                    column = 0;
+                }
+                q = last ? escape(qp, q, b) : put(qp, q, b);
+                column += width;
+                line++;
+                break;
+            case CR:
+            case LF:
+                // CR, LF and CRLF are all written as a line break
+                if (b == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                    i++;
+                }
+                qp[q++] = '\r';
+                qp[q++] = '\n';
+                column = 0;
+                line = 0;
+                break;
+            default:
+                if (column + 3 > QP_LINE) {
+                    q = softBreak(qp, q);
+                    column = 0;
+                }
+                q = escape(qp, q, b);
+                column += 3;
+                line++;
+            }
+            if (line > MAX_LINE) {
+                longLines = true;
+            }
+        }
+
+        int ascii = data.length - binary;
+        if (binary == 0 && !longLines) {
+            return new Encoded("7bit", ByteBuffer.wrap(data));
+        }
+        if (ascii > binary) {
+            return new Encoded("quoted-printable",
+                               ByteBuffer.wrap(Arrays.copyOf(qp, q)));
+        }
+        byte[] base64 = Base64.getMimeEncoder().encode(data);
+        byte[] content = Arrays.copyOf(base64, base64.length + 2);
+        content[base64.length] = '\r';
+        content[base64.length + 1] = '\n';
+        return new Encoded("base64", ByteBuffer.wrap(content));
+    }
+
+    private static int put(byte[] qp, int q, int b) {
+        qp[q++] = (byte)b;
+        return q;
+    }
+
+    private static int escape(byte[] qp, int q, int b) {
+        qp[q++] = '=';
+        qp[q++] = HEX[b >> 4];
+        qp[q++] = HEX[b & 0xf];
+        return q;
+    }
+
+    private static int softBreak(byte[] qp, int q) {
+        qp[q++] = '=';
+        qp[q++] = '\r';
+        qp[q++] = '\n';
+        return q;
+    }
+
+    /**
+     * Encoded - a body and the transfer encoding it was encoded with
+     */
+    static class Encoded {
+
+        private final String encoding;
+        private final ByteBuffer content;
+
+        Encoded(String encoding, ByteBuffer content) {
+            this.encoding = encoding;
+            this.content = content.asReadOnlyBuffer();
+        }
+
+        /**
+         * get the name of the transfer encoding
+         *
+         * @return - 7bit, quoted-printable or base64
+         *
+         */
+        String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * get the encoded bytes
+         *
+         * @return - a read only buffer over the bytes
+         *
+         */
+        ByteBuffer getContent() {
+            return content.duplicate();
+        }
+    }
+}
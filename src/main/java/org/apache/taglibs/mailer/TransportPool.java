@@ -0,0 +1,359 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import com.sun.mail.smtp.SMTPTransport;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+/**
+ * TransportPool - keeps connected SMTP transports so that consecutive
+ *                 messages sent to the same mail server do not each pay for
+ *                 the connection, EHLO, STARTTLS and AUTH handshake.
+ *
+ * <p>
+ * Transports are pooled by the mail server host, port and user name they
+ * were connected with.  At most <i>maxPerKey</i> transports are open for one
+ * key, a transport that has not been used for <i>idleTimeout</i>
+ * milliseconds is closed, a transport is checked with a NOOP before it is
+ * handed out again and an RSET is sent when it is given back to the pool.
+ * </p>
+ *
+ * @version 1.0
+ *
+ */
+public class TransportPool {
+
+    /**
+     * the open transports for each key
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * maximum number of transports open for one key
+     */
+    private final int maxPerKey;
+
+    /**
+     * milliseconds a transport may stay unused in the pool
+     */
+    private final long idleTimeout;
+
+    /**
+     * milliseconds to wait for a transport when maxPerKey are in use
+     */
+    private final long waitTimeout;
+
+    /**
+     * set once the pool has been closed
+     */
+    private boolean closed = false;
+
+    /**
+     * create a transport pool
+     *
+     * @param maxPerKey  maximum number of transports open for one key
+     * @param idleTimeout  milliseconds a transport may stay unused in the pool
+     * @param waitTimeout  milliseconds to wait for a free transport
+     */
+    public TransportPool(int maxPerKey, long idleTimeout, long waitTimeout) {
+        this.maxPerKey = maxPerKey;
+        this.idleTimeout = idleTimeout;
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * get the key a transport for a session is pooled under
+     *
+     * @param session  mail session the transport is created from
+     * @param user  user name used to login, or null to use the one configured
+     *              in the session
+     *
+     * @return - the pool key made of the host, port and user
+     *
+     */
+    public static String getKey(Session session, String user) {
+        if (user == null) {
+            user = session.getProperty("mail.smtp.user");
+        }
+        if (user == null) {
+            user = session.getProperty("mail.user");
+        }
+        return getServer(session) + ":" + (user == null ? "" : user);
+    }
+
+    /**
+     * get the server a session connects to
+     *
+     * @param session  mail session
+     *
+     * @return - the host and port as host:port
+     *
+     */
+    public static String getServer(Session session) {
+        String host = session.getProperty("mail.smtp.host");
+        if (host == null) {
+            host = session.getProperty("mail.host");
+        }
+        String port = session.getProperty("mail.smtp.port");
+        return (host == null ? "localhost" : host) + ":" +
+               (port == null ? "25" : port);
+    }
+
+    /**
+     * borrow a connected transport, the transport must be given back with
+     * release once the message has been sent
+     *
+     * @param key  key returned by getKey for the session
+     * @param session  mail session used to create a new transport
+     *
+     * @return - a connected transport
+     *
+     * @throws MessagingException  thrown when no transport could be connected
+     *
+     */
+    public Transport borrow(String key, Session session)
+        throws MessagingException {
+
+        Entry entry;
+        long deadline = System.currentTimeMillis() + waitTimeout;
+        while (true) {
+            Pooled pooled = null;
+            synchronized (this) {
+                if (closed) {
+                    throw new MessagingException("The transport pool is" +
+                                                 " closed.");
+                }
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry();
+                    entries.put(key, entry);
+                }
+                if (!entry.idle.isEmpty()) {
+                    pooled = entry.idle.pop();
+                } else if (entry.open < maxPerKey) {
+                    // reserve the slot before connecting outside the lock
+                    entry.open++;
+                    break;
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new WaitException("No connection to " + key
+                            + " became available within " + waitTimeout
+                            + " milliseconds.");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new WaitException("Interrupted while" +
+                            " waiting for a connection to " + key);
+                    }
+                    continue;
+                }
+            }
+            // validate the transport outside the lock, isConnected sends a
+            // NOOP to the server
+            if (System.currentTimeMillis() - pooled.since < idleTimeout &&
+                    pooled.transport.isConnected()) {
+                return pooled.transport;
+            }
+            discard(key, pooled.transport);
+        }
+
+        // a slot has been reserved, open a new connection
+        Transport transport = null;
+        try {
+            transport = session.getTransport("smtp");
+            transport.connect();
+            return transport;
+        } catch (MessagingException me) {
+            discard(key, transport);
+            throw me;
+        } catch (RuntimeException re) {
+            discard(key, transport);
+            throw re;
+        }
+    }
+
+    /**
+     * give a borrowed transport back to the pool
+     *
+     * @param key  key the transport was borrowed with
+     * @param transport  the transport to give back
+     * @param broken  true if the connection failed while sending and the
+     *                transport must not be used again
+     *
+     */
+    public void release(String key, Transport transport, boolean broken) {
+        if (!broken) {
+            try {
+                // clear any state left over by the last message
+                if (transport instanceof SMTPTransport) {
+                    ((SMTPTransport)transport).issueCommand("RSET", 250);
+                }
+            } catch (MessagingException me) {
+                broken = true;
+            }
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (!broken && !closed && entry != null) {
+                entry.idle.push(new Pooled(transport));
+                notifyAll();
+                return;
+            }
+        }
+        discard(key, transport);
+    }
+
+    /**
+     * close the transports which have not been used for longer than the
+     * idle timeout
+     */
+    public void evictIdle() {
+        Deque<Pooled> expired = new ArrayDeque<Pooled>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<Entry> i = entries.values().iterator();
+                     i.hasNext(); ) {
+                Entry entry = i.next();
+                for (Iterator<Pooled> j = entry.idle.iterator(); j.hasNext();) {
+                    Pooled pooled = j.next();
+                    if (now - pooled.since >= idleTimeout) {
+                        j.remove();
+                        entry.open--;
+                        expired.add(pooled);
+                    }
+                }
+                if (entry.open == 0) {
+                    i.remove();
+                }
+            }
+            notifyAll();
+        }
+        for (Pooled pooled : expired) {
+            close(pooled.transport);
+        }
+    }
+
+    /**
+     * close every idle transport and stop pooling, transports still borrowed
+     * are closed when they are released
+     */
+    public void close() {
+        Deque<Pooled> idle = new ArrayDeque<Pooled>();
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                entry.open -= entry.idle.size();
+                idle.addAll(entry.idle);
+                entry.idle.clear();
+            }
+            notifyAll();
+        }
+        for (Pooled pooled : idle) {
+            close(pooled.transport);
+        }
+    }
+
+    /**
+     * get the number of open transports, both idle and borrowed
+     *
+     * @return - number of open transports
+     *
+     */
+    public synchronized int getOpenCount() {
+        int open = 0;
+        for (Entry entry : entries.values()) {
+            open += entry.open;
+        }
+        return open;
+    }
+
+    /**
+     * close a transport and free its slot
+     */
+    private void discard(String key, Transport transport) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.open--;
+                if (entry.open == 0 && entry.idle.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+            notifyAll();
+        }
+        close(transport);
+    }
+
+    /**
+     * close a transport ignoring any error
+     */
+    private static void close(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (MessagingException me) {
+            // the connection is being thrown away
+        }
+    }
+
+    /**
+     * the transports open for one key
+     */
+    private static class Entry {
+        // idle transports, the most recently used first
+        final Deque<Pooled> idle = new ArrayDeque<Pooled>();
+        // number of transports open, both idle and borrowed
+        int open = 0;
+    }
+
+    /**
+     * an idle transport and the time it was given back to the pool
+     */
+    private static class Pooled {
+        final Transport transport;
+        final long since = System.currentTimeMillis();
+
+        Pooled(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * WaitException - thrown by borrow when no transport became free in
+     *                 time, the server itself has not failed
+     */
+    public static class WaitException extends MessagingException {
+
+        private final static long serialVersionUID = 1L;
+
+        WaitException(String message) {
+            super(message);
+        }
+    }
+}
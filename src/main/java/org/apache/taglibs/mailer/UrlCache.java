@@ -0,0 +1,463 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.util.ByteArrayDataSource;
+import jakarta.servlet.ServletContext;
+
+/**
+ * UrlCache - fetches the resources attached with the url attribute of the
+ *            <b>attach</b> tag and keeps their transfer encoded content, so
+ *            that a resource attached to every message is downloaded and
+ *            encoded once rather than on every send.
+ *
+ * <p>
+ * A resource is fetched in the background as soon as the attach tag is
+ * evaluated, the send tag only waits for it when it builds the message and
+ * the threads delivering the mail never connect to the remote server.  A
+ * cached resource is used as it is until the max-age of its Cache-Control
+ * header, or its Expires header, has passed.  After that it is revalidated
+ * with its ETag and Last-Modified headers and only downloaded again if it
+ * changed.  A resource sent with Cache-Control no-store is never kept.
+ * </p>
+ *
+ * <p>
+ * The cache is configured with the following context parameters, all of
+ * which are optional.
+ * <p><pre>
+ * org.apache.taglibs.mailer.urlCacheSize  bytes of encoded content kept, the
+ *                                         least recently used resources are
+ *                                         dropped first (default 16777216,
+ *                                         0 turns the cache off)
+ * org.apache.taglibs.mailer.urlMaxFetches maximum number of resources
+ *                                         fetched at once (default 4)
+ * org.apache.taglibs.mailer.urlConnectTimeout
+ *                                         milliseconds to wait for the
+ *                                         connection to the remote server
+ *                                         (default 10000)
+ * org.apache.taglibs.mailer.urlReadTimeout
+ *                                         milliseconds to wait for data from
+ *                                         the remote server (default 30000)
+ * </pre>
+ *
+ * @version 1.0
+ *
+ */
+public class UrlCache {
+
+    /**
+     * The context parameter names
+     */
+    public final static String SIZE_PARAM =
+        "org.apache.taglibs.mailer.urlCacheSize";
+    public final static String MAX_FETCHES_PARAM =
+        "org.apache.taglibs.mailer.urlMaxFetches";
+    public final static String CONNECT_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.urlConnectTimeout";
+    public final static String READ_TIMEOUT_PARAM =
+        "org.apache.taglibs.mailer.urlReadTimeout";
+
+    /**
+     * name of the servlet context attribute the cache is stored under
+     */
+    private final static String ATTRIBUTE = UrlCache.class.getName();
+
+    /**
+     * guards the creation of the cache
+     */
+    private final static Object LOCK = new Object();
+
+    /**
+     * the fetched resources, in least recently used order
+     */
+    private final Map<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * the resources being fetched, so that a resource attached by several
+     * pages at once is only fetched once
+     */
+    private final Map<String, CompletableFuture<Entry>> pending =
+        new HashMap<String, CompletableFuture<Entry>>();
+
+    /**
+     * the threads fetching the resources
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * bytes of encoded content the cache may hold
+     */
+    private final long budget;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /**
+     * bytes of encoded content held
+     */
+    private long used = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * create a url cache
+     *
+     * @param budget  bytes of encoded content kept, 0 to keep none
+     * @param maxFetches  maximum number of resources fetched at once
+     * @param connectTimeout  milliseconds to wait for a connection
+     * @param readTimeout  milliseconds to wait for data
+     */
+    public UrlCache(long budget, int maxFetches, int connectTimeout,
+                    int readTimeout) {
+        this.budget = budget;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        executor = new ThreadPoolExecutor(maxFetches, maxFetches,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new MailDispatcher.MailerThreadFactory("mailer-fetch-"));
+        // let the threads die off when no resource is being fetched
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * get the url cache for a web application, creating it if it does not
+     * exist yet
+     *
+     * @param sc  servlet context of the web application
+     *
+     * @return - the url cache for the web application
+     *
+     */
+    public static UrlCache getInstance(ServletContext sc) {
+        synchronized (LOCK) {
+            UrlCache cache = (UrlCache)sc.getAttribute(ATTRIBUTE);
+            if (cache == null) {
+                cache = new UrlCache(Math.max(0,
+                    MailDispatcher.getIntParameter(sc, SIZE_PARAM,
+                                                   16 * 1024 * 1024)),
+                    Math.max(1, MailDispatcher.getIntParameter(sc,
+                        MAX_FETCHES_PARAM, 4)),
+                    Math.max(0, MailDispatcher.getIntParameter(sc,
+                        CONNECT_TIMEOUT_PARAM, 10000)),
+                    Math.max(0, MailDispatcher.getIntParameter(sc,
+                        READ_TIMEOUT_PARAM, 30000)));
+                sc.setAttribute(ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * get the body part attaching a resource, fetching it in the background
+     * if it is not in the cache or has to be revalidated
+     *
+     * @param url  the resource
+     *
+     * @return - the future of a new part, which fails with a
+     *           MessagingException or IOException when the resource cannot
+     *           be fetched
+     *
+     */
+    public CompletableFuture<MimeBodyPart> getPart(final URL url) {
+        final String key = url.toExternalForm();
+        CompletableFuture<Entry> future;
+        synchronized (entries) {
+            final Entry cached = entries.get(key);
+            if (cached != null &&
+                    System.currentTimeMillis() < cached.expires) {
+                hits.incrementAndGet();
+                future = CompletableFuture.completedFuture(cached);
+            } else {
+                future = pending.get(key);
+                if (future == null) {
+                    final CompletableFuture<Entry> fetching =
+                        new CompletableFuture<Entry>();
+                    pending.put(key, fetching);
+                    executor.execute(new Runnable() {
+                            public void run() {
+                                Entry entry = null;
+                                Exception failure = null;
+                                try {
+                                    entry = fetch(key, url, cached);
+                                } catch (Exception e) {
+                                    failure = e;
+                                }
+                                // no longer pending before it completes, so
+                                // a later request does not take up a result
+                                // that has to be revalidated again
+                                synchronized (entries) {
+                                    pending.remove(key);
+                                }
+                                if (failure == null) {
+                                    fetching.complete(entry);
+                                } else {
+                                    fetching.completeExceptionally(failure);
+                                }
+                            }
+                        });
+                    future = fetching;
+                }
+            }
+        }
+
+        // each message gets its own part sharing the encoded content
+        final CompletableFuture<MimeBodyPart> part =
+            new CompletableFuture<MimeBodyPart>();
+        future.whenComplete(new BiConsumer<Entry, Throwable>() {
+                public void accept(Entry entry, Throwable t) {
+                    if (t != null) {
+                        part.completeExceptionally(t);
+                        return;
+                    }
+                    try {
+                        part.complete(entry.part.copy());
+                    } catch (MessagingException me) {
+                        part.completeExceptionally(me);
+                    }
+                }
+            });
+        return part;
+    }
+
+    /**
+     * fetch a resource, revalidating the cached copy if there is one
+     *
+     * @param key  the cache key
+     * @param url  the resource
+     * @param cached  the stale entry or null
+     *
+     * @return - the fresh entry
+     *
+     */
+    private Entry fetch(String key, URL url, Entry cached)
+        throws MessagingException, IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since",
+                                              cached.lastModified);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection)connection;
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED &&
+                    cached != null) {
+                revalidations.incrementAndGet();
+                http.disconnect();
+                Entry entry = new Entry(cached.part, cached.etag,
+                                        cached.lastModified,
+                                        getExpires(connection, now));
+                store(key, entry);
+                return entry;
+            }
+            if (code < 200 || code >= 300) {
+                http.disconnect();
+                throw new IOException("The server answered " + code + " " +
+                                      http.getResponseMessage() + " for " +
+                                      key);
+            }
+        }
+        misses.incrementAndGet();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        String type = connection.getContentType();
+        if (type == null) {
+            type = "application/octet-stream";
+        }
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(
+            new ByteArrayDataSource(bytes.toByteArray(), type)));
+        part.setFileName(url.getFile());
+
+        Entry entry = new Entry(EncodedBodyPart.encode(part, budget > 0),
+                                connection.getHeaderField("ETag"),
+                                connection.getHeaderField("Last-Modified"),
+                                getExpires(connection, now));
+        if (!isNoStore(connection)) {
+            store(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * keep an entry, dropping the least recently used ones past the budget
+     *
+     * @param key  the cache key
+     * @param entry  the entry
+     *
+     */
+    private void store(String key, Entry entry) {
+        long size = entry.part.getEncodedSize();
+        synchronized (entries) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                used -= old.part.getEncodedSize();
+            }
+            if (size > budget) {
+                return;
+            }
+            entries.put(key, entry);
+            used += size;
+            for (Iterator<Entry> i = entries.values().iterator();
+                    used > budget && i.hasNext(); ) {
+                used -= i.next().part.getEncodedSize();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * get the time until which a response may be used without revalidating
+     * it
+     *
+     * @param connection  the response
+     * @param now  the time the request was made
+     *
+     * @return - the expiry time in milliseconds
+     *
+     */
+    private static long getExpires(URLConnection connection, long now) {
+        String control = connection.getHeaderField("Cache-Control");
+        if (control != null) {
+            String[] directives = control.split(",");
+            for (int i = 0; i < directives.length; i++) {
+                String directive = directives[i].trim().toLowerCase();
+                if (directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + 1000L *
+                            Long.parseLong(directive.substring(8).trim());
+                    } catch (NumberFormatException nfe) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return connection.getExpiration();
+    }
+
+    private static boolean isNoStore(URLConnection connection) {
+        String control = connection.getHeaderField("Cache-Control");
+        return control != null &&
+            control.toLowerCase().indexOf("no-store") >= 0;
+    }
+
+    /**
+     * get the number of resources used from the cache without contacting
+     * the remote server
+     *
+     * @return - number of hits
+     *
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of cached resources the remote server said had not
+     * changed
+     *
+     * @return - number of revalidations
+     *
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * get the number of resources that had to be downloaded
+     *
+     * @return - number of misses
+     *
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * get the number of bytes of encoded content held
+     *
+     * @return - bytes held
+     *
+     */
+    public long getUsed() {
+        synchronized (entries) {
+            return used;
+        }
+    }
+
+    /**
+     * Entry - a fetched resource and the headers needed to revalidate it
+     */
+    private static class Entry {
+
+        final EncodedBodyPart part;
+        final String etag;
+        final String lastModified;
+        final long expires;
+
+        Entry(EncodedBodyPart part, String etag, String lastModified,
+              long expires) {
+            this.part = part;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class AddressCacheTest {
+
+    private final AddressCache cache = new AddressCache(16);
+
+    @Test
+    public void listSeparatedByCommasIsSplit() {
+        AddressCache.Parsed parsed =
+            cache.lookup("a@example.org, B <b@example.org>");
+        assertNull(parsed.getError());
+        assertEquals(2, parsed.getAddresses().length);
+        assertEquals("b@example.org", parsed.getAddresses()[1].getAddress());
+    }
+
+    @Test
+    public void listSeparatedByWhiteSpaceIsRefused() {
+        // as strict as InternetAddress.parse(String) always was
+        AddressCache.Parsed parsed =
+            cache.lookup("a@example.org b@example.org");
+        assertNotNull(parsed.getError());
+        assertEquals(0, parsed.getAddresses().length);
+    }
+
+    @Test
+    public void onlyTheBadAddressesAreReported() {
+        AddressCache.Parsed parsed = cache.lookup("a@example.org, b");
+        assertNull(parsed.getError());
+        assertEquals(1, parsed.getAddresses().length);
+        assertArrayEquals(new String[] { "b" }, parsed.getInvalid());
+    }
+}
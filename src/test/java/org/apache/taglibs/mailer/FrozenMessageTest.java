@@ -0,0 +1,200 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Properties;
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrozenMessageTest {
+
+    private File dir;
+    private SpillBuffer.Registry spills;
+    private Session session;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("frozen").toFile();
+        spills = new SpillBuffer.Registry();
+        session = Session.getInstance(new Properties());
+    }
+
+    @After
+    public void tearDown() {
+        spills.deleteAll();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void textIsNotStreamed() throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setText("Hello");
+        assertFalse(FrozenMessage.isStreamed(message));
+
+        SpillBuffer buffer = new SpillBuffer(1024, dir, "us-ascii", spills);
+        Writer writer = buffer.getWriter();
+        writer.write("small");
+        writer.close();
+        message.setDataHandler(new DataHandler(
+            buffer.getDataSource("text/plain")));
+        assertFalse(FrozenMessage.isStreamed(message));
+    }
+
+    @Test
+    public void attachedFileIsStreamed() throws Exception {
+        File file = new File(dir, "report.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100000]);
+        } finally {
+            out.close();
+        }
+        MimeMessage message = new MimeMessage(session);
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("see the report");
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(new FileBodyPart(file));
+        message.setContent(multipart);
+        assertTrue(FrozenMessage.isStreamed(message));
+
+        // the headers are final, writing the message keeps its id
+        message.saveChanges();
+        String id = message.getMessageID();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        message.writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        message.writeTo(second);
+        assertEquals(id, message.getMessageID());
+        assertEquals(first.toString("US-ASCII"), second.toString("US-ASCII"));
+    }
+
+    @Test
+    public void messageIsWrittenIntoPages() throws Exception {
+        SlabStore store = new SlabStore(4 * SlabStore.PAGE_SIZE);
+        MimeMessage message = text(40000);
+        FrozenMessage frozen = FrozenMessage.freeze(message, store, 0);
+        assertTrue(frozen.isHeld());
+        assertEquals(3 * SlabStore.PAGE_SIZE, store.getUsed());
+
+        ByteArrayOutputStream held = new ByteArrayOutputStream();
+        frozen.writeTo(held);
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        FrozenMessage.render(message, null, 0).writeTo(heap);
+        assertEquals(heap.toString("US-ASCII"), held.toString("US-ASCII"));
+
+        frozen.release();
+        assertEquals(0, store.getUsed());
+    }
+
+    @Test
+    public void pagesAreGivenBackWhenTheMessageDoesNotFit()
+        throws Exception {
+        SlabStore store = new SlabStore(4 * SlabStore.PAGE_SIZE);
+        FrozenMessage first = FrozenMessage.freeze(text(40000), store, 0);
+        assertNull(FrozenMessage.freeze(text(40000), store, 0));
+        assertEquals(3 * SlabStore.PAGE_SIZE, store.getUsed());
+        // larger than the whole budget, it does not wait for room
+        first.release();
+        long start = System.currentTimeMillis();
+        assertNull(FrozenMessage.freeze(text(100000), store, 10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(0, store.getUsed());
+    }
+
+    @Test(timeout = 20000)
+    public void noPageIsHeldWhileWaitingForRoom() throws Exception {
+        final SlabStore store = new SlabStore(4 * SlabStore.PAGE_SIZE);
+        FrozenMessage first = FrozenMessage.freeze(text(20000), store, 0);
+        assertEquals(2 * SlabStore.PAGE_SIZE, store.getUsed());
+
+        // the second message needs three pages, it gives back the two it
+        // took and waits for room for the whole message
+        final MimeMessage message = text(40000);
+        final FrozenMessage[] second = new FrozenMessage[1];
+        Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        second[0] = FrozenMessage.freeze(message, store,
+                                                         10000);
+                    } catch (Exception e) {
+                        // second stays null
+                    }
+                }
+            };
+        writer.start();
+        while (writer.getState() != Thread.State.TIMED_WAITING ||
+               store.getUsed() != 2 * SlabStore.PAGE_SIZE) {
+            Thread.sleep(10);
+        }
+
+        // a message that fits the pages left is not held up by the waiter
+        FrozenMessage third = FrozenMessage.freeze(text(20000), store, 0);
+        assertTrue(third != null);
+        first.release();
+        third.release();
+        writer.join();
+        assertTrue(second[0] != null && second[0].isHeld());
+        assertEquals(3 * SlabStore.PAGE_SIZE, store.getUsed());
+        second[0].release();
+        assertEquals(0, store.getUsed());
+    }
+
+    private MimeMessage text(int size) throws Exception {
+        StringBuilder body = new StringBuilder(size);
+        while (body.length() < size) {
+            body.append("All work and no play makes Jack a dull boy.\r\n");
+        }
+        MimeMessage message = new MimeMessage(session);
+        message.setText(body.toString());
+        return message;
+    }
+
+    @Test
+    public void spilledBodyIsStreamed() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(4, dir, "us-ascii", spills);
+        Writer writer = buffer.getWriter();
+        writer.write("a body larger than the threshold");
+        writer.close();
+        MimeMessage message = new MimeMessage(session);
+        message.setDataHandler(new DataHandler(
+            buffer.getDataSource("text/plain")));
+        assertTrue(FrozenMessage.isStreamed(message));
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.activation.DataHandler;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.servlet.ServletContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MailDispatcherTest {
+
+    private File dir;
+    private SmtpServer server;
+    private MailDispatcher dispatcher;
+    private final Map<String, String> params = new HashMap<String, String>();
+    private final List<String> logs =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("spool").toFile();
+        server = new SmtpServer();
+        params.put(MailDispatcher.class.getPackage().getName() + ".threads",
+                   "1");
+        params.put(MailDispatcher.class.getPackage().getName() + ".queueSize",
+                   "2");
+        params.put(MailDispatcher.class.getPackage().getName() + ".spoolDir",
+                   dir.getPath());
+        params.put(MailDispatcher.class.getPackage().getName() +
+                   ".spoolDrainInterval", "100");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatcher != null) {
+            dispatcher.shutdown(1000);
+        }
+        server.close();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    @Test(timeout = 30000)
+    public void overflowToSpoolKeepsFutures() throws Exception {
+        dispatcher = new MailDispatcher(newContext(params));
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        Session session = Session.getInstance(props);
+        MailRoute route = new MailRoute("127.0.0.1",
+            String.valueOf(server.getPort()), false, null, null);
+
+        // far more recipients than the queue holds, most of them overflow
+        // to the spool and are queued again by the drainer
+        List<CompletableFuture<DeliveryResult>> futures =
+            new ArrayList<CompletableFuture<DeliveryResult>>();
+        for (int i = 0; i < 25; i++) {
+            String to = "rcpt" + i + "@example.com";
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom(new InternetAddress("from@example.com"));
+            message.setRecipients(Message.RecipientType.TO, to);
+            message.setSubject("merge " + i);
+            message.setText("Hello " + i);
+            MimeMessage frozen = dispatcher.freeze(message);
+            Mail mail = new Mail(dispatcher, frozen, to,
+                                 TransportPool.getKey(session, null), route,
+                                 MailDispatcher.NORMAL_LANE);
+            CompletableFuture<DeliveryResult> future =
+                new CompletableFuture<DeliveryResult>();
+            mail.setFuture(future);
+            assertTrue(dispatcher.submit(mail));
+            FrozenMessage.release(frozen);
+            futures.add(future);
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            DeliveryResult result = futures.get(i).get(20, TimeUnit.SECONDS);
+            assertNull(result.getException());
+        }
+        assertEquals(25, server.getMessages());
+        assertEquals(0, dispatcher.getSpool().getPendingCount());
+    }
+
+    @Test(timeout = 30000)
+    public void shutdownAbandonsRetriesAndRefusesWork() throws Exception {
+        params.remove(MailDispatcher.class.getPackage().getName() +
+                      ".spoolDir");
+        params.put(MailDispatcher.class.getPackage().getName() +
+                   ".retryInitialDelay", "600000");
+        ServletContext sc = newContext(params);
+        MailDispatcher shut = MailDispatcher.getInstance(sc);
+
+        // nothing listens on the port, the message waits on the wheel
+        ServerSocket unused = new ServerSocket(0);
+        String port = String.valueOf(unused.getLocalPort());
+        unused.close();
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", port);
+        Session session = Session.getInstance(props);
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("from@example.com"));
+        message.setRecipients(Message.RecipientType.TO, "to@example.com");
+        message.setText("Hello");
+        Mail mail = new Mail(shut, message, "to@example.com",
+                             TransportPool.getKey(session, null),
+                             new MailRoute("127.0.0.1", port, false, null,
+                                           null),
+                             MailDispatcher.NORMAL_LANE);
+        CompletableFuture<DeliveryResult> future =
+            new CompletableFuture<DeliveryResult>();
+        mail.setFuture(future);
+        assertTrue(shut.getIdempotencyCache().add("page"));
+        mail.setIdempotencyKey("page");
+        assertTrue(shut.submit(mail));
+        while (shut.getRetryCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        // the retry is not due before the timeout, so it is not waited for
+        long start = System.currentTimeMillis();
+        assertEquals(1, MailDispatcher.shutdown(sc, 10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, shut.getIdempotencyCache().getSize());
+        assertEquals(0, MailDispatcher.shutdown(sc, 10000));
+        assertFalse(shut.dispatch(mail));
+        try {
+            MailDispatcher.getInstance(sc);
+            fail("a dispatcher that was shut down was handed out");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void serviceNotAvailableOpensTheBreaker() throws Exception {
+        params.remove(MailDispatcher.SPOOL_DIR_PARAM);
+        params.put(MailDispatcher.RETRY_MAX_ATTEMPTS_PARAM, "1");
+        params.put(MailDispatcher.CIRCUIT_WINDOW_PARAM, "4");
+        params.put(MailDispatcher.CIRCUIT_MINIMUM_CALLS_PARAM, "4");
+        dispatcher = new MailDispatcher(newContext(params));
+        server.setMailReply("421 service not available");
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        Session session = Session.getInstance(props);
+        MailRoute route = new MailRoute("127.0.0.1",
+            String.valueOf(server.getPort()), false, null, null);
+        CircuitBreaker breaker = dispatcher.getRelayBalancer()
+            .getRelay(TransportPool.getServer(session)).getBreaker();
+
+        // every transaction is answered with a 421, none of them counts as
+        // a message the relay took
+        for (int i = 0; i < 5; i++) {
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom(new InternetAddress("from@example.com"));
+            message.setRecipients(Message.RecipientType.TO, "to@example.com");
+            message.setText("Hello " + i);
+            Mail mail = new Mail(dispatcher, message, "to@example.com",
+                                 TransportPool.getKey(session, null), route,
+                                 MailDispatcher.NORMAL_LANE);
+            CompletableFuture<DeliveryResult> future =
+                new CompletableFuture<DeliveryResult>();
+            mail.setFuture(future);
+            assertTrue(dispatcher.submit(mail));
+            DeliveryResult result = future.get(20, TimeUnit.SECONDS);
+            if (i < 4) {
+                assertTrue(String.valueOf(result.getException()),
+                           RetryPolicy.getReturnCode(
+                               result.getException()) == 421);
+            } else {
+                // the open breaker fails the message without connecting
+                assertTrue(String.valueOf(result.getException()),
+                           result.getException() instanceof
+                           CircuitBreaker.OpenException);
+            }
+        }
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertEquals(0, server.getMessages());
+    }
+
+    @Test(timeout = 30000)
+    public void recoveredMessageWaitsForItsPassword() throws Exception {
+        String port = String.valueOf(server.getPort());
+        MailSpool spool = new MailSpool(dir, 1 << 20);
+        spool.append(new MailRoute("127.0.0.1", port, true, "user", "secret"),
+                     MailDispatcher.NORMAL_LANE, null,
+                     ("From: from@example.com\r\nTo: to@example.com\r\n" +
+                      "Subject: recovered\r\n\r\nHello\r\n")
+                     .getBytes("US-ASCII"));
+        spool.close();
+
+        ServletContext sc = newContext(params);
+        dispatcher = new MailDispatcher(sc);
+        // many drain passes, the message is read and logged about once
+        Thread.sleep(1000);
+        assertEquals(1, count("waits until the password"));
+        assertEquals(0, server.getMessages());
+        assertEquals(1, dispatcher.getSpool().getPendingCount());
+
+        // a page logs the user in, the message is sent
+        SessionCache.getInstance(sc).getSession("127.0.0.1", port, true,
+                                                "user", "secret");
+        while (server.getMessages() == 0) {
+            Thread.sleep(10);
+        }
+        while (dispatcher.getSpool().getPendingCount() > 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, count("waits until the password"));
+    }
+
+    @Test
+    public void onlySmallAttachmentsAreEncodedAhead() throws Exception {
+        params.put(MailDispatcher.ENCODE_THREADS_PARAM, "2");
+        dispatcher = new MailDispatcher(newContext(params));
+        List<MimeBodyPart> parts = new ArrayList<MimeBodyPart>();
+        parts.add(new FileBodyPart(file("streamed.bin", 100)));
+        parts.add(attachment(file("large.bin", 2 * 1024 * 1024)));
+        parts.add(attachment(file("first.bin", 100)));
+        parts.add(attachment(file("second.bin", 100)));
+
+        List<MimeBodyPart> encoded = dispatcher.encodeAhead(parts);
+        assertSame(parts.get(0), encoded.get(0));
+        assertSame(parts.get(1), encoded.get(1));
+        assertTrue(encoded.get(2) instanceof EncodedBodyPart);
+        assertTrue(encoded.get(3) instanceof EncodedBodyPart);
+    }
+
+    private File file(String name, int size) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    private static MimeBodyPart attachment(File file)
+        throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new FileDataSource(file)));
+        return part;
+    }
+
+    private int count(String text) {
+        int count = 0;
+        synchronized (logs) {
+            for (String log : logs) {
+                if (log.indexOf(text) >= 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private ServletContext newContext(final Map<String, String> init) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (ServletContext)Proxy.newProxyInstance(
+            MailDispatcherTest.class.getClassLoader(),
+            new Class<?>[] { ServletContext.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getInitParameter")) {
+                        return init.get(args[0]);
+                    } else if (name.equals("getAttribute")) {
+                        return attributes.get(args[0]);
+                    } else if (name.equals("setAttribute")) {
+                        attributes.put((String)args[0], args[1]);
+                    } else if (name.equals("removeAttribute")) {
+                        attributes.remove(args[0]);
+                    } else if (name.equals("log")) {
+                        logs.add((String)args[0]);
+                    } else if (method.getReturnType() == boolean.class) {
+                        return Boolean.FALSE;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * SmtpServer - accepts every message it is sent, one connection at a
+     *              time
+     */
+    private static class SmtpServer implements Runnable {
+
+        private final ServerSocket socket;
+        private final AtomicInteger messages = new AtomicInteger();
+        private volatile String mailReply = "250 ok";
+
+        SmtpServer() throws IOException {
+            socket = new ServerSocket(0);
+            Thread thread = new Thread(this, "smtp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        int getMessages() {
+            return messages.get();
+        }
+
+        /**
+         * set the reply to MAIL FROM, a 421 also closes the connection
+         */
+        void setMailReply(String reply) {
+            mailReply = reply;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    try {
+                        serve(client);
+                    } finally {
+                        client.close();
+                    }
+                } catch (IOException ie) {
+                    // closed, or the client went away
+                }
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), "US-ASCII"));
+            OutputStream out = client.getOutputStream();
+            reply(out, "220 localhost ESMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() < 4 ? line :
+                    line.substring(0, 4).toUpperCase();
+                if (command.equals("DATA")) {
+                    reply(out, "354 go ahead");
+                    while ((line = in.readLine()) != null &&
+                           !line.equals(".")) {
+                        // the message is not kept
+                    }
+                    messages.incrementAndGet();
+                    reply(out, "250 accepted");
+                } else if (command.equals("MAIL")) {
+                    reply(out, mailReply);
+                    if (mailReply.startsWith("421")) {
+                        return;
+                    }
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                } else {
+                    reply(out, "250 ok");
+                }
+            }
+        }
+
+        private static void reply(OutputStream out, String line)
+            throws IOException {
+            out.write((line + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
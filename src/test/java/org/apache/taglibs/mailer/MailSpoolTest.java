@@ -0,0 +1,217 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import jakarta.mail.Address;
+import jakarta.mail.internet.InternetAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailSpoolTest {
+
+    private final MailRoute route =
+        new MailRoute("localhost", "25", false, null, null);
+
+    private File dir;
+    private MailSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("spooltest").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (spool != null) {
+            spool.close();
+        }
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] message(int i) {
+        return ("Subject: message " + i + "\r\n\r\nbody " + i + "\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private MailSpool reopen(long segmentSize) throws IOException {
+        if (spool != null) {
+            spool.close();
+        }
+        spool = new MailSpool(dir, segmentSize);
+        return spool;
+    }
+
+    private File[] segments() {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void undeliveredMessagesAreRecovered() throws Exception {
+        reopen(1 << 20);
+        Address[] envelope = { new InternetAddress("a@example.com") };
+        long first = spool.append(route, 0, null, message(1));
+        long second = spool.append(route, 2, envelope, message(2));
+        long third = spool.append(route, 1, null, message(3));
+        spool.markDone(second);
+
+        reopen(1 << 20);
+        assertEquals(2, spool.getRecoveredCount());
+        assertFalse(spool.wasTruncated());
+        assertNull(spool.read(second));
+        MailSpool.Entry entry = spool.read(first);
+        assertArrayEquals(message(1), entry.getMessage());
+        assertEquals(0, entry.getLane());
+        assertNull(entry.getRecipients());
+        assertEquals(Arrays.asList(Long.valueOf(third)), spool.claim(10, 1));
+        // new ids never reuse those of recovered messages
+        assertTrue(spool.append(route, 1, null, message(4)) > third);
+    }
+
+    @Test
+    public void tornLastRecordIsCutOff() throws Exception {
+        reopen(1 << 20);
+        long first = spool.append(route, 1, null, message(1));
+        long second = spool.append(route, 1, null, message(2));
+        spool.close();
+        spool = null;
+
+        File segment = segments()[0];
+        long length = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // a crash in the middle of writing the second record
+            file.setLength(length - 5);
+        } finally {
+            file.close();
+        }
+
+        reopen(1 << 20);
+        assertTrue(spool.wasTruncated());
+        assertEquals(1, spool.getRecoveredCount());
+        assertArrayEquals(message(1), spool.read(first).getMessage());
+        assertNull(spool.read(second));
+        assertTrue(segment.length() < length - 5);
+
+        // the spool is usable after the cut and recovers cleanly again
+        long third = spool.append(route, 1, null, message(3));
+        reopen(1 << 20);
+        assertFalse(spool.wasTruncated());
+        assertEquals(2, spool.getRecoveredCount());
+        assertArrayEquals(message(3), spool.read(third).getMessage());
+    }
+
+    @Test
+    public void recordWithBadCrcIsCutOff() throws Exception {
+        reopen(1 << 20);
+        long first = spool.append(route, 1, null, message(1));
+        long second = spool.append(route, 1, null, message(2));
+        spool.close();
+        spool = null;
+
+        File segment = segments()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // flip a byte of the body of the last message
+            long position = file.length() - 8 - 3;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        reopen(1 << 20);
+        assertTrue(spool.wasTruncated());
+        assertEquals(1, spool.getRecoveredCount());
+        assertArrayEquals(message(1), spool.read(first).getMessage());
+        assertNull(spool.read(second));
+    }
+
+    @Test
+    public void deliveredSegmentsAreDeleted() throws Exception {
+        // every message starts a segment of its own
+        reopen(100);
+        long[] ids = new long[4];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = spool.append(route, 1, null, message(i));
+        }
+        assertEquals(4, segments().length);
+
+        // the done records go to a fifth segment, a segment is only
+        // deleted once every older one is too
+        spool.markDone(ids[1]);
+        assertEquals(5, segments().length);
+        spool.markDone(ids[0]);
+        assertEquals(3, segments().length);
+        spool.markDone(ids[2]);
+        assertEquals(2, segments().length);
+
+        reopen(100);
+        assertEquals(1, spool.getRecoveredCount());
+        assertArrayEquals(message(3), spool.read(ids[3]).getMessage());
+        spool.markDone(ids[3]);
+        reopen(100);
+        assertEquals(0, spool.getRecoveredCount());
+        assertEquals(1, segments().length);
+    }
+
+    @Test
+    public void attemptsSurviveARestart() throws Exception {
+        reopen(1 << 20);
+        long late = spool.append(route, 1, null, message(1));
+        long due = spool.append(route, 1, null, message(2));
+        spool.retry(late, 3, System.currentTimeMillis() + 60000);
+        spool.retry(due, 2, System.currentTimeMillis() - 1);
+        spool.release(late);
+        spool.release(due);
+        // the message waiting for its next attempt is not claimed
+        assertEquals(Arrays.asList(Long.valueOf(due)), spool.claim(10, 1));
+
+        reopen(1 << 20);
+        assertEquals(3, spool.read(late).getAttempts());
+        assertEquals(2, spool.read(due).getAttempts());
+        List<Long> claimed = spool.claim(10, 1);
+        assertEquals(Arrays.asList(Long.valueOf(due)), claimed);
+
+        // a copy sent to fewer recipients keeps the attempts
+        long copy = spool.readdress(due, new Address[] {
+            new InternetAddress("b@example.com") });
+        assertEquals(2, spool.read(copy).getAttempts());
+        assertNull(spool.read(due));
+    }
+}
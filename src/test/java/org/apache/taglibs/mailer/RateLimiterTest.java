@@ -0,0 +1,75 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void throttledMessagesAreGivenSlotsAfterEachOther() {
+        RateLimiter limiter =
+            new RateLimiter(10, 0, 1, 0, RateLimiter.BY_RELAY);
+        assertEquals(0, limiter.tryAcquire("relay"));
+        // each message reserves the next token instead of all of them
+        // waiting for the same one
+        long previous = 0;
+        for (int i = 1; i <= 4; i++) {
+            long wait = limiter.tryAcquire("relay");
+            assertTrue("wait " + wait, wait > previous + 50 &&
+                       wait <= i * 100);
+            previous = wait;
+        }
+    }
+
+    @Test
+    public void releasedTokenIsTakenAgain() {
+        RateLimiter limiter =
+            new RateLimiter(1, 0, 1, 0, RateLimiter.BY_RELAY);
+        assertEquals(0, limiter.tryAcquire("relay"));
+        assertTrue(limiter.tryAcquire("relay") > 0);
+        // the reserved token is not used after all
+        limiter.release("relay");
+        long wait = limiter.tryAcquire("relay");
+        assertTrue("wait " + wait, wait > 0 && wait <= 1000);
+    }
+
+    @Test
+    public void minuteBurstIsNotLargerThanTheMinuteLimit() {
+        RateLimiter limiter =
+            new RateLimiter(0, 2, 5, 0, RateLimiter.BY_RELAY);
+        assertEquals(0, limiter.tryAcquire("relay"));
+        assertEquals(0, limiter.tryAcquire("relay"));
+        assertTrue(limiter.tryAcquire("relay") > 0);
+    }
+
+    @Test
+    public void minuteBurstIsSetOnItsOwn() {
+        RateLimiter limiter =
+            new RateLimiter(100, 10, 1, 3, RateLimiter.BY_RELAY);
+        long waited = 0;
+        for (int i = 0; i < 3; i++) {
+            waited = Math.max(waited, limiter.tryAcquire("relay"));
+        }
+        // only the per second bucket spaces the first three messages
+        assertTrue("wait " + waited, waited <= 20);
+        assertTrue(limiter.tryAcquire("relay") > 1000);
+    }
+}
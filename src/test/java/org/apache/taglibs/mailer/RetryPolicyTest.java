@@ -0,0 +1,115 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(5, 1000, 8000);
+
+    private static InternetAddress address(String address) throws Exception {
+        return new InternetAddress(address);
+    }
+
+    @Test
+    public void partialFailureIsRetriedForTheValidUnsentAddresses()
+        throws Exception {
+        InternetAddress bad = address("nobody@example.com");
+        InternetAddress good = address("somebody@example.com");
+        // as thrown by SMTPTransport when one RCPT TO is refused
+        SendFailedException sfe = new SendFailedException("Invalid Addresses",
+            new SMTPAddressFailedException(bad, "RCPT TO:<" + bad + ">", 550,
+                                           "550 5.1.1 no such user"),
+            null, new Address[] { good }, new Address[] { bad });
+        assertEquals(550, RetryPolicy.getReturnCode(sfe));
+        assertTrue(policy.isTransient(sfe));
+    }
+
+    @Test
+    public void everyAddressRefusedIsPermanent() throws Exception {
+        InternetAddress bad = address("nobody@example.com");
+        SendFailedException sfe = new SendFailedException("Invalid Addresses",
+            new SMTPAddressFailedException(bad, "RCPT TO:<" + bad + ">", 550,
+                                           "550 5.1.1 no such user"),
+            null, null, new Address[] { bad });
+        assertFalse(policy.isTransient(sfe));
+    }
+
+    @Test
+    public void sentAndRefusedWithNothingLeftIsPermanent() throws Exception {
+        InternetAddress bad = address("nobody@example.com");
+        InternetAddress good = address("somebody@example.com");
+        SendFailedException sfe = new SMTPSendFailedException(".", 250,
+            "250 ok", null, new Address[] { good }, null,
+            new Address[] { bad });
+        assertFalse(policy.isTransient(sfe));
+    }
+
+    @Test
+    public void rejectedMessageIsPermanent() throws Exception {
+        InternetAddress good = address("somebody@example.com");
+        SendFailedException sfe = new SMTPSendFailedException("DATA", 554,
+            "554 5.7.1 message refused", null, null, new Address[] { good },
+            null);
+        assertFalse(policy.isTransient(sfe));
+    }
+
+    @Test
+    public void greylistingIsTransient() throws Exception {
+        InternetAddress good = address("somebody@example.com");
+        SendFailedException sfe = new SendFailedException("Invalid Addresses",
+            new SMTPAddressFailedException(good, "RCPT TO:<" + good + ">", 451,
+                                           "451 4.7.1 try again later"),
+            null, new Address[] { good }, null);
+        assertTrue(policy.isTransient(sfe));
+    }
+
+    @Test
+    public void connectionFailureIsTransient() {
+        assertTrue(policy.isTransient(new MessagingException(
+            "Could not connect", new SocketTimeoutException("timed out"))));
+    }
+
+    @Test
+    public void refusedLoginIsPermanent() {
+        assertFalse(policy.isTransient(new AuthenticationFailedException(
+            "535 authentication failed")));
+    }
+
+    @Test
+    public void delayDoublesUpToTheMaximum() {
+        for (int attempts = 1; attempts < 8; attempts++) {
+            long full = Math.min(8000, 1000L << (attempts - 1));
+            long delay = policy.getDelay(attempts);
+            assertTrue(delay >= full / 2);
+            assertTrue(delay <= full);
+        }
+    }
+}
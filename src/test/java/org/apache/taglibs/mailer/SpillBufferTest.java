@@ -0,0 +1,128 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SpillBufferTest {
+
+    private File dir;
+    private SpillBuffer.Registry spills;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("spill").toFile();
+        spills = new SpillBuffer.Registry();
+    }
+
+    @After
+    public void tearDown() {
+        spills.deleteAll();
+        dir.delete();
+    }
+
+    @Test
+    public void fileIsDeletedByTheLastHolder() throws Exception {
+        SpillBuffer buffer = spilled("a body larger than the threshold");
+        MimeMessage message = new MimeMessage(
+            Session.getInstance(new Properties()));
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("text");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(
+            buffer.getDataSource("text/plain")));
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+
+        // two jobs send the message, the tag lets go first
+        List<SpillBuffer> first = SpillBuffer.retainAll(message);
+        List<SpillBuffer> second = SpillBuffer.retainAll(message);
+        assertEquals(1, first.size());
+        assertSame(buffer, SpillBuffer.getBuffer(attachment));
+        buffer.release();
+        first.get(0).release();
+        assertEquals(1, dir.list().length);
+        second.get(0).release();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void bufferInMemoryIsNotHeld() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(1024, dir, "us-ascii", spills);
+        Writer writer = buffer.getWriter();
+        writer.write("small");
+        writer.close();
+        MimeMessage message = new MimeMessage(
+            Session.getInstance(new Properties()));
+        message.setDataHandler(new DataHandler(
+            buffer.getDataSource("text/plain")));
+        assertTrue(SpillBuffer.retainAll(message).isEmpty());
+    }
+
+    @Test
+    public void shutdownDeletesWhatIsLeft() throws Exception {
+        spilled("one body");
+        spilled("another body");
+        assertEquals(2, dir.list().length);
+        spills.deleteAll();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void shutdownLeavesOtherApplicationsAlone() throws Exception {
+        spilled("one body");
+        SpillBuffer.Registry other = new SpillBuffer.Registry();
+        SpillBuffer buffer = new SpillBuffer(4, dir, "us-ascii", other);
+        Writer writer = buffer.getWriter();
+        writer.write("a body of another application");
+        writer.close();
+        assertEquals(2, dir.list().length);
+        spills.deleteAll();
+        assertEquals(1, dir.list().length);
+        other.deleteAll();
+        assertEquals(0, dir.list().length);
+    }
+
+    private SpillBuffer spilled(String body) throws IOException {
+        SpillBuffer buffer = new SpillBuffer(4, dir, "us-ascii", spills);
+        Writer writer = buffer.getWriter();
+        writer.write(body);
+        writer.close();
+        assertTrue(buffer.isSpilled());
+        return buffer;
+    }
+}
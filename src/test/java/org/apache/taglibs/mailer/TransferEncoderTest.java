@@ -0,0 +1,165 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferEncoderTest {
+
+    @Test
+    public void emptyBodyIs7bit() throws Exception {
+        check(new byte[0], "7bit");
+    }
+
+    @Test
+    public void lineOf998BytesIs7bit() throws Exception {
+        check(line(998, 'a'), "7bit");
+    }
+
+    @Test
+    public void lineOf999BytesIsQuotedPrintable() throws Exception {
+        check(line(999, 'a'), "quoted-printable");
+    }
+
+    @Test
+    public void longLinesAreBrokenIntoShortOnes() throws Exception {
+        byte[] data = line(5000, 'x');
+        for (int i = 0; i < data.length; i += 7) {
+            data[i] = (byte)0xe9;
+        }
+        check(data, "quoted-printable");
+    }
+
+    @Test
+    public void trailingWhiteSpaceIsEscaped() throws Exception {
+        check(bytes("caf\u00e9 au lait \t\r\nnext line \nlast \t"),
+              "quoted-printable");
+    }
+
+    @Test
+    public void whiteSpaceAtTheSoftBreakIsKept() throws Exception {
+        // spaces that fall on the last columns of an encoded line
+        StringBuilder text = new StringBuilder("\u00e9");
+        for (int i = 0; i < 40; i++) {
+            text.append("ab ");
+        }
+        check(bytes(text.toString()), "quoted-printable");
+    }
+
+    @Test
+    public void carriageReturnWithoutLineFeed() throws Exception {
+        // left alone in 7bit, a line break in quoted-printable
+        check(bytes("line one\rline two\r\nline three\r"), "7bit");
+        check(bytes("l\u00efne one\rline two\r\nline three\r"),
+              "quoted-printable");
+    }
+
+    @Test
+    public void mostlyBinaryIsBase64() throws Exception {
+        byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(128 + i % 128);
+        }
+        check(data, "base64");
+        // one byte more ascii than not tips it to quoted-printable
+        byte[] half = new byte[1001];
+        for (int i = 0; i < half.length; i++) {
+            half[i] = (byte)(i % 2 == 0 ? 'a' : 0xe9);
+        }
+        check(half, "quoted-printable");
+    }
+
+    /**
+     * encode a body and compare the result with what JavaMail makes of it
+     */
+    private static void check(byte[] data, String encoding) throws Exception {
+        TransferEncoder.Encoded encoded = TransferEncoder.encode(data);
+        assertEquals(encoding, MimeUtility.getEncoding(
+            new ByteArrayDataSource(data, "text/plain; charset=iso-8859-1")));
+        assertEquals(encoding, encoded.getEncoding());
+
+        byte[] content = toArray(encoded.getContent());
+        if (encoding.equals("7bit")) {
+            assertArrayEquals(data, content);
+            return;
+        }
+        // decoded, the body is what JavaMail's own encoding decodes to
+        assertArrayEquals(decode(encode(data, encoding), encoding),
+                          decode(content, encoding));
+        String[] lines = new String(content, "US-ASCII").split("\r\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue("line " + i + " is too long",
+                       lines[i].length() <= 76);
+            assertTrue("line " + i + " ends with white space",
+                       !lines[i].endsWith(" ") && !lines[i].endsWith("\t"));
+        }
+        String text = new String(content, "US-ASCII");
+        assertTrue("a CR or LF is not part of a line break",
+                   text.replace("\r\n", "").indexOf('\r') < 0 &&
+                   text.replace("\r\n", "").indexOf('\n') < 0);
+    }
+
+    private static byte[] encode(byte[] data, String encoding)
+        throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = MimeUtility.encode(bytes, encoding);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decode(byte[] data, String encoding)
+        throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = MimeUtility.decode(new ByteArrayInputStream(data),
+                                            encoding);
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] line(int length, char c) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte)c);
+        return data;
+    }
+
+    private static byte[] bytes(String text) throws Exception {
+        return text.getBytes("ISO-8859-1");
+    }
+}
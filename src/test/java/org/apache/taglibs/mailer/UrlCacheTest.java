@@ -0,0 +1,260 @@
+/*
+ * Copyright 1999,2004 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.taglibs.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.mail.internet.MimeBodyPart;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UrlCacheTest {
+
+    private HttpServer server;
+    private UrlCache cache;
+
+    /**
+     * number of requests each resource was sent
+     */
+    private final AtomicInteger fresh = new AtomicInteger();
+    private final AtomicInteger etag = new AtomicInteger();
+    private final AtomicInteger modified = new AtomicInteger();
+    private final AtomicInteger nostore = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fresh", new Resource(fresh) {
+                void respond(HttpExchange exchange) throws IOException {
+                    exchange.getResponseHeaders().set("Cache-Control",
+                                                      "max-age=60");
+                    send(exchange, 200, "fresh");
+                }
+            });
+        server.createContext("/etag", new Resource(etag) {
+                void respond(HttpExchange exchange) throws IOException {
+                    exchange.getResponseHeaders().set("Cache-Control",
+                                                      "no-cache");
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    if ("\"v1\"".equals(exchange.getRequestHeaders()
+                                        .getFirst("If-None-Match"))) {
+                        send(exchange, 304, null);
+                    } else {
+                        send(exchange, 200, "tagged");
+                    }
+                }
+            });
+        server.createContext("/modified", new Resource(modified) {
+                void respond(HttpExchange exchange) throws IOException {
+                    String date = "Tue, 15 Nov 1994 12:45:26 GMT";
+                    exchange.getResponseHeaders().set("Cache-Control",
+                                                      "no-cache");
+                    exchange.getResponseHeaders().set("Last-Modified", date);
+                    if (date.equals(exchange.getRequestHeaders()
+                                    .getFirst("If-Modified-Since"))) {
+                        send(exchange, 304, null);
+                    } else {
+                        send(exchange, 200, "dated");
+                    }
+                }
+            });
+        server.createContext("/nostore", new Resource(nostore) {
+                void respond(HttpExchange exchange) throws IOException {
+                    exchange.getResponseHeaders().set("Cache-Control",
+                                                      "max-age=60, no-store");
+                    send(exchange, 200, "secret");
+                }
+            });
+        server.createContext("/slow", new Resource(new AtomicInteger()) {
+                void respond(HttpExchange exchange) throws IOException {
+                    try {
+                        Thread.sleep(3000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    send(exchange, 200, "late");
+                }
+            });
+        server.start();
+        cache = new UrlCache(1024 * 1024, 2, 500, 500);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void freshResourceIsNotFetchedAgain() throws Exception {
+        assertEquals("fresh", read(get("/fresh")));
+        assertEquals("fresh", read(get("/fresh")));
+        assertEquals(1, fresh.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void staleResourceIsRevalidatedWithItsETag() throws Exception {
+        assertEquals("tagged", read(get("/etag")));
+        assertEquals("tagged", read(get("/etag")));
+        assertEquals(2, etag.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void staleResourceIsRevalidatedWithItsDate() throws Exception {
+        assertEquals("dated", read(get("/modified")));
+        assertEquals("dated", read(get("/modified")));
+        assertEquals(2, modified.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void noStoreResourceIsNotKept() throws Exception {
+        assertEquals("secret", read(get("/nostore")));
+        assertEquals("secret", read(get("/nostore")));
+        assertEquals(2, nostore.get());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getUsed());
+    }
+
+    @Test(timeout = 20000)
+    public void slowServerTimesOut() throws Exception {
+        assertTimesOut(url("/slow"));
+    }
+
+    @Test(timeout = 20000)
+    public void unansweredConnectionTimesOut() throws Exception {
+        // a server that never accepts, once its backlog is full further
+        // connections are left waiting
+        ServerSocket listener = new ServerSocket(0, 1);
+        List<Socket> filling = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(listener.getLocalSocketAddress(), 200);
+                    filling.add(socket);
+                } catch (SocketTimeoutException ste) {
+                    socket.close();
+                    break;
+                }
+            }
+            assertTimesOut(new URL("http://127.0.0.1:" +
+                                   listener.getLocalPort() + "/"));
+        } finally {
+            for (Socket socket : filling) {
+                socket.close();
+            }
+            listener.close();
+        }
+    }
+
+    private void assertTimesOut(URL url) throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            cache.getPart(url).get(10, TimeUnit.SECONDS);
+            fail("the resource was fetched");
+        } catch (ExecutionException ee) {
+            assertTrue(String.valueOf(ee.getCause()),
+                       ee.getCause() instanceof SocketTimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 2500);
+    }
+
+    private MimeBodyPart get(String path) throws Exception {
+        return cache.getPart(url(path)).get(10, TimeUnit.SECONDS);
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" +
+                       server.getAddress().getPort() + path);
+    }
+
+    private static String read(MimeBodyPart part) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = part.getInputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toString("US-ASCII");
+    }
+
+    /**
+     * Resource - counts the requests for a resource and answers them
+     */
+    private abstract static class Resource implements HttpHandler {
+
+        private final AtomicInteger requests;
+
+        Resource(AtomicInteger requests) {
+            this.requests = requests;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            try {
+                respond(exchange);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract void respond(HttpExchange exchange) throws IOException;
+
+        static void send(HttpExchange exchange, int code, String body)
+            throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes("US-ASCII");
+            exchange.sendResponseHeaders(code, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+    }
+}